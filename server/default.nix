@@ -9,7 +9,7 @@ in
     inherit version;
 
     src = ./.;
-    mvnHash = "sha256-Hjs7qpaqRf8N+hVMJNaM0Oli1pY0K5Xcegi20gPhpA0=";
+    mvnHash = "sha256-0Pd1gXsM8n5DUQBifU1Yacivhz9gI9rvCnbxvjJQs7o=";
 
     nativeBuildInputs = with pkgs; [
       makeWrapper
@@ -0,0 +1,52 @@
+package uz.server.controller;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.mock.web.MockHttpServletRequest;
+import uz.server.utils.Utils;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-request work the forward controller does before anything reaches an agent: copying the browser's
+ * headers into the forward, and finding the tunnel subdomain in the Host header.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestHeadersBenchmark {
+    private final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/static/js/app.js");
+
+    @Setup
+    public void setUp() {
+        request.addHeader("Host", "shop.tarmoqchi.uz");
+        request.addHeader("Connection", "keep-alive");
+        request.addHeader("sec-ch-ua", "\"Chromium\";v=\"124\", \"Google Chrome\";v=\"124\", \"Not-A.Brand\";v=\"99\"");
+        request.addHeader("sec-ch-ua-mobile", "?0");
+        request.addHeader("sec-ch-ua-platform", "\"Windows\"");
+        request.addHeader("User-Agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 "
+                + "(KHTML, like Gecko) Chrome/124.0.0.0 Safari/537.36");
+        request.addHeader("Accept", "*/*");
+        request.addHeader("Sec-Fetch-Site", "same-origin");
+        request.addHeader("Sec-Fetch-Mode", "no-cors");
+        request.addHeader("Sec-Fetch-Dest", "script");
+        request.addHeader("Referer", "https://shop.tarmoqchi.uz/");
+        request.addHeader("Accept-Encoding", "gzip, deflate, br, zstd");
+        request.addHeader("Accept-Language", "uz-UZ,uz;q=0.9,ru;q=0.8,en-US;q=0.7");
+        request.addHeader("Cookie", "_ga=GA1.1.1983617023.1714041234");
+        request.addHeader("Cookie", "sessionid=k2v9x0q8m3n7b1z5c4l6j0h2g8f4d1s3");
+    }
+
+    @Benchmark
+    public Map<String, String> getHeaders() {
+        return ForwardController.getHeaders(request);
+    }
+
+    @Benchmark
+    public String getSubdomain() {
+        return Utils.getSubdomain(request.getHeader("Host"));
+    }
+}
@@ -0,0 +1,168 @@
+package uz.server.load;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.springframework.context.ConfigurableApplicationContext;
+import uz.server.domain.entity.User;
+import uz.server.repository.UserRepository;
+import uz.server.ws.SessionHolder;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * Control-plane cost of agents connecting all at once, as they do after a server restart, and leaving again.
+ * Starts an {@link EmbeddedServer} with Hibernate statistics on, and has {@link StormClients} in a second JVM
+ * open {@code sessions} agent sessions, {@code parallelism} handshakes at a time, each for its own user and
+ * tunnel. Every round reports connects per second, the time from starting the handshake to the CREATED
+ * confirmation, JDBC statements per connect and per disconnect, and the server heap each idle session holds.
+ * The first round runs with a cold token cache, like a restart; later ones show the steady state.
+ * <p>
+ * Tomcat allocates {@code tarmoqchi.websocket.max-message-size} twice per session up front, which at the default
+ * 100MB fills any heap after a few sessions, so the storm runs with 64KB unless the arguments say otherwise.
+ * <p>
+ * Arguments are {@code key=value}: {@code sessions=2000 parallelism=200 rounds=3 out=target/storm-result.json},
+ * plus server properties as for {@link LoadHarness}.
+ */
+public class ConnectionStorm {
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>(Map.of(
+                "sessions", "2000",
+                "parallelism", "200",
+                "rounds", "3",
+                "out", "target/storm-result.json"));
+        Map<String, String> properties = EmbeddedServer.parseArgs(args, options);
+        properties.putIfAbsent("tarmoqchi.websocket.max-message-size", "64KB");
+        properties.put("spring.jpa.properties.hibernate.generate_statistics", "true");
+        int sessions = Integer.parseInt(options.get("sessions"));
+        ConfigurableApplicationContext context = EmbeddedServer.start(properties);
+        ObjectMapper objectMapper = new ObjectMapper();
+        Process clients = null;
+
+        try {
+            context.getBean(UserRepository.class).saveAll(IntStream.range(0, sessions)
+                    .mapToObj(i -> User.builder().id(i + 1L).name("storm" + i).token(token(i)).build())
+                    .toList());
+            Statistics statistics = context.getBean(EntityManagerFactory.class).unwrap(SessionFactory.class).getStatistics();
+
+            clients = new ProcessBuilder(javaExecutable(), "-cp", System.getProperty("java.class.path"),
+                    StormClients.class.getName(), String.valueOf(EmbeddedServer.port(context)),
+                    String.valueOf(sessions), options.get("parallelism"))
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            Writer commands = new OutputStreamWriter(clients.getOutputStream(), StandardCharsets.UTF_8);
+            BufferedReader answers = new BufferedReader(new InputStreamReader(clients.getInputStream(), StandardCharsets.UTF_8));
+            List<Map<String, Object>> results = new ArrayList<>();
+
+            System.out.printf("%n%5s %8s %9s %8s %8s %8s %8s %9s %10s %9s %9s %8s%n", "round", "sessions",
+                    "conn/s", "p50 ms", "p90 ms", "p99 ms", "max ms", "sql/conn", "heap/sess", "disc/s",
+                    "sql/disc", "failures");
+
+            for (int round = 1; round <= Integer.parseInt(options.get("rounds")); round++) {
+                long baseline = usedHeapAfterGc();
+                statistics.clear();
+                Map<?, ?> connected = send(commands, answers, objectMapper, "connect");
+                double[] latencies = ((List<?>) connected.get("latencies")).stream()
+                        .mapToDouble(latency -> ((Number) latency).doubleValue())
+                        .sorted()
+                        .toArray();
+                int failures = ((Number) connected.get("failures")).intValue();
+                long connectStatements = statistics.getPrepareStatementCount();
+                long heapPerSession = latencies.length > 0 ? (usedHeapAfterGc() - baseline) / latencies.length : 0;
+
+                statistics.clear();
+                long closing = System.nanoTime();
+                send(commands, answers, objectMapper, "close");
+
+                // The client is done once its close frames are out; the server once it forgot every session.
+                while (!SessionHolder.sessions.isEmpty() && System.nanoTime() - closing < 60_000_000_000L) {
+                    Thread.sleep(5);
+                }
+
+                double disconnectSeconds = (System.nanoTime() - closing) / 1e9;
+                long disconnectStatements = statistics.getPrepareStatementCount();
+
+                Map<String, Object> result = new LinkedHashMap<>();
+                result.put("round", round);
+                result.put("sessions", latencies.length);
+                result.put("connectsPerSecond", latencies.length / ((Number) connected.get("elapsed")).doubleValue());
+                result.put("createdP50", percentile(latencies, 0.50));
+                result.put("createdP90", percentile(latencies, 0.90));
+                result.put("createdP99", percentile(latencies, 0.99));
+                result.put("createdMax", latencies.length > 0 ? latencies[latencies.length - 1] : 0);
+                result.put("statementsPerConnect", latencies.length > 0 ? (double) connectStatements / latencies.length : 0);
+                result.put("heapBytesPerSession", heapPerSession);
+                result.put("disconnectsPerSecond", latencies.length / disconnectSeconds);
+                result.put("statementsPerDisconnect", latencies.length > 0 ? (double) disconnectStatements / latencies.length : 0);
+                result.put("failures", failures);
+                results.add(result);
+
+                System.out.printf("%5d %8d %9.1f %8.1f %8.1f %8.1f %8.1f %9.2f %8.1fKB %9.1f %9.2f %8d%n", round,
+                        latencies.length, result.get("connectsPerSecond"), result.get("createdP50"),
+                        result.get("createdP90"), result.get("createdP99"), result.get("createdMax"),
+                        result.get("statementsPerConnect"), heapPerSession / 1024.0,
+                        result.get("disconnectsPerSecond"), result.get("statementsPerDisconnect"), failures);
+            }
+
+            commands.write("exit\n");
+            commands.flush();
+
+            File out = new File(options.get("out"));
+            out.getAbsoluteFile().getParentFile().mkdirs();
+            objectMapper.enable(SerializationFeature.INDENT_OUTPUT).writeValue(out, results);
+            System.out.printf("%nResults written to %s%n", out.getAbsolutePath());
+        } finally {
+            if (clients != null) {
+                clients.destroy();
+            }
+
+            context.close();
+        }
+    }
+
+    static String token(int index) {
+        return "storm-token-" + index;
+    }
+
+    private static Map<?, ?> send(Writer commands, BufferedReader answers, ObjectMapper objectMapper, String command)
+            throws IOException {
+        commands.write(command + "\n");
+        commands.flush();
+        String line;
+
+        while ((line = answers.readLine()) != null) {
+            if (line.startsWith("{")) {
+                return objectMapper.readValue(line, Map.class);
+            }
+        }
+
+        throw new EOFException("Storm clients exited");
+    }
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static double percentile(double[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(quantile * sorted.length) - 1)];
+    }
+
+    private static String javaExecutable() {
+        return System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    }
+}
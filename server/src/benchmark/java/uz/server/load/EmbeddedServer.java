@@ -0,0 +1,73 @@
+package uz.server.load;
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import uz.server.ServerApplication;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Starts the whole server for the load harnesses on a random port, on an in-memory H2 database in PostgreSQL
+ * mode instead of Postgres, and with logging at WARN.
+ */
+final class EmbeddedServer {
+    private EmbeddedServer() {
+    }
+
+    /**
+     * Splits {@code key=value} arguments: keys with a dot are server properties, the rest must be one of the
+     * harness options, whose defaults are replaced in place.
+     *
+     * @return the server properties
+     */
+    static Map<String, String> parseArgs(String[] args, Map<String, String> options) {
+        Map<String, String> properties = new LinkedHashMap<>();
+
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+
+            if (separator < 0) {
+                throw new IllegalArgumentException("Expected key=value: " + arg);
+            }
+
+            String key = arg.substring(0, separator);
+
+            if (key.contains(".")) {
+                properties.put(key, arg.substring(separator + 1));
+            } else if (options.containsKey(key)) {
+                options.put(key, arg.substring(separator + 1));
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + key);
+            }
+        }
+
+        return properties;
+    }
+
+    /**
+     * @param properties server properties, which win over the harness defaults
+     */
+    static ConfigurableApplicationContext start(Map<String, String> properties) {
+        Map<String, String> all = new LinkedHashMap<>();
+        all.put("server.port", "0");
+        all.put("spring.datasource.url", "jdbc:h2:mem:tarmoqchi;MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1");
+        all.put("spring.datasource.driver-class-name", "org.h2.Driver");
+        all.put("spring.datasource.username", "sa");
+        all.put("spring.jpa.hibernate.ddl-auto", "create-drop");
+        all.put("spring.jpa.show-sql", "false");
+        all.put("logging.level.root", "WARN");
+        all.put("github.client-id", "load");
+        all.put("github.client-secret", "load");
+        all.put("github.redirect-uri", "http://localhost/");
+        all.putAll(properties);
+
+        return SpringApplication.run(ServerApplication.class, all.entrySet().stream()
+                .map(property -> "--" + property.getKey() + "=" + property.getValue())
+                .toArray(String[]::new));
+    }
+
+    static int port(ConfigurableApplicationContext context) {
+        return Integer.parseInt(context.getEnvironment().getRequiredProperty("local.server.port"));
+    }
+}
@@ -0,0 +1,104 @@
+package uz.server.load;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.springframework.context.ConfigurableApplicationContext;
+import uz.server.domain.entity.User;
+import uz.server.repository.UserRepository;
+
+import java.io.File;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * End-to-end throughput and latency of plain forwards on localhost: starts an {@link EmbeddedServer}, connects
+ * {@link StandInAgent}s to it over {@code /server} like the CLI does, and drives the tunnel with an
+ * {@link OpenLoopGenerator} at every combination of offered rate and response size. Prints a table and writes
+ * the results as JSON.
+ * <p>
+ * Arguments are {@code key=value}. Harness options, with their defaults:
+ * <pre>
+ * rates=250,500,1000,2000   offered requests per second, one level each
+ * sizes=1024,65536          response body sizes in bytes
+ * latency=0                 milliseconds the stand-in app takes per request
+ * agents=1                  agents joined to the tunnel
+ * warmup=5 duration=15      seconds per level, the warmup is not recorded
+ * out=target/load-result.json
+ * </pre>
+ * Any other key with a dot in it is a server property, e.g. {@code tarmoqchi.scheduler.max-in-flight-per-tunnel=512}.
+ * The server, agents and generator share one JVM and machine, so the numbers are for comparing builds, not a
+ * capacity figure for production.
+ */
+public class LoadHarness {
+    private static final String TOKEN = "load-harness-token";
+    private static final String SUBDOMAIN = "load";
+
+    public static void main(String[] args) throws Exception {
+        // The tunnel is chosen by Host, which the JDK client only lets us set with this.
+        System.setProperty("jdk.httpclient.allowRestrictedHeaders", "host");
+
+        Map<String, String> options = new HashMap<>(Map.of(
+                "rates", "250,500,1000,2000",
+                "sizes", "1024,65536",
+                "latency", "0",
+                "agents", "1",
+                "warmup", "5",
+                "duration", "15",
+                "out", "target/load-result.json"));
+        ConfigurableApplicationContext context = EmbeddedServer.start(EmbeddedServer.parseArgs(args, options));
+        ScheduledExecutorService app = Executors.newScheduledThreadPool(4);
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+        ObjectMapper objectMapper = new ObjectMapper();
+        List<StandInAgent> agents = new ArrayList<>();
+
+        try {
+            context.getBean(UserRepository.class).save(User.builder().id(1L).name("load").token(TOKEN).build());
+            int port = EmbeddedServer.port(context);
+
+            for (int i = 0; i < Integer.parseInt(options.get("agents")); i++) {
+                StandInAgent agent = new StandInAgent(objectMapper, app);
+                String url = agent.connect(client, URI.create("ws://localhost:" + port + "/server"), TOKEN, SUBDOMAIN, i > 0);
+                agents.add(agent);
+                System.out.printf("Agent %d serving %s%n", i + 1, url);
+            }
+
+            OpenLoopGenerator generator = new OpenLoopGenerator(client, URI.create("http://localhost:" + port),
+                    SUBDOMAIN + ".tarmoqchi.uz");
+            Duration warmup = Duration.ofSeconds(Long.parseLong(options.get("warmup")));
+            Duration duration = Duration.ofSeconds(Long.parseLong(options.get("duration")));
+            long latency = Long.parseLong(options.get("latency"));
+            List<OpenLoopGenerator.Result> results = new ArrayList<>();
+
+            System.out.printf("%n%8s %8s %10s %10s %8s %8s %8s %8s %8s %6s %8s %7s%n", "size", "offered", "req/s",
+                    "MB/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms", "conc", "inflight", "errors");
+
+            for (String size : options.get("sizes").split(",")) {
+                for (String rate : options.get("rates").split(",")) {
+                    OpenLoopGenerator.Result result = generator.run(Integer.parseInt(rate.trim()),
+                            Integer.parseInt(size.trim()), latency, warmup, duration);
+                    results.add(result);
+                    System.out.printf("%8d %8d %10.1f %10.2f %8.2f %8.2f %8.2f %8.2f %8.2f %6.1f %8d %7d%n",
+                            result.size(), result.offeredRate(), result.throughput(), result.bytesPerSecond() / 1e6,
+                            result.p50(), result.p90(), result.p99(), result.p999(), result.max(),
+                            result.concurrency(), result.maxInFlight(), result.errors());
+                }
+            }
+
+            File out = new File(options.get("out"));
+            out.getAbsoluteFile().getParentFile().mkdirs();
+            objectMapper.enable(SerializationFeature.INDENT_OUTPUT).writeValue(out, results);
+            System.out.printf("%nResults written to %s%n", out.getAbsolutePath());
+        } finally {
+            agents.forEach(StandInAgent::close);
+            app.shutdownNow();
+            context.close();
+        }
+    }
+}
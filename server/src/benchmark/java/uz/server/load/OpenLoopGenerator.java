@@ -0,0 +1,115 @@
+package uz.server.load;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends GETs through a tunnel at a fixed rate, whether or not earlier ones have been answered, so a slow server
+ * builds up a queue the way it does under real traffic instead of slowing the generator down. Each latency is
+ * measured from the moment the request was scheduled to go out, not from when it actually went out, so time a
+ * request spent waiting behind others counts.
+ */
+class OpenLoopGenerator {
+    private final HttpClient client;
+    private final URI server;
+    private final String host;
+    private final AtomicLong sequence = new AtomicLong();
+
+    OpenLoopGenerator(HttpClient client, URI server, String host) {
+        this.client = client;
+        this.server = server;
+        this.host = host;
+    }
+
+    Result run(int rate, int size, long latencyMillis, Duration warmup, Duration duration) throws InterruptedException {
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long total = (warmup.toNanos() + duration.toNanos()) / interval;
+        long warmupCount = warmup.toNanos() / interval;
+        long[] latencies = new long[(int) (total - warmupCount)];
+        AtomicInteger recorded = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        AtomicLong bytes = new AtomicLong();
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        AtomicInteger outstanding = new AtomicInteger();
+        long start = System.nanoTime();
+
+        for (long i = 0; i < total; i++) {
+            long intended = start + i * interval;
+            long wait;
+
+            while ((wait = intended - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+
+            boolean measured = i >= warmupCount;
+            // Every request has its own path, so the server cannot coalesce them.
+            HttpRequest request = HttpRequest.newBuilder(server.resolve("/load/" + sequence.incrementAndGet()
+                            + "?size=" + size + "&latency=" + latencyMillis))
+                    .header("Host", host)
+                    .timeout(Duration.ofSeconds(30))
+                    .GET()
+                    .build();
+
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            outstanding.incrementAndGet();
+
+            client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray()).whenComplete((response, e) -> {
+                long latency = System.nanoTime() - intended;
+                inFlight.decrementAndGet();
+
+                if (measured) {
+                    if (e != null || response.statusCode() != 200 || response.body().length != size) {
+                        errors.incrementAndGet();
+                    } else {
+                        latencies[recorded.getAndIncrement()] = latency;
+                        bytes.addAndGet(response.body().length);
+                    }
+                }
+
+                outstanding.decrementAndGet();
+            });
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+
+        while (outstanding.get() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+
+        long[] ok = Arrays.copyOf(latencies, recorded.get());
+        Arrays.sort(ok);
+        double seconds = duration.toNanos() / 1e9;
+        double meanMillis = ok.length > 0 ? Arrays.stream(ok).average().orElse(0) / 1e6 : 0;
+
+        return new Result(size, latencyMillis, rate, ok.length / seconds, bytes.get() / seconds,
+                percentile(ok, 0.50), percentile(ok, 0.90), percentile(ok, 0.99), percentile(ok, 0.999),
+                ok.length > 0 ? ok[ok.length - 1] / 1e6 : 0, meanMillis * ok.length / seconds / 1000,
+                maxInFlight.get(), errors.get() + outstanding.get());
+    }
+
+    private static double percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(quantile * sorted.length) - 1)] / 1e6;
+    }
+
+    /**
+     * One load level. Latencies are in milliseconds. {@code concurrency} is the mean number of requests in
+     * flight over the run, by Little's law from the throughput and the mean latency.
+     */
+    record Result(int size, long appLatencyMillis, int offeredRate, double throughput, double bytesPerSecond,
+                  double p50, double p90, double p99, double p999, double max, double concurrency,
+                  int maxInFlight, int errors) {
+    }
+}
@@ -0,0 +1,156 @@
+package uz.server.load;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import uz.server.domain.enums.ResponseType;
+import uz.server.domain.model.ForwardTiming;
+import uz.server.domain.model.Request;
+import uz.server.domain.model.Response;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.*;
+
+/**
+ * Speaks the JSON protocol of the CLI on {@code /server}, but instead of calling a local app it answers every
+ * FORWARD itself with a single {@code RESPONSE_CHUNK_BASE64} chunk. The body size and the app latency come from
+ * the request's query, {@code ?size=<bytes>&latency=<ms>}, so a load generator can vary them per request.
+ */
+class StandInAgent implements WebSocket.Listener {
+
+    private final ObjectMapper objectMapper;
+    private final ScheduledExecutorService app;
+    private final Map<Integer, String> bodies = new ConcurrentHashMap<>();
+    private final CompletableFuture<String> created = new CompletableFuture<>();
+    private final StringBuilder text = new StringBuilder();
+    private WebSocket webSocket;
+    private CompletableFuture<WebSocket> sending;
+
+    StandInAgent(ObjectMapper objectMapper, ScheduledExecutorService app) {
+        this.objectMapper = objectMapper;
+        this.app = app;
+    }
+
+    /**
+     * @return the tunnel URL the server confirmed
+     */
+    String connect(HttpClient client, URI server, String token, String subdomain, boolean join) throws Exception {
+        webSocket = client.newWebSocketBuilder()
+                .header("Authorization", "Bearer " + token)
+                .header("Custom-Subdomain", subdomain)
+                .header("Join-Tunnel", String.valueOf(join))
+                .buildAsync(server, this)
+                .get(10, TimeUnit.SECONDS);
+        sending = CompletableFuture.completedFuture(webSocket);
+        return created.get(10, TimeUnit.SECONDS);
+    }
+
+    void close() {
+        if (webSocket != null) {
+            webSocket.sendClose(WebSocket.NORMAL_CLOSURE, "done").orTimeout(5, TimeUnit.SECONDS).exceptionally(e -> null).join();
+        }
+    }
+
+    @Override
+    public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+        text.append(data);
+
+        if (last) {
+            String message = text.toString();
+            text.setLength(0);
+            onMessage(message);
+        }
+
+        webSocket.request(1);
+        return null;
+    }
+
+    @Override
+    public void onError(WebSocket webSocket, Throwable error) {
+        created.completeExceptionally(error);
+    }
+
+    private void onMessage(String message) {
+        Request request;
+
+        try {
+            request = objectMapper.readValue(message, Request.class);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Unreadable message from server", e);
+        }
+
+        switch (request.getType()) {
+            case CREATED -> created.complete(request.getTunnelInfo().message());
+            case ERROR -> created.completeExceptionally(new IllegalStateException(request.getError()));
+            case FORWARD -> serve(request);
+            default -> {
+            }
+        }
+    }
+
+    private void serve(Request request) {
+        Map<String, String> query = parseQuery(request.getForwardInfo().getPath());
+        int size = Integer.parseInt(query.getOrDefault("size", "1024"));
+        long latency = Long.parseLong(query.getOrDefault("latency", "0"));
+        // Reports the simulated app time the way the CLI reports its local app's.
+        Map<String, String> headers = Map.of("Content-Type", "application/octet-stream",
+                ForwardTiming.AGENT_HEADER, "app;dur=" + latency);
+        Response response = new Response(request.getId(), 200, body(size), true, ResponseType.RESPONSE_CHUNK_BASE64,
+                headers, null, null);
+
+        if (latency > 0) {
+            app.schedule(() -> send(response), latency, TimeUnit.MILLISECONDS);
+        } else {
+            send(response);
+        }
+    }
+
+    private String body(int size) {
+        return bodies.computeIfAbsent(size, key -> {
+            byte[] bytes = new byte[key];
+            new Random(key).nextBytes(bytes);
+            return Base64.getEncoder().encodeToString(bytes);
+        });
+    }
+
+    /**
+     * A WebSocket allows one outstanding send at a time, so sends are chained.
+     */
+    private void send(Response response) {
+        String json;
+
+        try {
+            json = objectMapper.writeValueAsString(response);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+
+        synchronized (this) {
+            sending = sending.thenCompose(ws -> ws.sendText(json, true));
+        }
+    }
+
+    private static Map<String, String> parseQuery(String path) {
+        int start = path.indexOf('?');
+        Map<String, String> query = new HashMap<>();
+
+        if (start < 0) {
+            return query;
+        }
+
+        for (String pair : path.substring(start + 1).split("&")) {
+            int separator = pair.indexOf('=');
+
+            if (separator > 0) {
+                query.put(pair.substring(0, separator), pair.substring(separator + 1));
+            }
+        }
+
+        return query;
+    }
+}
@@ -0,0 +1,77 @@
+package uz.server.load;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The agent side of {@link ConnectionStorm}, run in its own JVM so the server's heap holds only server-side
+ * session state. Reads {@code connect}, {@code close} and {@code exit} commands on stdin and answers each
+ * with one line of JSON on stdout.
+ */
+public class StormClients {
+    public static void main(String[] args) throws Exception {
+        URI server = URI.create("ws://localhost:" + args[0] + "/server");
+        int sessions = Integer.parseInt(args[1]);
+        ExecutorService pool = Executors.newFixedThreadPool(Integer.parseInt(args[2]));
+        HttpClient client = HttpClient.newHttpClient();
+        ObjectMapper objectMapper = new ObjectMapper();
+        List<StandInAgent> agents = new CopyOnWriteArrayList<>();
+        BufferedReader commands = new BufferedReader(new InputStreamReader(System.in));
+        String command;
+
+        while ((command = commands.readLine()) != null && !command.equals("exit")) {
+            long start = System.nanoTime();
+            Map<String, Object> answer = new HashMap<>();
+
+            if (command.equals("connect")) {
+                List<Future<Long>> connects = new ArrayList<>();
+
+                for (int i = 0; i < sessions; i++) {
+                    int index = i;
+                    connects.add(pool.submit(() -> {
+                        long began = System.nanoTime();
+                        StandInAgent agent = new StandInAgent(objectMapper, null);
+                        agent.connect(client, server, ConnectionStorm.token(index), "storm" + index, false);
+                        agents.add(agent);
+                        return System.nanoTime() - began;
+                    }));
+                }
+
+                List<Double> latencies = new ArrayList<>();
+                int failures = 0;
+
+                for (Future<Long> connect : connects) {
+                    try {
+                        latencies.add(connect.get() / 1e6);
+                    } catch (ExecutionException e) {
+                        failures++;
+                    }
+                }
+
+                answer.put("latencies", latencies);
+                answer.put("failures", failures);
+            } else if (command.equals("close")) {
+                List<Future<?>> closes = new ArrayList<>();
+                agents.forEach(agent -> closes.add(pool.submit(agent::close)));
+
+                for (Future<?> close : closes) {
+                    close.get();
+                }
+
+                answer.put("closed", agents.size());
+                agents.clear();
+            }
+
+            answer.put("elapsed", (System.nanoTime() - start) / 1e9);
+            System.out.println(objectMapper.writeValueAsString(answer));
+        }
+
+        pool.shutdownNow();
+    }
+}
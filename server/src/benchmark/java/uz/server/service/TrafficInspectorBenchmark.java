@@ -0,0 +1,87 @@
+package uz.server.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import uz.server.domain.enums.ResponseType;
+import uz.server.domain.model.Response;
+import uz.server.ws.TunnelHolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the traffic inspector adds to a forward: wrapping the request body, reading it through the wrapper, and
+ * writing the record into the tunnel's ring, from one thread and from four threads sharing the ring. The
+ * {@code baseline} benchmarks read the same body unwrapped, so the difference is the inspector's cost.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrafficInspectorBenchmark {
+    @Param({"0", "256"})
+    public int previewSize;
+
+    private TrafficInspector inspector;
+    private final byte[] requestBody = new byte[1024];
+    private final byte[] readBuffer = new byte[4096];
+    private final Response response = new Response("id", 200, null, true, ResponseType.RESPONSE_CHUNK, Map.of(),
+            new byte[4096], null);
+    private final Map<String, Double> stages = new LinkedHashMap<>();
+
+    @Setup
+    public void setUp() {
+        TunnelHolder tunnelHolder = new TunnelHolder();
+        tunnelHolder.add("app", "session", 1L, null);
+        inspector = new TrafficInspector(tunnelHolder, new SimpleMeterRegistry(), true, 1024, previewSize, 16);
+
+        stages.put("queue", 0.05);
+        stages.put("send", 0.02);
+        stages.put("tunnel", 1.8);
+        stages.put("app", 1.2);
+        stages.put("reassembly", 0.01);
+        stages.put("total", 1.9);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long baseline() throws IOException {
+        return drain(new ByteArrayInputStream(requestBody));
+    }
+
+    @Benchmark
+    @Threads(1)
+    public long record() throws IOException {
+        return inspect();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long recordContended() throws IOException {
+        return inspect();
+    }
+
+    private long inspect() throws IOException {
+        InputStream body = inspector.inspect(new ByteArrayInputStream(requestBody));
+        long read = drain(body);
+        inspector.record("app", "POST", "/api/orders/42?expand=items", body, response, null, stages);
+        return read;
+    }
+
+    private long drain(InputStream body) throws IOException {
+        long total = 0;
+        int read;
+
+        while ((read = body.read(readBuffer)) > 0) {
+            total += read;
+        }
+
+        return total;
+    }
+}
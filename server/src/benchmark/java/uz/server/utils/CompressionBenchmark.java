@@ -0,0 +1,74 @@
+package uz.server.utils;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of preparing a 64KB body fragment for an agent: base64 for a JSON text frame (what the JSON protocol
+ * does for binary bodies), raw for a binary frame, and gzip for a binary frame on a session that negotiated
+ * {@code Tunnel-Encoding: gzip}. The wire size of each is printed once per trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+    private static final int FRAGMENT_SIZE = 64 * 1024;
+
+    @Param({"json", "html", "binary"})
+    public String payload;
+
+    private byte[] body;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+
+        if (payload.equals("binary")) {
+            body = new byte[FRAGMENT_SIZE];
+            random.nextBytes(body);
+        } else {
+            StringBuilder builder = new StringBuilder();
+
+            while (builder.length() < FRAGMENT_SIZE) {
+                if (payload.equals("json")) {
+                    builder.append("{\"id\":").append(random.nextInt(1_000_000))
+                            .append(",\"name\":\"user").append(random.nextInt(10_000))
+                            .append("\",\"active\":").append(random.nextBoolean())
+                            .append(",\"balance\":").append(random.nextInt(100_000) / 100.0).append("},");
+                } else {
+                    builder.append("<tr class=\"row\"><td><a href=\"/items/").append(random.nextInt(100_000))
+                            .append("\">Item ").append(random.nextInt(100_000)).append("</a></td><td>")
+                            .append(random.nextInt(1000)).append(" so'm</td></tr>\n");
+                }
+            }
+
+            body = Arrays.copyOf(builder.toString().getBytes(StandardCharsets.UTF_8), FRAGMENT_SIZE);
+        }
+
+        System.out.printf("%n%s: raw=%d base64=%d gzip=%d bytes%n", payload, body.length,
+                Base64.getEncoder().encode(body).length, Compression.gzip(body, body.length).length);
+    }
+
+    @Benchmark
+    public byte[] base64() {
+        return Base64.getEncoder().encode(body);
+    }
+
+    @Benchmark
+    public byte[] raw() {
+        return Arrays.copyOf(body, body.length);
+    }
+
+    @Benchmark
+    public byte[] gzip() {
+        return Compression.gzip(body, body.length);
+    }
+}
@@ -0,0 +1,141 @@
+package uz.server.utils;
+
+import org.openjdk.jmh.annotations.*;
+import uz.server.domain.enums.FrameType;
+import uz.server.domain.model.Frame;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Header frames of a browser page load through a tunnel: the document, its stylesheets, scripts, images and a
+ * few API calls, each request with the headers Chrome sends and each response with what a typical app answers.
+ * {@code literal} encodes them the way binary sessions do without header compression, {@code hpack} through
+ * one pair of {@link HeaderTable}s as a session with {@code Tunnel-Header-Encoding: hpack} does. The wire size
+ * of the first and of a second page load is printed once per trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderEncodingBenchmark {
+    private static final String USER_AGENT = "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 "
+            + "(KHTML, like Gecko) Chrome/124.0.0.0 Safari/537.36";
+    private static final String COOKIE = "_ga=GA1.1.1983617023.1714041234; sessionid=k2v9x0q8m3n7b1z5c4l6j0h2g8f4d1s3;"
+            + " csrftoken=Qm9Ld2N2b3B0aW9uYWxUb2tlblZhbHVlMTIzNDU2; theme=dark";
+
+    private final FrameCodec frameCodec = new FrameCodec();
+    private List<Frame> pageLoad;
+
+    @Setup
+    public void setUp() {
+        pageLoad = new ArrayList<>();
+        pageLoad.add(request("/", "text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,*/*;q=0.8", "document"));
+        pageLoad.add(response("text/html; charset=utf-8", "no-cache", 18_204));
+
+        for (int i = 0; i < 4; i++) {
+            pageLoad.add(request("/static/css/app." + i + ".a81f3c.css", "text/css,*/*;q=0.1", "style"));
+            pageLoad.add(response("text/css", "public, max-age=31536000, immutable", 12_000 + i));
+        }
+
+        for (int i = 0; i < 8; i++) {
+            pageLoad.add(request("/static/js/chunk-" + i + ".4be29d.js", "*/*", "script"));
+            pageLoad.add(response("application/javascript", "public, max-age=31536000, immutable", 40_000 + i));
+        }
+
+        for (int i = 0; i < 12; i++) {
+            pageLoad.add(request("/media/products/" + (1000 + i) + ".webp", "image/avif,image/webp,image/apng,image/*,*/*;q=0.8", "image"));
+            pageLoad.add(response("image/webp", "public, max-age=86400", 9_000 + i));
+        }
+
+        for (int i = 0; i < 5; i++) {
+            pageLoad.add(request("/api/v1/cart?page=" + i, "application/json", "empty"));
+            pageLoad.add(response("application/json", "no-store", 512 + i));
+        }
+
+        HeaderTable outbound = new HeaderTable();
+        HeaderTable inbound = new HeaderTable();
+        System.out.printf("%nliteral=%d hpack first load=%d hpack second load=%d bytes%n",
+                literal(), encode(outbound, inbound), encode(outbound, inbound));
+    }
+
+    @Benchmark
+    public long literal() {
+        long bytes = 0;
+
+        for (Frame frame : pageLoad) {
+            bytes += frameCodec.encode(frame).remaining();
+        }
+
+        return bytes;
+    }
+
+    @Benchmark
+    public long hpack() {
+        return encode(new HeaderTable(), new HeaderTable());
+    }
+
+    private long encode(HeaderTable outbound, HeaderTable inbound) {
+        long bytes = 0;
+
+        for (Frame frame : pageLoad) {
+            bytes += frameCodec.encode(frame, frame.getMethod() != null ? outbound : inbound).remaining();
+        }
+
+        return bytes;
+    }
+
+    private static Frame request(String path, String accept, String destination) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("host", "shop.tarmoqchi.uz");
+        headers.put("sec-ch-ua", "\"Chromium\";v=\"124\", \"Google Chrome\";v=\"124\", \"Not-A.Brand\";v=\"99\"");
+        headers.put("sec-ch-ua-mobile", "?0");
+        headers.put("sec-ch-ua-platform", "\"Windows\"");
+        headers.put("user-agent", USER_AGENT);
+        headers.put("accept", accept);
+        headers.put("sec-fetch-site", destination.equals("document") ? "none" : "same-origin");
+        headers.put("sec-fetch-mode", destination.equals("document") ? "navigate" : "no-cors");
+        headers.put("sec-fetch-dest", destination);
+        headers.put("referer", "https://shop.tarmoqchi.uz/");
+        headers.put("accept-encoding", "gzip, deflate, br, zstd");
+        headers.put("accept-language", "uz-UZ,uz;q=0.9,ru;q=0.8,en-US;q=0.7,en;q=0.6");
+        headers.put("cookie", COOKIE);
+        headers.put("x-forwarded-for", "203.0.113.24");
+        headers.put("x-forwarded-proto", "https");
+
+        return Frame.builder()
+                .type(FrameType.HEADERS)
+                .flags(Frame.END_STREAM)
+                .requestId(UUID.randomUUID().toString())
+                .method("GET")
+                .path(path)
+                .headers(headers)
+                .build();
+    }
+
+    private static Frame response(String contentType, String cacheControl, int length) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("content-type", contentType);
+        headers.put("content-length", String.valueOf(length));
+        headers.put("cache-control", cacheControl);
+        headers.put("date", "Sat, 17 Oct 2026 09:12:44 GMT");
+        headers.put("etag", "W/\"" + Integer.toHexString(length * 31) + "\"");
+        headers.put("vary", "Accept-Encoding");
+        headers.put("x-content-type-options", "nosniff");
+        headers.put("server", "nginx/1.24.0");
+
+        return Frame.builder()
+                .type(FrameType.HEADERS)
+                .requestId(UUID.randomUUID().toString())
+                .status(200)
+                .headers(headers)
+                .body(new byte[0])
+                .build();
+    }
+}
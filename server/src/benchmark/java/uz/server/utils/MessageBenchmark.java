@@ -0,0 +1,90 @@
+package uz.server.utils;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import uz.server.domain.enums.RequestType;
+import uz.server.domain.enums.ResponseType;
+import uz.server.domain.model.ForwardInfo;
+import uz.server.domain.model.Request;
+import uz.server.domain.model.Response;
+
+import java.util.Base64;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON protocol work per forwarded message: serializing a request for the agent, and parsing and validating
+ * an agent response with a text or a base64 body, including the base64 decoding on its own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+    private static final Map<String, String> HEADERS = Map.of(
+            "Content-Type", "application/json",
+            "Cache-Control", "no-store",
+            "Date", "Sat, 17 Oct 2026 09:12:44 GMT",
+            "Vary", "Accept-Encoding");
+
+    @Param({"1024", "65536", "1048576"})
+    public int size;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Utils utils = new Utils(objectMapper);
+    private Request request;
+    private String textResponse;
+    private String base64Response;
+    private String base64Body;
+
+    @Setup
+    public void setUp() throws JsonProcessingException {
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder(size);
+
+        while (text.length() < size) {
+            text.append("{\"id\":").append(random.nextInt(1_000_000)).append(",\"name\":\"item\"},");
+        }
+
+        text.setLength(size);
+        byte[] binary = new byte[size];
+        random.nextBytes(binary);
+        base64Body = Base64.getEncoder().encodeToString(binary);
+        String requestId = UUID.randomUUID().toString();
+
+        request = Request.builder()
+                .id(requestId)
+                .type(RequestType.FORWARD)
+                .forwardInfo(ForwardInfo.builder().method("POST").path("/api/items").headers(HEADERS).body(text.toString()).build())
+                .build();
+        textResponse = objectMapper.writeValueAsString(
+                new Response(requestId, 200, text.toString(), true, ResponseType.RESPONSE_CHUNK, HEADERS, null, null));
+        base64Response = objectMapper.writeValueAsString(
+                new Response(requestId, 200, base64Body, true, ResponseType.RESPONSE_CHUNK_BASE64, HEADERS, null, null));
+    }
+
+    @Benchmark
+    public String parseToJson() {
+        return utils.parseToJson(request);
+    }
+
+    @Benchmark
+    public Response parseTextResponse() throws JsonProcessingException {
+        return utils.parseAndValidateResponse("session", textResponse);
+    }
+
+    @Benchmark
+    public Response parseBase64Response() throws JsonProcessingException {
+        return utils.parseAndValidateResponse("session", base64Response);
+    }
+
+    @Benchmark
+    public byte[] decodeBase64() {
+        return Base64.getDecoder().decode(base64Body);
+    }
+}
@@ -0,0 +1,237 @@
+package uz.server.ws;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.HttpHeaders;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.socket.*;
+import uz.server.domain.enums.OverflowPolicy;
+import uz.server.domain.enums.RequestType;
+import uz.server.domain.enums.ResponseType;
+import uz.server.domain.model.ForwardInfo;
+import uz.server.domain.model.Frame;
+import uz.server.domain.model.Request;
+import uz.server.domain.model.Response;
+import uz.server.service.TunnelService;
+import uz.server.utils.FrameCodec;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.security.Principal;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Message round trip through a passthrough stream: a public client message is framed, queued on the agent
+ * session's outbox and written by its writer thread to a stand-in agent, which echoes it straight back as the
+ * local app would; the echo is then delivered to the public client. No network is involved, so this is the
+ * relay's own latency per message.
+ * <p>
+ * {@code frames} and {@code jsonEnvelope} compare just the per-message encoding work in both directions
+ * against wrapping each message in the JSON request/response envelope of plain forwards.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PassthroughBenchmark {
+    private static final String AGENT = "agent";
+
+    @Param({"64", "4096"})
+    public int size;
+
+    private final FrameCodec frameCodec = new FrameCodec();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private ThreadPoolTaskExecutor executor;
+    private PassthroughHandler handler;
+    private StubSession client;
+    private volatile CompletableFuture<WebSocketMessage<?>> echo;
+    private String streamId;
+    private TextMessage message;
+
+    @Setup
+    public void setUp() throws Exception {
+        executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(4);
+        executor.initialize();
+
+        SessionHolder sessionHolder = new SessionHolder();
+        Sender sender = new Sender(sessionHolder, executor, frameCodec);
+        ReflectionTestUtils.setField(sender, "maxMessages", 1024);
+        ReflectionTestUtils.setField(sender, "maxBytes", DataSize.ofMegabytes(64));
+        ReflectionTestUtils.setField(sender, "overflowPolicy", OverflowPolicy.REJECT);
+        ReflectionTestUtils.setField(sender, "bodyWait", Duration.ofSeconds(30));
+
+        TunnelHolder tunnelHolder = new TunnelHolder();
+        tunnelHolder.add("app", AGENT, 1L, null);
+        TunnelService tunnelService = new TunnelService(null, tunnelHolder, null, null, null, null, null);
+        handler = new PassthroughHandler(sender, sessionHolder, tunnelService, frameCodec,
+                Duration.ofSeconds(10), DataSize.ofMegabytes(1));
+
+        StubSession agent = new StubSession(AGENT, this::answerAsAgent);
+        agent.getAttributes().put(FrameCodec.PROTOCOL_HEADER, FrameCodec.PROTOCOL);
+        sessionHolder.addSession(AGENT, agent);
+
+        PassthroughStream stream = handler.open("app", "/ws", Map.of());
+        stream.getOpened().get(1, TimeUnit.SECONDS);
+        streamId = stream.getId();
+
+        client = new StubSession("client", message -> echo.complete(message));
+        client.getAttributes().put(PassthroughHandler.STREAM_ATTRIBUTE, streamId);
+        handler.afterConnectionEstablished(client);
+
+        message = new TextMessage("x".repeat(size));
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public WebSocketMessage<?> roundTrip() throws Exception {
+        echo = new CompletableFuture<>();
+        handler.handleMessage(client, message);
+        return echo.get(1, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public Frame frames() throws IOException {
+        Frame up = frameCodec.decode(frameCodec.encode(frameCodec.wsMessage(streamId, message.asBytes(), true)));
+        return frameCodec.decode(frameCodec.encode(frameCodec.wsMessage(streamId, up.getBody(), true)));
+    }
+
+    @Benchmark
+    public Response jsonEnvelope() throws IOException {
+        Request up = Request.builder()
+                .id(streamId)
+                .type(RequestType.FORWARD)
+                .forwardInfo(ForwardInfo.builder().method("POST").path("/ws").headers(Map.of()).body(message.getPayload()).build())
+                .build();
+        Request received = objectMapper.readValue(objectMapper.writeValueAsString(up), Request.class);
+        Response down = new Response(streamId, 200, received.getForwardInfo().getBody(), true,
+                ResponseType.RESPONSE_CHUNK, Map.of(), null, null);
+        return objectMapper.readValue(objectMapper.writeValueAsString(down), Response.class);
+    }
+
+    private void answerAsAgent(WebSocketMessage<?> message) {
+        try {
+            Frame frame = frameCodec.decode(((BinaryMessage) message).getPayload());
+
+            switch (frame.getType()) {
+                case WS_OPEN -> handler.onFrame(Frame.builder()
+                        .type(frame.getType())
+                        .requestId(frame.getRequestId())
+                        .status(101)
+                        .headers(Map.of())
+                        .build(), AGENT);
+                case WS_MESSAGE -> handler.onFrame(
+                        frameCodec.wsMessage(frame.getRequestId(), frame.getBody(), frame.isText()), AGENT);
+                default -> {
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class StubSession implements WebSocketSession {
+        private final String id;
+        private final Consumer<WebSocketMessage<?>> onMessage;
+        private final Map<String, Object> attributes = new HashMap<>();
+
+        private StubSession(String id, Consumer<WebSocketMessage<?>> onMessage) {
+            this.id = id;
+            this.onMessage = onMessage;
+        }
+
+        @Override
+        public String getId() {
+            return id;
+        }
+
+        @Override
+        public URI getUri() {
+            return null;
+        }
+
+        @Override
+        public HttpHeaders getHandshakeHeaders() {
+            return new HttpHeaders();
+        }
+
+        @Override
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        @Override
+        public Principal getPrincipal() {
+            return null;
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return null;
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return null;
+        }
+
+        @Override
+        public String getAcceptedProtocol() {
+            return null;
+        }
+
+        @Override
+        public void setTextMessageSizeLimit(int messageSizeLimit) {
+        }
+
+        @Override
+        public int getTextMessageSizeLimit() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public void setBinaryMessageSizeLimit(int messageSizeLimit) {
+        }
+
+        @Override
+        public int getBinaryMessageSizeLimit() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public List<WebSocketExtension> getExtensions() {
+            return List.of();
+        }
+
+        @Override
+        public void sendMessage(WebSocketMessage<?> message) {
+            onMessage.accept(message);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void close(CloseStatus status) {
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package uz.server.ws;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.util.unit.DataSize;
+import uz.server.domain.enums.ResponseType;
+import uz.server.domain.model.Response;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reassembling a 256KB agent response from chunks in {@link ResponseHolder}, from the first chunk to the
+ * completed body.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReassemblyBenchmark {
+    private static final int RESPONSE_SIZE = 256 * 1024;
+    private static final String REQUEST_ID = "request";
+
+    @Param({"1", "16", "256"})
+    public int chunks;
+
+    private final ResponseHolder responseHolder = new ResponseHolder(DataSize.ofMegabytes(10));
+    private Response[] tail;
+    private byte[] chunk;
+
+    @Setup
+    public void setUp() {
+        chunk = new byte[RESPONSE_SIZE / chunks];
+        tail = new Response[chunks - 1];
+
+        for (int i = 0; i < tail.length; i++) {
+            tail[i] = chunk(i == tail.length - 1);
+        }
+    }
+
+    @Benchmark
+    public Response reassemble() {
+        // Completing sets the whole body on the first chunk, so it cannot be reused.
+        responseHolder.add("session", chunk(chunks == 1));
+
+        for (Response response : tail) {
+            responseHolder.add("session", response);
+        }
+
+        return responseHolder.complete(REQUEST_ID);
+    }
+
+    private Response chunk(boolean last) {
+        Response response = new Response(REQUEST_ID, 200, null, last, ResponseType.RESPONSE_CHUNK,
+                Map.of("Content-Type", "application/octet-stream"), null, null);
+        response.setData(chunk);
+        return response;
+    }
+}
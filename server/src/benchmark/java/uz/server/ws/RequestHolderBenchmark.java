@@ -0,0 +1,51 @@
+package uz.server.ws;
+
+import org.openjdk.jmh.annotations.*;
+import uz.server.domain.enums.ResponseType;
+import uz.server.domain.model.Response;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registering a pending forward and completing it with the agent's answer, from one thread and from eight
+ * threads sharing the {@link RequestHolder}, the way request threads and agent receive threads do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestHolderBenchmark {
+    private final RequestHolder requestHolder = new RequestHolder();
+
+    @State(Scope.Thread)
+    public static class Ids {
+        private final String prefix = Long.toHexString(ThreadLocalRandom.current().nextLong()) + "-";
+        private long next;
+
+        String next() {
+            return prefix + next++;
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean addAndComplete(Ids ids) {
+        return roundTrip(ids.next());
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean addAndCompleteContended(Ids ids) {
+        return roundTrip(ids.next());
+    }
+
+    private boolean roundTrip(String id) {
+        requestHolder.add(id, "session", new CompletableFuture<>());
+        return requestHolder.complete(new Response(id, 200, null, true, ResponseType.RESPONSE_CHUNK, Map.of(), null, null));
+    }
+}
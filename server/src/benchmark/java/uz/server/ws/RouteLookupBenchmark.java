@@ -0,0 +1,59 @@
+package uz.server.ws;
+
+import org.openjdk.jmh.annotations.*;
+import uz.server.utils.Utils;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-request cost of resolving the agent session from the Host header, compared with the regex split the
+ * controller used before. The database lookup it replaces costs a round trip to Postgres on top of this.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RouteLookupBenchmark {
+    @Param({"10000"})
+    public int tunnels;
+
+    private final TunnelHolder tunnelHolder = new TunnelHolder();
+    private String[] hosts;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        hosts = new String[1024];
+
+        for (int i = 0; i < tunnels; i++) {
+            String subdomain = "tunnel" + i;
+            tunnelHolder.add(subdomain, UUID.randomUUID().toString(), (long) i, null);
+
+            if (i < hosts.length) {
+                hosts[i] = subdomain + ".tarmoqchi.uz";
+            }
+        }
+    }
+
+    @Benchmark
+    public String lookup() {
+        String host = hosts[next++ & (hosts.length - 1)];
+        String sessionId = tunnelHolder.acquire(Utils.getSubdomain(host));
+        tunnelHolder.release(sessionId);
+        return sessionId;
+    }
+
+    @Benchmark
+    public String parseHost() {
+        return Utils.getSubdomain(hosts[next++ & (hosts.length - 1)]);
+    }
+
+    @Benchmark
+    public String parseHostWithSplit() {
+        String[] split = hosts[next++ & (hosts.length - 1)].split("\\.");
+        return split.length == 3 ? split[0] : "";
+    }
+}
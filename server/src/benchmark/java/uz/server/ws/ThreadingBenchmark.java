@@ -0,0 +1,95 @@
+package uz.server.ws;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds {@code inFlight} streamed responses open at once, each written by its own async task as the agent
+ * would deliver chunks, and compares the executors the server can run them on:
+ * <ul>
+ *     <li>{@code pool} - the bounded platform pool from application.yml</li>
+ *     <li>{@code platform} - one platform thread per in-flight response</li>
+ *     <li>{@code virtual} - one virtual thread per in-flight response (JDK 21+)</li>
+ * </ul>
+ * Run with {@code -prof gc} to compare allocation per batch alongside throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xss512k"})
+public class ThreadingBenchmark {
+    private static final byte[] CHUNK = new byte[1024];
+
+    @Param({"pool", "platform", "virtual"})
+    public String mode;
+
+    @Param({"10000"})
+    public int inFlight;
+
+    @Param({"4"})
+    public int chunks;
+
+    private AsyncTaskExecutor executor;
+
+    @Setup
+    public void setUp() {
+        switch (mode) {
+            case "pool" -> {
+                ThreadPoolTaskExecutor pool = new ThreadPoolTaskExecutor();
+                pool.setCorePoolSize(256);
+                pool.setAllowCoreThreadTimeOut(true);
+                pool.initialize();
+                executor = pool;
+            }
+            case "platform" -> executor = new SimpleAsyncTaskExecutor("platform-");
+            case "virtual" -> {
+                SimpleAsyncTaskExecutor virtual = new SimpleAsyncTaskExecutor("virtual-");
+                virtual.setVirtualThreads(true);
+                executor = virtual;
+            }
+            default -> throw new IllegalArgumentException(mode);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (executor instanceof ThreadPoolTaskExecutor pool) {
+            pool.shutdown();
+        }
+    }
+
+    @Benchmark
+    public void streamInFlightResponses() throws Exception {
+        ResponseStream[] streams = new ResponseStream[inFlight];
+        CountDownLatch done = new CountDownLatch(inFlight);
+
+        for (int i = 0; i < inFlight; i++) {
+            ResponseStream stream = new ResponseStream("request-" + i, "session", Long.MAX_VALUE, 60_000, done::countDown, () -> { });
+            streams[i] = stream;
+            executor.execute(() -> {
+                try {
+                    stream.writeTo(OutputStream.nullOutputStream());
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+
+        for (int chunk = 1; chunk <= chunks; chunk++) {
+            for (ResponseStream stream : streams) {
+                stream.offer(CHUNK, chunk == chunks);
+            }
+        }
+
+        done.await();
+    }
+}
@@ -3,6 +3,7 @@ package uz.server;
 import com.moandjiezana.toml.Toml;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 import java.io.File;
 import java.util.Arrays;
@@ -10,6 +11,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 @SpringBootApplication
+@EnableScheduling
 public class ServerApplication {
     public static void main(String[] args) {
         String path = Arrays.stream(args).filter(s -> s.startsWith("--config=")).findFirst().orElseThrow(
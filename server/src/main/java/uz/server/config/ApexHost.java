@@ -0,0 +1,15 @@
+package uz.server.config;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Maps a controller only on the server's own host, see {@link ApexHostCondition}. On a tunnel subdomain its
+ * paths go to the tunneled app like any other path.
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ApexHost {
+}
@@ -0,0 +1,32 @@
+package uz.server.config;
+
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.web.servlet.mvc.condition.RequestCondition;
+import uz.server.service.ClusterService;
+import uz.server.utils.Utils;
+
+/**
+ * Matches requests for the server itself: a Host without a tunnel subdomain, or {@code www}. A request relayed
+ * by another node of the cluster is for a tunnel whatever its Host, so it never matches.
+ */
+public class ApexHostCondition implements RequestCondition<ApexHostCondition> {
+    @Override
+    public ApexHostCondition combine(ApexHostCondition other) {
+        return this;
+    }
+
+    @Override
+    public ApexHostCondition getMatchingCondition(HttpServletRequest request) {
+        if (request.getHeader(ClusterService.RELAY_SUBDOMAIN_HEADER) != null) {
+            return null;
+        }
+
+        String subdomain = Utils.getSubdomain(request.getHeader("Host"));
+        return subdomain.isEmpty() || subdomain.equals("www") ? this : null;
+    }
+
+    @Override
+    public int compareTo(ApexHostCondition other, HttpServletRequest request) {
+        return 0;
+    }
+}
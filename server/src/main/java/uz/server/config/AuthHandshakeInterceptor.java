@@ -7,6 +7,9 @@ import org.springframework.http.server.ServerHttpResponse;
 import org.springframework.stereotype.Component;
 import org.springframework.web.socket.WebSocketHandler;
 import org.springframework.web.socket.server.HandshakeInterceptor;
+import uz.server.utils.Compression;
+import uz.server.utils.FrameCodec;
+import uz.server.utils.HeaderTable;
 
 @Component
 public class AuthHandshakeInterceptor implements HandshakeInterceptor {
@@ -29,6 +32,22 @@ public class AuthHandshakeInterceptor implements HandshakeInterceptor {
             attributes.put("Custom-Subdomain", customSubdomain);
         }
 
+        if (FrameCodec.PROTOCOL.equalsIgnoreCase(request.getHeaders().getFirst(FrameCodec.PROTOCOL_HEADER))) {
+            attributes.put(FrameCodec.PROTOCOL_HEADER, FrameCodec.PROTOCOL);
+            response.getHeaders().set(FrameCodec.PROTOCOL_HEADER, FrameCodec.PROTOCOL);
+
+            if (Compression.GZIP.equalsIgnoreCase(request.getHeaders().getFirst(Compression.ENCODING_HEADER))) {
+                attributes.put(Compression.ENCODING_HEADER, Compression.GZIP);
+                response.getHeaders().set(Compression.ENCODING_HEADER, Compression.GZIP);
+            }
+
+            if (HeaderTable.HPACK.equalsIgnoreCase(request.getHeaders().getFirst(HeaderTable.ENCODING_HEADER))) {
+                attributes.put(HeaderTable.OUTBOUND_ATTRIBUTE, new HeaderTable());
+                attributes.put(HeaderTable.INBOUND_ATTRIBUTE, new HeaderTable());
+                response.getHeaders().set(HeaderTable.ENCODING_HEADER, HeaderTable.HPACK);
+            }
+        }
+
         return true;
     }
 
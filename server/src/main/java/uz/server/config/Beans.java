@@ -1,10 +1,14 @@
 package uz.server.config;
 
+import org.springframework.boot.autoconfigure.web.servlet.WebMvcRegistrations;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.annotation.AnnotatedElementUtils;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.servlet.config.annotation.CorsRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+import org.springframework.web.servlet.mvc.condition.RequestCondition;
+import org.springframework.web.servlet.mvc.method.annotation.RequestMappingHandlerMapping;
 
 @Configuration
 public class Beans {
@@ -26,4 +30,22 @@ public class Beans {
       }
     };
   }
+
+    /**
+     * Lets controllers marked with {@link ApexHost} stay off tunnel subdomains.
+     */
+    @Bean
+    public WebMvcRegistrations apexHostRegistrations() {
+        return new WebMvcRegistrations() {
+            @Override
+            public RequestMappingHandlerMapping getRequestMappingHandlerMapping() {
+                return new RequestMappingHandlerMapping() {
+                    @Override
+                    protected RequestCondition<?> getCustomTypeCondition(Class<?> handlerType) {
+                        return AnnotatedElementUtils.hasAnnotation(handlerType, ApexHost.class) ? new ApexHostCondition() : null;
+                    }
+                };
+            }
+        };
+    }
 }
@@ -0,0 +1,88 @@
+package uz.server.config;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.SubProtocolCapable;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.server.HandshakeFailureException;
+import org.springframework.web.socket.server.HandshakeHandler;
+import org.springframework.web.socket.server.support.DefaultHandshakeHandler;
+import uz.server.ws.PassthroughHandler;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Completes passthrough upgrades with the subprotocol the local app chose, and drops the agent's side of the
+ * stream when the upgrade fails after the app already accepted it.
+ */
+@Component
+@RequiredArgsConstructor
+public class PassthroughHandshakeHandler implements HandshakeHandler {
+    private final DefaultHandshakeHandler delegate = new DefaultHandshakeHandler();
+    private final PassthroughHandler passthroughHandler;
+
+    @Override
+    public boolean doHandshake(
+        ServerHttpRequest request,
+        ServerHttpResponse response,
+        WebSocketHandler wsHandler,
+        Map<String, Object> attributes
+    ) throws HandshakeFailureException {
+        String streamId = (String) attributes.get(PassthroughHandler.STREAM_ATTRIBUTE);
+        String protocol = (String) attributes.get(PassthroughHandshakeInterceptor.PROTOCOL_ATTRIBUTE);
+        boolean upgraded = false;
+
+        try {
+            upgraded = delegate.doHandshake(request, response,
+                    protocol != null ? new SelectedProtocol(wsHandler, protocol) : wsHandler, attributes);
+            return upgraded;
+        } finally {
+            if (!upgraded && streamId != null) {
+                passthroughHandler.abandon(streamId);
+            }
+        }
+    }
+
+    /**
+     * The handshake picks a requested subprotocol the handler declares, so the handler declares exactly the
+     * one the local app picked.
+     */
+    private record SelectedProtocol(WebSocketHandler handler, String protocol) implements WebSocketHandler, SubProtocolCapable {
+        @Override
+        public List<String> getSubProtocols() {
+            return List.of(protocol.toLowerCase(Locale.ROOT));
+        }
+
+        @Override
+        public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+            handler.afterConnectionEstablished(session);
+        }
+
+        @Override
+        public void handleMessage(WebSocketSession session, WebSocketMessage<?> message) throws Exception {
+            handler.handleMessage(session, message);
+        }
+
+        @Override
+        public void handleTransportError(WebSocketSession session, Throwable exception) throws Exception {
+            handler.handleTransportError(session, exception);
+        }
+
+        @Override
+        public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) throws Exception {
+            handler.afterConnectionClosed(session, closeStatus);
+        }
+
+        @Override
+        public boolean supportsPartialMessages() {
+            return handler.supportsPartialMessages();
+        }
+    }
+}
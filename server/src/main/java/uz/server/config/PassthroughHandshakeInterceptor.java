@@ -0,0 +1,163 @@
+package uz.server.config;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.server.HandshakeInterceptor;
+import uz.server.domain.exception.BaseException;
+import uz.server.domain.model.Frame;
+import uz.server.service.TunnelService;
+import uz.server.utils.Utils;
+import uz.server.ws.PassthroughHandler;
+import uz.server.ws.PassthroughStream;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Lets a public WebSocket upgrade on a tunnel subdomain through only once the agent reports that the local app
+ * accepted it, so the app's own answer (a 401, a 404, its choice of subprotocol) reaches the client.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class PassthroughHandshakeInterceptor implements HandshakeInterceptor {
+    public static final String PROTOCOL_ATTRIBUTE = "Passthrough-Protocol";
+
+    // The agent runs its own handshake with the local app, so the key, version and extensions are not passed on.
+    private static final Set<String> HANDSHAKE_HEADERS = Set.of(
+        "host",
+        "connection",
+        "upgrade",
+        "content-length",
+        "transfer-encoding",
+        "sec-websocket-key",
+        "sec-websocket-version",
+        "sec-websocket-extensions",
+        "tunnel-relay-secret",
+        "tunnel-relay-subdomain"
+    );
+
+    private final PassthroughHandler passthroughHandler;
+    private final TunnelService tunnelService;
+
+    @Value("${tarmoqchi.passthrough.open-timeout}")
+    private Duration openTimeout;
+
+    @Override
+    public boolean beforeHandshake(
+        ServerHttpRequest request,
+        ServerHttpResponse response,
+        WebSocketHandler wsHandler,
+        Map<String, Object> attributes
+    ) throws IOException {
+        String subdomain = Utils.getSubdomain(request.getHeaders().getFirst("Host"));
+
+        if (subdomain.isEmpty() || subdomain.equals("www") || !tunnelService.isLocal(subdomain)) {
+            response.setStatusCode(HttpStatus.NOT_FOUND);
+            return false;
+        }
+
+        String path = request.getURI().getRawPath();
+
+        if (request.getURI().getRawQuery() != null) {
+            path += "?" + request.getURI().getRawQuery();
+        }
+
+        PassthroughStream stream;
+
+        try {
+            stream = passthroughHandler.open(subdomain, path, getHeaders(request));
+        } catch (BaseException e) {
+            log.error("Failed to open passthrough stream: subdomain={}, error={}", subdomain, e.getMessage());
+            response.setStatusCode(HttpStatus.BAD_GATEWAY);
+            return false;
+        }
+
+        Frame answer;
+
+        try {
+            answer = stream.getOpened().get(openTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            log.error("Agent did not answer passthrough upgrade: subdomain={}, streamId={}", subdomain, stream.getId());
+            passthroughHandler.abandon(stream.getId());
+            response.setStatusCode(HttpStatus.GATEWAY_TIMEOUT);
+            return false;
+        } catch (ExecutionException e) {
+            response.setStatusCode(HttpStatus.BAD_GATEWAY);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            passthroughHandler.abandon(stream.getId());
+            response.setStatusCode(HttpStatus.SERVICE_UNAVAILABLE);
+            return false;
+        }
+
+        Integer status = answer.getStatus();
+
+        if (status == null || status != 101) {
+            log.info("Local app refused passthrough upgrade: subdomain={}, streamId={}, status={}", subdomain, stream.getId(), status);
+            passthroughHandler.abandon(stream.getId());
+            reject(response, answer);
+            return false;
+        }
+
+        attributes.put(PassthroughHandler.STREAM_ATTRIBUTE, stream.getId());
+        String protocol = Utils.getHeader(answer.getHeaders(), "Sec-WebSocket-Protocol");
+
+        if (protocol != null) {
+            attributes.put(PROTOCOL_ATTRIBUTE, protocol);
+        }
+
+        return true;
+    }
+
+    @Override
+    public void afterHandshake(
+        ServerHttpRequest request,
+        ServerHttpResponse response,
+        WebSocketHandler wsHandler,
+        Exception exception
+    ) {}
+
+    private static Map<String, String> getHeaders(ServerHttpRequest request) {
+        Map<String, String> headers = new HashMap<>();
+
+        for (Map.Entry<String, List<String>> header : request.getHeaders().entrySet()) {
+            if (!HANDSHAKE_HEADERS.contains(header.getKey().toLowerCase(Locale.ROOT)) && !header.getValue().isEmpty()) {
+                headers.put(header.getKey(), String.join(", ", header.getValue()));
+            }
+        }
+
+        return headers;
+    }
+
+    private static void reject(ServerHttpResponse response, Frame answer) throws IOException {
+        int status = answer.getStatus() != null && answer.getStatus() >= 200 ? answer.getStatus() : 502;
+        response.setStatusCode(HttpStatusCode.valueOf(status));
+
+        if (answer.getHeaders() != null && Utils.getHeader(answer.getHeaders(), "Content-Type") != null) {
+            response.getHeaders().set("Content-Type", Utils.getHeader(answer.getHeaders(), "Content-Type"));
+        }
+
+        byte[] body = answer.getBody() != null && answer.getStatus() != null
+                ? answer.getBody()
+                : "Tunnel agent could not open the WebSocket".getBytes(StandardCharsets.UTF_8);
+        response.getBody().write(body);
+    }
+}
@@ -1,13 +1,16 @@
 package uz.server.config;
 
 import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.socket.config.annotation.EnableWebSocket;
 import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
 import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
 import org.springframework.web.socket.server.standard.ServletServerContainerFactoryBean;
 import uz.server.ws.ConnectionHandler;
+import uz.server.ws.PassthroughHandler;
 
 @Configuration
 @EnableWebSocket
@@ -15,19 +18,36 @@ import uz.server.ws.ConnectionHandler;
 public class WebSocketConfig implements WebSocketConfigurer {
     private final ConnectionHandler handler;
     private final AuthHandshakeInterceptor authHandshakeInterceptor;
+    private final PassthroughHandler passthroughHandler;
+    private final PassthroughHandshakeInterceptor passthroughHandshakeInterceptor;
+    private final PassthroughHandshakeHandler passthroughHandshakeHandler;
+
+    @Value("${tarmoqchi.passthrough.max-message-size}")
+    private DataSize passthroughMaxMessageSize;
 
     @Override
     public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
         registry.addHandler(handler, "/server")
                 .setAllowedOrigins("*")
                 .addInterceptors(authHandshakeInterceptor);
+
+        // Upgrades on tunnel subdomains that ForwardController leaves alone; /server above stays the agent endpoint.
+        registry.addHandler(passthroughHandler, "/**")
+                .setAllowedOrigins("*")
+                .setHandshakeHandler(passthroughHandshakeHandler)
+                .addInterceptors(passthroughHandshakeInterceptor);
     }
 
+    /**
+     * Tomcat allocates the message buffers of a session up front from these defaults, and any host can open a
+     * passthrough session, so the defaults are the small passthrough limit. {@link ConnectionHandler} raises the
+     * limit of agent sessions once they are authenticated.
+     */
     @Bean
     public ServletServerContainerFactoryBean createWebSocketContainer() {
         ServletServerContainerFactoryBean container = new ServletServerContainerFactoryBean();
-        container.setMaxTextMessageBufferSize(100 * 1024 * 1024);
-        container.setMaxBinaryMessageBufferSize(100 * 1024 * 1024);
+        container.setMaxTextMessageBufferSize((int) passthroughMaxMessageSize.toBytes());
+        container.setMaxBinaryMessageBufferSize((int) passthroughMaxMessageSize.toBytes());
         container.setAsyncSendTimeout(60000L);
         return container;
     }
@@ -3,25 +3,40 @@ package uz.server.controller;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.util.Base64;
+import java.io.InputStream;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
-import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import uz.server.domain.entity.Tunnel;
 import uz.server.domain.enums.RequestType;
-import uz.server.domain.enums.ResponseType;
 import uz.server.domain.exception.BaseException;
 import uz.server.domain.model.ForwardInfo;
+import uz.server.domain.model.ForwardTiming;
 import uz.server.domain.model.Request;
 import uz.server.domain.model.Response;
+import uz.server.service.ClusterService;
+import uz.server.service.EdgeCache;
+import uz.server.service.ForwardScheduler;
+import uz.server.service.RequestCoalescer;
+import uz.server.service.TrafficInspector;
+import uz.server.service.TunnelMetrics;
+import uz.server.service.TunnelService;
+import uz.server.utils.Utils;
 import uz.server.ws.EventManager;
 
 @Slf4j
@@ -30,6 +45,16 @@ import uz.server.ws.EventManager;
 public class ForwardController {
 
     private final EventManager eventManager;
+    private final TunnelService tunnelService;
+    private final ClusterService clusterService;
+    private final EdgeCache edgeCache;
+    private final RequestCoalescer requestCoalescer;
+    private final ForwardScheduler forwardScheduler;
+    private final TunnelMetrics tunnelMetrics;
+    private final TrafficInspector trafficInspector;
+
+    @Value("${tarmoqchi.forward.server-timing}")
+    private boolean serverTiming;
 
     private static final Set<String> FORBIDDEN_HEADERS = Set.of(
         "host",
@@ -39,26 +64,34 @@ public class ForwardController {
         "keep-alive",
         "proxy-authenticate",
         "proxy-authorization",
-        "accept-encoding",
         "te",
         "trailer",
-        "upgrade"
+        "upgrade",
+        "tunnel-relay-secret",
+        "tunnel-relay-subdomain"
     );
 
     @RequestMapping(value = "/**", headers = {"Upgrade!=websocket"})
-    public ResponseEntity<byte[]> handleRequest(
-            @RequestBody(required = false) String body,
+    public DeferredResult<ResponseEntity<StreamingResponseBody>> handleRequest(
             HttpServletRequest servletRequest,
             HttpServletResponse servletResponse) {
 
-        String host = servletRequest.getHeader("Host");
-        String subdomain = getSubdomain(host);
+        long start = System.nanoTime();
+        boolean relayed = clusterService.isRelayed(servletRequest);
+        String subdomain = relayed
+                ? servletRequest.getHeader(ClusterService.RELAY_SUBDOMAIN_HEADER)
+                : Utils.getSubdomain(servletRequest.getHeader("Host"));
         String requestUri = servletRequest.getRequestURI();
 
+        if (relayed && (subdomain == null || subdomain.isBlank())) {
+            throw new BaseException("Relayed request has no " + ClusterService.RELAY_SUBDOMAIN_HEADER + " header");
+        }
+
         if (subdomain.isEmpty() || Objects.equals(subdomain, "www")) {
             try {
                 servletResponse.sendRedirect("https://tarmoqchi.uz/front/");
-                return ResponseEntity.status(302).body("Redirecting...".getBytes());
+                return toDeferredResult(CompletableFuture.completedFuture(
+                        ResponseEntity.status(302).body(outputStream -> outputStream.write("Redirecting...".getBytes()))));
             } catch (IOException e) {
                 throw new BaseException("Error while redirecting to main page");
             }
@@ -74,53 +107,118 @@ public class ForwardController {
         String method = servletRequest.getMethod();
         Map<String, String> headers = getHeaders(servletRequest);
 
+        if (clusterService.isEnabled() && !relayed && !tunnelService.isLocal(subdomain)) {
+            Tunnel tunnel = tunnelService.getRemoteTunnel(subdomain);
+            return toDeferredResult(clusterService.relay(tunnel.getOwnerNode(), subdomain, tunnel.getForwardTimeout(),
+                    method, requestUri, headers, getBody(servletRequest), servletRequest.getContentLengthLong()));
+        }
+
         log.info("Forwarding [{}] request to path: [{}], domain[{}]", method, requestUri, subdomain);
 
-        Response response = eventManager.sendRequestToAgent(subdomain, Request.builder()
+        Request request = Request.builder()
                 .forwardInfo(ForwardInfo.builder()
                         .headers(headers)
-                        .body(body)
                         .method(method)
                         .path(requestUri)
                         .build())
                 .type(RequestType.FORWARD)
-                .build());
+                .build();
+        InputStream body = trafficInspector.inspect(getBody(servletRequest));
+        Long userId = tunnelService.getUserId(subdomain);
+        ForwardTiming timing = new ForwardTiming(start);
+        Function<Request, CompletableFuture<Response>> agent = forward -> forwardScheduler.submit(subdomain, userId,
+                () -> eventManager.sendRequestToAgent(subdomain, forward, body, timing));
+        Function<Request, CompletableFuture<Response>> origin = body == null
+                ? forward -> requestCoalescer.forward(subdomain, forward, agent)
+                : agent;
+
+        CompletableFuture<Response> response = edgeCache.forward(subdomain, request, origin);
+        response.whenComplete((result, e) -> {
+            tunnelMetrics.recordForward(subdomain, start, result, e);
+
+            if (e != null) {
+                trafficInspector.record(subdomain, method, request.getForwardInfo().getPath(), body, null, e,
+                        timing.stages(System.nanoTime()));
+            }
+        });
+        return toDeferredResult(Utils.propagateCancel(
+                response.thenApply(result -> toResponseEntity(result, onResponse(subdomain, request, body, timing, result))),
+                response));
+    }
+
+    /**
+     * Records the stages of a forward and, when enabled, returns them as a Server-Timing value. Coalesced
+     * requests and cache hits did not reach an agent themselves, so they only report their total.
+     */
+    private String onResponse(String subdomain, Request request, InputStream body, ForwardTiming timing, Response response) {
+        Map<String, Double> stages = timing.stages(System.nanoTime());
+        tunnelMetrics.recordStages(stages);
+        trafficInspector.record(subdomain, request.getForwardInfo().getMethod(), request.getForwardInfo().getPath(),
+                body, response, null, stages);
+        return serverTiming ? ForwardTiming.toHeader(stages) : null;
+    }
 
+    /**
+     * Unlike a returned CompletableFuture, a DeferredResult tells us when the client connection fails before
+     * the answer is ready, so the forward can be cancelled all the way down to the agent.
+     */
+    private static DeferredResult<ResponseEntity<StreamingResponseBody>> toDeferredResult(
+            CompletableFuture<ResponseEntity<StreamingResponseBody>> future) {
+        DeferredResult<ResponseEntity<StreamingResponseBody>> result = new DeferredResult<>();
+        result.onError(e -> {
+            log.info("Client connection failed, cancelling forward: error={}", e.getMessage());
+            future.cancel(false);
+        });
+        result.onTimeout(() -> future.cancel(false));
+
+        future.whenComplete((entity, e) -> {
+            if (e == null) {
+                result.setResult(entity);
+            } else if (!future.isCancelled()) {
+                result.setErrorResult(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+            }
+        });
+
+        return result;
+    }
+
+    private static ResponseEntity<StreamingResponseBody> toResponseEntity(Response response, String serverTiming) {
         log.info("Response received with status: {}", response.getStatus());
 
         HttpHeaders httpHeaders = new HttpHeaders();
-        response.getHeaders().forEach(httpHeaders::add);
+        // Repeated headers such as Set-Cookie arrive as one value with the values on separate lines.
+        response.getHeaders().forEach((name, value) -> Utils.splitValues(value).forEach(v -> httpHeaders.add(name, v)));
       httpHeaders.set("Access-Control-Allow-Origin", "*");
       httpHeaders.set("Access-Control-Allow-Methods", "GET,POST,PUT,DELETE,OPTIONS");
       httpHeaders.set("Access-Control-Allow-Headers", "*");
       httpHeaders.set("Access-Control-Allow-Credentials", "true");
 
-        byte[] responseBody;
+        if (serverTiming != null) {
+            // Added next to any Server-Timing of the app itself.
+            httpHeaders.add("Server-Timing", serverTiming);
+        }
 
-        if (response.getResponseType() == ResponseType.RESPONSE_CHUNK_BASE64) {
-            responseBody = Base64.getDecoder().decode(response.getBody());
-        } else {
-            responseBody = response.getBody() != null ? response.getBody().getBytes() : new byte[0];
+        if (response.getStream() != null) {
+            return ResponseEntity.status(response.getStatus()).headers(httpHeaders).body(response.getStream());
         }
 
-        return ResponseEntity.status(response.getStatus()).headers(httpHeaders).body(responseBody);
+        byte[] responseBody = response.getData();
+        return ResponseEntity.status(response.getStatus()).headers(httpHeaders).body(outputStream -> outputStream.write(responseBody));
     }
 
-    private static String getSubdomain(String host) {
-        log.info("Host: {}", host);
-
-        if (host != null) {
-            String[] split = host.split("\\.");
-
-            if (split.length == 3){
-                return split[0];
-            }
+    private static InputStream getBody(HttpServletRequest request) {
+        if (request.getContentLengthLong() <= 0 && request.getHeader("Transfer-Encoding") == null) {
+            return null;
         }
 
-        return "";
+        try {
+            return request.getInputStream();
+        } catch (IOException e) {
+            throw new BaseException("Error while reading request body");
+        }
     }
 
-    private Map<String, String> getHeaders(HttpServletRequest request) {
+    static Map<String, String> getHeaders(HttpServletRequest request) {
       Map<String, String> headers = new HashMap<>();
       Enumeration<String> headerNames = request.getHeaderNames();
 
@@ -129,7 +227,8 @@ public class ForwardController {
         if (FORBIDDEN_HEADERS.contains(headerName.toLowerCase())) {
           continue;
         }
-        headers.put(headerName, request.getHeader(headerName));
+        headers.put(headerName, String.join(headerName.equalsIgnoreCase("Cookie") ? "; " : ", ",
+                Collections.list(request.getHeaders(headerName))));
       }
 
       return headers;
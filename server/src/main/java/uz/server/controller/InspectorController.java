@@ -0,0 +1,44 @@
+package uz.server.controller;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.web.bind.annotation.*;
+import uz.server.config.ApexHost;
+import uz.server.domain.dto.TrafficPage;
+import uz.server.domain.entity.User;
+import uz.server.domain.exception.BaseException;
+import uz.server.service.TrafficInspector;
+import uz.server.service.TunnelService;
+import uz.server.service.UserService;
+
+/**
+ * Pages through the recent forwards of a tunnel for its owner, who authenticates with the token of the CLI.
+ * To follow the traffic live, poll with the {@code next} of the previous page as {@code after}. Only the node
+ * serving the tunnel has its records.
+ * <p>
+ * Only mapped on the server's own host, so {@code /inspector} on a tunnel subdomain still reaches the app.
+ */
+@ApexHost
+@RestController
+@RequiredArgsConstructor
+@RequestMapping("/inspector")
+public class InspectorController {
+    private static final int MAX_LIMIT = 500;
+
+    private final UserService userService;
+    private final TunnelService tunnelService;
+    private final TrafficInspector trafficInspector;
+
+    @GetMapping("/{subdomain}")
+    public TrafficPage getTraffic(@PathVariable String subdomain,
+                                  @RequestHeader("Authorization") String authorization,
+                                  @RequestParam(defaultValue = "-1") long after,
+                                  @RequestParam(defaultValue = "100") int limit) {
+        User user = userService.authorizeWithToken(authorization.replace("Bearer ", ""));
+
+        if (!user.getId().equals(tunnelService.getUserId(subdomain))) {
+            throw new BaseException("Tunnel belongs to another user");
+        }
+
+        return trafficInspector.read(subdomain, after, Math.max(1, Math.min(limit, MAX_LIMIT)));
+    }
+}
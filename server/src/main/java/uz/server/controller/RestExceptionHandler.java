@@ -5,10 +5,17 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.RestControllerAdvice;
 import uz.server.domain.exception.BaseException;
+import uz.server.domain.exception.ServiceUnavailableException;
 
 @RestControllerAdvice
 @Slf4j
 public class RestExceptionHandler {
+    @ExceptionHandler(ServiceUnavailableException.class)
+    public ResponseEntity<String> handleServiceUnavailableException(ServiceUnavailableException e) {
+        log.error("ServiceUnavailableException: {}", e.getMessage());
+        return ResponseEntity.status(503).body(e.getMessage());
+    }
+
     @ExceptionHandler(BaseException.class)
     public ResponseEntity<String> handleBaseException(BaseException e) {
         log.error("BaseException: {}", e.getMessage());
@@ -0,0 +1,13 @@
+package uz.server.domain.dto;
+
+import java.util.Map;
+
+/**
+ * One forward as the traffic inspector recorded it. {@code status} is 0 when the forward failed, with the
+ * reason in {@code outcome}; {@code responseSize} is -1 for streamed responses. Timings are in milliseconds,
+ * previews are the first bytes of the bodies as UTF-8 text, or null when previews are off.
+ */
+public record TrafficEntry(long sequence, long time, String method, String path, int status, String outcome,
+                           long requestSize, long responseSize, Map<String, Double> timings,
+                           String requestPreview, String responsePreview) {
+}
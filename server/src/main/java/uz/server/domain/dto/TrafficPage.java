@@ -0,0 +1,10 @@
+package uz.server.domain.dto;
+
+import java.util.List;
+
+/**
+ * A page of recorded forwards, oldest first. Pass {@code next} as {@code after} to get the ones that follow.
+ * {@code missed} counts forwards after the cursor that were overwritten before they could be read.
+ */
+public record TrafficPage(List<TrafficEntry> entries, long next, long missed) {
+}
@@ -3,6 +3,9 @@ package uz.server.domain.entity;
 import jakarta.persistence.*;
 import lombok.*;
 
+import java.time.Duration;
+import java.time.Instant;
+
 @Entity(name = "tunnels")
 
 @Getter
@@ -20,6 +23,21 @@ public class Tunnel {
 
     private String subdomain;
 
+    @Column(name = "owner_node")
+    private String ownerNode;
+
+    /**
+     * Refreshed by the owner node while it is alive, see {@link uz.server.service.TunnelService#heartbeat()}.
+     */
+    @Column(name = "heartbeat_at")
+    private Instant heartbeatAt;
+
+    /**
+     * The Tunnel-Timeout the agent negotiated, for nodes that relay to the owner.
+     */
+    @Column(name = "forward_timeout")
+    private Duration forwardTimeout;
+
     @ManyToOne
     private User user;
 }
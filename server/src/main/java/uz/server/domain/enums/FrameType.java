@@ -0,0 +1,30 @@
+package uz.server.domain.enums;
+
+public enum FrameType {
+    HEADERS((byte) 1),
+    DATA((byte) 2),
+    NOT_RUNNING_APP_OF_CLIENT((byte) 3),
+    CANCEL((byte) 4),
+    WS_OPEN((byte) 5),
+    WS_MESSAGE((byte) 6),
+    WS_CLOSE((byte) 7);
+
+    private final byte code;
+
+    FrameType(byte code) {
+        this.code = code;
+    }
+
+    public byte getCode() {
+        return code;
+    }
+
+    public static FrameType fromCode(byte code) {
+        for (FrameType type : values()) {
+            if (type.code == code) {
+                return type;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,6 @@
+package uz.server.domain.enums;
+
+public enum OverflowPolicy {
+    REJECT,
+    CLOSE
+}
@@ -3,5 +3,6 @@ package uz.server.domain.enums;
 public enum RequestType {
     CREATED,
     FORWARD,
+    CANCEL,
     ERROR
 }
@@ -0,0 +1,7 @@
+package uz.server.domain.exception;
+
+public class ServiceUnavailableException extends BaseException {
+    public ServiceUnavailableException(String message) {
+        super(message);
+    }
+}
@@ -14,4 +14,8 @@ public class ForwardInfo {
     private String path;
     private Map<String, String> headers;
     private String body;
+    /**
+     * Epoch millis after which the server no longer waits for the answer.
+     */
+    private Long deadline;
 }
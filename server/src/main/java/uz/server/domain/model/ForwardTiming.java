@@ -0,0 +1,131 @@
+package uz.server.domain.model;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+
+/**
+ * Timestamps of one forward as it passes the server, plus the durations the agent reported for its side, so a
+ * slow request can be attributed to a stage:
+ * <ul>
+ *     <li>{@code queue}: from arrival until sent to an agent, i.e. cache lookup, coalescing and admission</li>
+ *     <li>{@code send}: queueing the request and its body on the agent's WebSocket</li>
+ *     <li>{@code tunnel}: until the first response chunk arrived, i.e. network both ways, agent and app</li>
+ *     <li>{@code agent}, {@code app}: reported by the agent, its own overhead and the local app's time</li>
+ *     <li>{@code reassembly}: from the first chunk until the whole response was assembled</li>
+ *     <li>{@code total}: from arrival until the response is handed to the client</li>
+ * </ul>
+ * Stages that did not happen, for example on a cache hit, are left out.
+ */
+public class ForwardTiming {
+    /**
+     * Response header an agent may set, in {@code Server-Timing} syntax, e.g. {@code app;dur=12.5, agent;dur=0.4}.
+     * The server removes it before the response goes anywhere else.
+     */
+    public static final String AGENT_HEADER = "Tunnel-Timing";
+    public static final Set<String> AGENT_STAGES = Set.of("agent", "app");
+
+    private final long received;
+    private volatile long dispatched;
+    private volatile long sent;
+    private volatile long firstChunk;
+    private volatile long completed;
+    private volatile Map<String, Double> agentStages = Map.of();
+
+    public ForwardTiming(long received) {
+        this.received = received;
+    }
+
+    public void markDispatched() {
+        dispatched = System.nanoTime();
+    }
+
+    public void markSent() {
+        sent = System.nanoTime();
+    }
+
+    public void markFirstChunk() {
+        if (firstChunk == 0) {
+            firstChunk = System.nanoTime();
+        }
+    }
+
+    public void markCompleted() {
+        completed = System.nanoTime();
+    }
+
+    /**
+     * Takes the agent's stages from its {@link #AGENT_HEADER}. Unknown names and malformed entries are ignored,
+     * so an agent cannot add arbitrary metric tags or header entries.
+     */
+    public void setAgentTimings(String header) {
+        Map<String, Double> stages = new LinkedHashMap<>();
+
+        for (String entry : header.split(",")) {
+            String[] parts = entry.split(";");
+            String name = parts[0].trim().toLowerCase(Locale.ROOT);
+
+            if (!AGENT_STAGES.contains(name)) {
+                continue;
+            }
+
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+
+                if (param.startsWith("dur=")) {
+                    try {
+                        double duration = Double.parseDouble(param.substring(4));
+
+                        if (duration >= 0 && Double.isFinite(duration)) {
+                            stages.put(name, duration);
+                        }
+                    } catch (NumberFormatException ignored) {
+                        // Not a number, left out.
+                    }
+                }
+            }
+        }
+
+        agentStages = stages;
+    }
+
+    /**
+     * @return the stages in milliseconds, in the order they happened
+     */
+    public Map<String, Double> stages(long now) {
+        Map<String, Double> stages = new LinkedHashMap<>();
+
+        if (dispatched != 0) {
+            stages.put("queue", millis(received, dispatched));
+        }
+
+        if (sent != 0) {
+            stages.put("send", millis(dispatched, sent));
+        }
+
+        if (sent != 0 && firstChunk != 0) {
+            stages.put("tunnel", millis(sent, firstChunk));
+        }
+
+        stages.putAll(agentStages);
+
+        if (firstChunk != 0 && completed != 0) {
+            stages.put("reassembly", millis(firstChunk, completed));
+        }
+
+        stages.put("total", millis(received, now));
+        return stages;
+    }
+
+    public static String toHeader(Map<String, Double> stages) {
+        StringJoiner header = new StringJoiner(", ");
+        stages.forEach((name, duration) -> header.add(String.format(Locale.ROOT, "%s;dur=%.1f", name, duration)));
+        return header.toString();
+    }
+
+    private static double millis(long from, long to) {
+        return Math.max(0, to - from) / 1e6;
+    }
+}
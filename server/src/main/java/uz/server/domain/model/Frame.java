@@ -0,0 +1,38 @@
+package uz.server.domain.model;
+
+import lombok.*;
+import uz.server.domain.enums.FrameType;
+
+import java.util.Map;
+
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+public class Frame {
+    public static final byte END_STREAM = 0x1;
+    public static final byte COMPRESSED = 0x2;
+    public static final byte TEXT = 0x4;
+
+    private FrameType type;
+    private byte flags;
+    private String requestId;
+    private Integer status;
+    private String method;
+    private String path;
+    private Map<String, String> headers;
+    private byte[] body;
+
+    public boolean isEndStream() {
+        return (flags & END_STREAM) != 0;
+    }
+
+    public boolean isCompressed() {
+        return (flags & COMPRESSED) != 0;
+    }
+
+    public boolean isText() {
+        return (flags & TEXT) != 0;
+    }
+}
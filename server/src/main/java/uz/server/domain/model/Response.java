@@ -1,9 +1,11 @@
 package uz.server.domain.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import uz.server.domain.enums.ResponseType;
 
 import java.util.Map;
@@ -19,4 +21,10 @@ public class Response {
     private boolean last;
     private ResponseType responseType;
     private Map<String, String> headers;
+
+    @JsonIgnore
+    private byte[] data;
+
+    @JsonIgnore
+    private StreamingResponseBody stream;
 }
@@ -0,0 +1,16 @@
+package uz.server.domain.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.time.Duration;
+
+/**
+ * Per-tunnel limits the agent asked for on the handshake, already clamped to what the server allows.
+ */
+@Getter
+@AllArgsConstructor
+public class TunnelSettings {
+    private final Duration forwardTimeout;
+    private final Duration streamIdleTimeout;
+}
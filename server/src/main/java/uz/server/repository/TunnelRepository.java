@@ -1,9 +1,14 @@
 package uz.server.repository;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 import uz.server.domain.entity.Tunnel;
 import uz.server.domain.entity.User;
 
+import java.time.Instant;
 import java.util.Optional;
 
 public interface TunnelRepository extends JpaRepository<Tunnel, Long> {
@@ -13,5 +18,24 @@ public interface TunnelRepository extends JpaRepository<Tunnel, Long> {
 
     Optional<Tunnel> findBySessionId(String id);
 
-    boolean existsBySubdomain(String customSubdomain);
-}
\ No newline at end of file
+    boolean existsBySubdomainIgnoreCase(String subdomain);
+
+    @Transactional
+    long deleteByOwnerNode(String ownerNode);
+
+    @Transactional
+    long deleteBySubdomainIgnoreCase(String subdomain);
+
+    @Transactional
+    @Modifying
+    @Query("update tunnels t set t.sessionId = :next where lower(t.subdomain) = lower(:subdomain) and t.sessionId = :current")
+    int moveSession(@Param("subdomain") String subdomain, @Param("current") String current, @Param("next") String next);
+
+    @Transactional
+    @Modifying
+    @Query("update tunnels t set t.heartbeatAt = :now where t.ownerNode = :ownerNode")
+    int heartbeat(@Param("ownerNode") String ownerNode, @Param("now") Instant now);
+
+    @Transactional
+    long deleteByHeartbeatAtBefore(Instant cutoff);
+}
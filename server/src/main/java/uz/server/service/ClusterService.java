@@ -0,0 +1,206 @@
+package uz.server.service;
+
+import jakarta.servlet.http.HttpServletRequest;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import uz.server.config.Settings;
+import uz.server.domain.exception.BaseException;
+import uz.server.domain.exception.ServiceUnavailableException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Cluster mode: every node records itself as the owner of the tunnels it accepts, and a node that receives a
+ * request for a tunnel it does not own relays it over HTTP to the owner. The relay is authenticated with a
+ * secret shared by all nodes, and a relayed request is never relayed again. Owners refresh the heartbeat of
+ * their tunnels, and a tunnel whose heartbeat is older than {@code node-timeout} belongs to a dead node.
+ */
+@Service
+@Slf4j
+public class ClusterService {
+    public static final String RELAY_SECRET_HEADER = "Tunnel-Relay-Secret";
+    public static final String RELAY_SUBDOMAIN_HEADER = "Tunnel-Relay-Subdomain";
+
+    private static final Set<String> RESTRICTED_HEADERS = Set.of("expect", "host", "connection", "content-length", "upgrade");
+    private static final Set<String> HOP_BY_HOP_HEADERS = Set.of("connection", "keep-alive", "transfer-encoding", "content-length");
+
+    private final boolean enabled;
+    private final String nodeUrl;
+    private final byte[] secret;
+    private final Duration timeout;
+    private final Duration connectTimeout;
+    private final Duration nodeTimeout;
+    private final HttpClient client;
+
+    public ClusterService(
+            @Value("${tarmoqchi.cluster.enabled}") boolean enabled,
+            @Value("${tarmoqchi.cluster.node-url}") String nodeUrl,
+            @Value("${tarmoqchi.cluster.secret}") String secret,
+            @Value("${tarmoqchi.cluster.connect-timeout}") Duration connectTimeout,
+            @Value("${tarmoqchi.cluster.node-timeout}") Duration nodeTimeout,
+            @Value("${tarmoqchi.forward.timeout}") Duration timeout
+    ) {
+        if (enabled && secret.isBlank()) {
+            throw new IllegalStateException("tarmoqchi.cluster.secret must be set when cluster mode is enabled");
+        }
+
+        this.enabled = enabled;
+        this.nodeUrl = nodeUrl;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.timeout = timeout;
+        this.connectTimeout = connectTimeout;
+        this.nodeTimeout = nodeTimeout;
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(connectTimeout)
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .build();
+
+        log.info("Cluster mode: enabled={}, nodeUrl={}", enabled, nodeUrl);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String getNodeUrl() {
+        return nodeUrl;
+    }
+
+    /**
+     * @return true if a heartbeat this old means its node is gone
+     */
+    public boolean isExpired(Instant heartbeatAt) {
+        return heartbeatAt != null && heartbeatAt.isBefore(getExpiryCutoff());
+    }
+
+    /**
+     * @return heartbeats before this instant belong to dead nodes
+     */
+    public Instant getExpiryCutoff() {
+        return Instant.now().minus(nodeTimeout);
+    }
+
+    /**
+     * @return true if the request was relayed by another node of the cluster
+     */
+    public boolean isRelayed(HttpServletRequest request) {
+        String header = request.getHeader(RELAY_SECRET_HEADER);
+        return enabled && header != null && MessageDigest.isEqual(secret, header.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Forwards the request to the node that owns the tunnel and streams its answer back. The owner enforces the
+     * tunnel's timeout itself; the relay waits a connect timeout longer, so the owner's answer wins. Cancelling
+     * the returned future, as a client disconnect does, aborts the exchange with the owner.
+     *
+     * @param tunnelTimeout the Tunnel-Timeout the agent negotiated, or null for the default
+     */
+    public CompletableFuture<ResponseEntity<StreamingResponseBody>> relay(
+            String ownerNode, String subdomain, Duration tunnelTimeout, String method, String path,
+            Map<String, String> headers, InputStream body, long contentLength) {
+        log.info("Relaying request: subdomain={}, ownerNode={}", subdomain, ownerNode);
+
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(ownerNode + path))
+                .timeout(Objects.requireNonNullElse(tunnelTimeout, timeout).plus(connectTimeout))
+                .method(method, getBodyPublisher(body, contentLength));
+
+        headers.forEach((name, value) -> {
+            if (!RESTRICTED_HEADERS.contains(name.toLowerCase())) {
+                builder.header(name, value);
+            }
+        });
+
+        builder.setHeader(RELAY_SECRET_HEADER, new String(secret, StandardCharsets.UTF_8));
+        builder.setHeader(RELAY_SUBDOMAIN_HEADER, subdomain);
+
+        CompletableFuture<HttpResponse<InputStream>> sent = client.sendAsync(builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+        CompletableFuture<ResponseEntity<StreamingResponseBody>> relayed = sent
+                .thenApply(ClusterService::toResponseEntity)
+                .exceptionally(e -> {
+                    Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+
+                    if (cause instanceof HttpTimeoutException) {
+                        log.error("Relay timed out: subdomain={}, ownerNode={}", subdomain, ownerNode);
+                        throw new BaseException(Settings.TIMEOUT_HTML);
+                    }
+
+                    log.error("Relay failed: subdomain={}, ownerNode={}, error={}", subdomain, ownerNode, cause.toString());
+
+                    if (cause instanceof ConnectException) {
+                        throw new ServiceUnavailableException("Tunnel node is unreachable, please try again later");
+                    }
+
+                    throw new BaseException("Error while relaying request");
+                });
+
+        // Only cancel(true) aborts an exchange of the HTTP client, and a response that still arrives is closed.
+        relayed.whenComplete((entity, e) -> {
+            if (relayed.isCancelled()) {
+                sent.cancel(true);
+                sent.thenAccept(response -> close(response.body()));
+            }
+        });
+        return relayed;
+    }
+
+    private static void close(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException e) {
+            log.info("Could not close relayed response: error={}", e.getMessage());
+        }
+    }
+
+    private static HttpRequest.BodyPublisher getBodyPublisher(InputStream body, long contentLength) {
+        if (body == null) {
+            return HttpRequest.BodyPublishers.noBody();
+        }
+
+        HttpRequest.BodyPublisher publisher = HttpRequest.BodyPublishers.ofInputStream(() -> body);
+        return contentLength > 0 ? HttpRequest.BodyPublishers.fromPublisher(publisher, contentLength) : publisher;
+    }
+
+    private static ResponseEntity<StreamingResponseBody> toResponseEntity(HttpResponse<InputStream> response) {
+        HttpHeaders httpHeaders = new HttpHeaders();
+
+        response.headers().map().forEach((name, values) -> {
+            if (!HOP_BY_HOP_HEADERS.contains(name.toLowerCase()) && !name.startsWith(":")) {
+                httpHeaders.addAll(name, values);
+            }
+        });
+
+        return ResponseEntity.status(response.statusCode()).headers(httpHeaders).body(outputStream -> {
+            byte[] buffer = new byte[8192];
+
+            try (InputStream in = response.body()) {
+                int read;
+
+                while ((read = in.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, read);
+                    outputStream.flush();
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,697 @@
+package uz.server.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import uz.server.domain.enums.ResponseType;
+import uz.server.domain.model.ForwardInfo;
+import uz.server.domain.model.Request;
+import uz.server.domain.model.Response;
+import uz.server.utils.Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Optional shared HTTP cache in front of the agents, following Cache-Control, Expires and Vary. Stale entries
+ * with an ETag or Last-Modified are revalidated with a conditional request, so the agent only answers with a
+ * 304. Entries are evicted in LRU order to stay within a global budget and a per-tunnel budget.
+ * <p>
+ * Lookups go through {@link #routes}, which holds the Vary header names last seen for a path and a generation
+ * that is part of every entry key. Replacing a route, for an unsafe request or a new Vary set, makes all
+ * variants of the path unreachable at once; they are then dropped by LRU eviction. A route is only created
+ * along with an entry, counts toward the budgets, and goes away with the last entry stored under it.
+ */
+@Component
+@Slf4j
+public class EdgeCache {
+    private static final Set<Integer> CACHEABLE_STATUSES = Set.of(200, 203, 204, 300, 301, 404, 410);
+    private static final Set<String> UNSTORED_HEADERS = Set.of(
+            "connection", "keep-alive", "transfer-encoding", "content-length", "set-cookie", "age");
+    private static final int ENTRY_OVERHEAD = 128;
+    private static final int ROUTE_OVERHEAD = 64;
+
+    private final boolean enabled;
+    private final long maxSize;
+    private final long maxTunnelSize;
+    private final long maxEntrySize;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final HashMap<String, Route> routes = new HashMap<>();
+    private final HashMap<String, Long> tunnelBytes = new HashMap<>();
+    private long totalBytes;
+    private long generations;
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter revalidations;
+    private final Counter bypasses;
+    private final Counter bytesSaved;
+
+    public EdgeCache(
+            MeterRegistry meterRegistry,
+            @Value("${tarmoqchi.cache.enabled}") boolean enabled,
+            @Value("${tarmoqchi.cache.max-size}") DataSize maxSize,
+            @Value("${tarmoqchi.cache.max-tunnel-size}") DataSize maxTunnelSize,
+            @Value("${tarmoqchi.cache.max-entry-size}") DataSize maxEntrySize
+    ) {
+        this.enabled = enabled;
+        this.maxSize = maxSize.toBytes();
+        this.maxTunnelSize = maxTunnelSize.toBytes();
+        this.maxEntrySize = Math.min(maxEntrySize.toBytes(), maxTunnelSize.toBytes());
+
+        this.hits = counter(meterRegistry, "hit");
+        this.misses = counter(meterRegistry, "miss");
+        this.revalidations = counter(meterRegistry, "revalidated");
+        this.bypasses = counter(meterRegistry, "bypass");
+        this.bytesSaved = Counter.builder("tarmoqchi.cache.bytes.saved")
+                .description("Response body bytes served from the edge cache instead of the agent")
+                .register(meterRegistry);
+        Gauge.builder("tarmoqchi.cache.size", this, EdgeCache::size)
+                .description("Bytes held by the edge cache")
+                .register(meterRegistry);
+        Gauge.builder("tarmoqchi.cache.entries", this, EdgeCache::entryCount)
+                .description("Entries held by the edge cache")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Answers the request from the cache when possible, and otherwise through {@code origin}, storing or
+     * refreshing the entry on the way back.
+     */
+    public CompletableFuture<Response> forward(String subdomain, Request request,
+                                               Function<Request, CompletableFuture<Response>> origin) {
+        if (!enabled) {
+            return origin.apply(request);
+        }
+
+        ForwardInfo info = request.getForwardInfo();
+        String base = subdomain.toLowerCase(Locale.ROOT) + " " + info.getPath();
+
+        if (!info.getMethod().equals("GET")) {
+            if (!info.getMethod().equals("HEAD") && !info.getMethod().equals("OPTIONS")) {
+                invalidate(base);
+            }
+            return origin.apply(request);
+        }
+
+        Map<String, String> headers = info.getHeaders();
+        Directives directives = Directives.parse(Utils.getHeader(headers, "Cache-Control"));
+
+        if (directives.noStore || Utils.getHeader(headers, "Authorization") != null || Utils.acceptsStreamingType(headers)) {
+            bypasses.increment();
+            return origin.apply(request);
+        }
+
+        Entry entry = get(base, headers);
+        long now = System.currentTimeMillis();
+        boolean forceRevalidation = directives.noCache || directives.maxAge == 0
+                || "no-cache".equalsIgnoreCase(Utils.getHeader(headers, "Pragma"));
+
+        if (entry != null && !forceRevalidation && entry.isFresh(now)) {
+            hits.increment();
+            bytesSaved.increment(entry.body.length);
+            return CompletableFuture.completedFuture(entry.matches(headers) ? entry.toNotModified(now) : entry.toResponse(now));
+        }
+
+        boolean conditional = entry != null && entry.hasValidators() && !hasConditionals(headers);
+
+        if (conditional) {
+            Map<String, String> revalidation = new HashMap<>(headers);
+
+            if (entry.etag != null) {
+                revalidation.put("If-None-Match", entry.etag);
+            }
+
+            if (entry.lastModified != null) {
+                revalidation.put("If-Modified-Since", entry.lastModified);
+            }
+
+            info.setHeaders(revalidation);
+        } else {
+            misses.increment();
+        }
+
+        CompletableFuture<Response> upstream = origin.apply(request);
+
+        return Utils.propagateCancel(upstream.thenApply(response -> {
+            if (conditional && response.getStatus() == 304) {
+                Entry refreshed = entry.revalidated(response.getHeaders(), System.currentTimeMillis());
+                refresh(refreshed);
+                revalidations.increment();
+                bytesSaved.increment(refreshed.body.length);
+                return refreshed.toResponse(refreshed.storedAt);
+            }
+
+            if (conditional) {
+                misses.increment();
+            }
+
+            return store(subdomain, base, headers, response);
+        }), upstream);
+    }
+
+    /**
+     * Drops every entry of a tunnel, called when the tunnel is gone so a new agent on the same subdomain
+     * does not see the old app's responses.
+     */
+    public void invalidateTunnel(String subdomain) {
+        if (!enabled) {
+            return;
+        }
+
+        String tunnel = subdomain.toLowerCase(Locale.ROOT);
+        lock.lock();
+
+        try {
+            routes.values().removeIf(route -> {
+                if (route.subdomain.equals(tunnel)) {
+                    account(tunnel, -route.size);
+                    return true;
+                }
+                return false;
+            });
+            entries.values().removeIf(entry -> {
+                if (entry.subdomain.equals(tunnel)) {
+                    removed(entry);
+                    return true;
+                }
+                return false;
+            });
+        } finally {
+            lock.unlock();
+        }
+
+        log.info("Edge cache invalidated for tunnel: subdomain={}", subdomain);
+    }
+
+    public long size() {
+        lock.lock();
+
+        try {
+            return totalBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int entryCount() {
+        lock.lock();
+
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int routeCount() {
+        lock.lock();
+
+        try {
+            return routes.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Response store(String subdomain, String base, Map<String, String> requestHeaders, Response response) {
+        Map<String, String> headers = Objects.requireNonNullElse(response.getHeaders(), Map.of());
+        Directives directives = Directives.parse(Utils.getHeader(headers, "Cache-Control"));
+        List<String> vary = varyNames(Utils.getHeader(headers, "Vary"));
+
+        if (!isStorable(response.getStatus(), headers, directives, vary)) {
+            return response;
+        }
+
+        long now = System.currentTimeMillis();
+        long lifetime = lifetimeMillis(headers, directives, now);
+        String etag = Utils.getHeader(headers, "ETag");
+        String lastModified = Utils.getHeader(headers, "Last-Modified");
+
+        if (lifetime <= 0 && etag == null && lastModified == null) {
+            return response;
+        }
+
+        String tunnel = subdomain.toLowerCase(Locale.ROOT);
+        Map<String, String> stored = storedHeaders(headers);
+
+        if (response.getStream() == null) {
+            byte[] body = Objects.requireNonNullElse(response.getData(), new byte[0]);
+
+            if (body.length <= maxEntrySize) {
+                put(tunnel, base, vary, route -> new Entry(route, route.key(requestHeaders), tunnel, response.getStatus(),
+                        stored, body, now, lifetime, etag, lastModified));
+            }
+
+            return response;
+        }
+
+        StreamingResponseBody stream = response.getStream();
+        response.setStream(outputStream -> {
+            CopyingOutputStream copy = new CopyingOutputStream(outputStream, maxEntrySize);
+            stream.writeTo(copy);
+
+            if (!copy.overflowed) {
+                byte[] body = copy.copy.toByteArray();
+                put(tunnel, base, vary, route -> new Entry(route, route.key(requestHeaders), tunnel, response.getStatus(),
+                        stored, body, now, lifetime, etag, lastModified));
+            }
+        });
+
+        return response;
+    }
+
+    /**
+     * Whether a shared cache may keep the response at all, however long it stays fresh. Coalesced requests
+     * share a response only under the same rules.
+     */
+    static boolean isStorable(Response response) {
+        Map<String, String> headers = Objects.requireNonNullElse(response.getHeaders(), Map.of());
+        return isStorable(response.getStatus(), headers, Directives.parse(Utils.getHeader(headers, "Cache-Control")),
+                varyNames(Utils.getHeader(headers, "Vary")));
+    }
+
+    private static boolean isStorable(int status, Map<String, String> headers, Directives directives, List<String> vary) {
+        return CACHEABLE_STATUSES.contains(status) && !directives.noStore && !directives.isPrivate && vary != null
+                && Utils.getHeader(headers, "Set-Cookie") == null
+                && !Utils.isStreamingType(Utils.getHeader(headers, "Content-Type"));
+    }
+
+    private Entry get(String base, Map<String, String> headers) {
+        lock.lock();
+
+        try {
+            Route route = routes.get(base);
+            return route != null ? entries.get(route.key(headers)) : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stores an entry under the route of its path, creating or replacing the route when there is none yet or
+     * its Vary set changed.
+     */
+    private void put(String subdomain, String base, List<String> vary, Function<Route, Entry> entry) {
+        lock.lock();
+
+        try {
+            Route route = routes.get(base);
+
+            if (route == null || !route.vary.equals(vary)) {
+                if (route != null) {
+                    account(route.subdomain, -route.size);
+                }
+
+                route = new Route(++generations, base, subdomain, vary);
+                routes.put(base, route);
+                account(subdomain, route.size);
+            }
+
+            add(entry.apply(route));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stores a revalidated entry, unless its route was replaced in the meantime.
+     */
+    private void refresh(Entry entry) {
+        lock.lock();
+
+        try {
+            if (routes.get(entry.route.base) == entry.route) {
+                add(entry);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void invalidate(String base) {
+        lock.lock();
+
+        try {
+            Route route = routes.remove(base);
+
+            if (route != null) {
+                account(route.subdomain, -route.size);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void add(Entry entry) {
+        entry.route.entries++;
+        Entry previous = entries.put(entry.key, entry);
+        account(entry.subdomain, entry.size);
+
+        if (previous != null) {
+            removed(previous);
+        }
+
+        evict(entry.subdomain);
+    }
+
+    /**
+     * Accounts for an entry that left {@link #entries}, and drops its route if that was the last entry under it.
+     */
+    private void removed(Entry entry) {
+        account(entry.subdomain, -entry.size);
+        Route route = entry.route;
+
+        if (--route.entries == 0 && routes.get(route.base) == route) {
+            routes.remove(route.base);
+            account(route.subdomain, -route.size);
+        }
+    }
+
+    private void evict(String subdomain) {
+        Iterator<Entry> iterator = entries.values().iterator();
+
+        while (totalBytes > maxSize && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            iterator.remove();
+            removed(entry);
+        }
+
+        if (tunnelBytes.getOrDefault(subdomain, 0L) <= maxTunnelSize) {
+            return;
+        }
+
+        iterator = entries.values().iterator();
+
+        while (tunnelBytes.getOrDefault(subdomain, 0L) > maxTunnelSize && iterator.hasNext()) {
+            Entry entry = iterator.next();
+
+            if (entry.subdomain.equals(subdomain)) {
+                iterator.remove();
+                removed(entry);
+            }
+        }
+    }
+
+    private void account(String subdomain, long bytes) {
+        totalBytes += bytes;
+        tunnelBytes.merge(subdomain, bytes, (a, b) -> a + b == 0 ? null : a + b);
+    }
+
+    private static boolean hasConditionals(Map<String, String> headers) {
+        return Utils.getHeader(headers, "If-None-Match") != null || Utils.getHeader(headers, "If-Modified-Since") != null;
+    }
+
+    /**
+     * @return the lower-cased header names, or null for {@code Vary: *}, which can never be matched
+     */
+    private static List<String> varyNames(String vary) {
+        if (vary == null || vary.isBlank()) {
+            return List.of();
+        }
+
+        List<String> names = new ArrayList<>();
+
+        for (String name : vary.split(",")) {
+            String trimmed = name.trim().toLowerCase(Locale.ROOT);
+
+            if (trimmed.equals("*")) {
+                return null;
+            }
+
+            if (!trimmed.isEmpty()) {
+                names.add(trimmed);
+            }
+        }
+
+        return List.copyOf(names);
+    }
+
+    private static long lifetimeMillis(Map<String, String> headers, Directives directives, long now) {
+        if (directives.noCache) {
+            return 0;
+        }
+
+        long age = parseSeconds(Utils.getHeader(headers, "Age")) * 1000;
+
+        if (directives.sMaxAge >= 0) {
+            return directives.sMaxAge * 1000 - age;
+        }
+
+        if (directives.maxAge >= 0) {
+            return directives.maxAge * 1000 - age;
+        }
+
+        String expires = Utils.getHeader(headers, "Expires");
+
+        if (expires == null) {
+            return 0;
+        }
+
+        long date = parseDate(Utils.getHeader(headers, "Date"), now);
+        return parseDate(expires, 0) - date;
+    }
+
+    private static long parseDate(String value, long fallback) {
+        if (value == null) {
+            return fallback;
+        }
+
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return fallback;
+        }
+    }
+
+    private static long parseSeconds(String value) {
+        if (value == null) {
+            return 0;
+        }
+
+        try {
+            return Math.max(0, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static Map<String, String> storedHeaders(Map<String, String> headers) {
+        Map<String, String> stored = new HashMap<>();
+
+        headers.forEach((name, value) -> {
+            if (!UNSTORED_HEADERS.contains(name.toLowerCase(Locale.ROOT))) {
+                stored.put(name, value);
+            }
+        });
+
+        return stored;
+    }
+
+    private static Counter counter(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("tarmoqchi.cache.requests")
+                .description("Edge cache lookups")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Guarded by {@link #lock}, like the entries that point to it.
+     */
+    private static final class Route {
+        private final long generation;
+        private final String base;
+        private final String subdomain;
+        private final List<String> vary;
+        private final long size;
+        private int entries;
+
+        private Route(long generation, String base, String subdomain, List<String> vary) {
+            this.generation = generation;
+            this.base = base;
+            this.subdomain = subdomain;
+            this.vary = vary;
+            this.size = base.length() + vary.toString().length() + ROUTE_OVERHEAD;
+        }
+
+        private String key(Map<String, String> headers) {
+            StringBuilder key = new StringBuilder(base).append('#').append(generation);
+
+            for (String name : vary) {
+                key.append('\n').append(Objects.requireNonNullElse(Utils.getHeader(headers, name), ""));
+            }
+
+            return key.toString();
+        }
+    }
+
+    private record Entry(Route route, String key, String subdomain, int status, Map<String, String> headers, byte[] body,
+                         long storedAt, long lifetime, String etag, String lastModified, long size) {
+        private Entry(Route route, String key, String subdomain, int status, Map<String, String> headers, byte[] body,
+                      long storedAt, long lifetime, String etag, String lastModified) {
+            this(route, key, subdomain, status, headers, body, storedAt, lifetime, etag, lastModified,
+                    body.length + key.length() + headers.toString().length() + ENTRY_OVERHEAD);
+        }
+
+        private boolean isFresh(long now) {
+            return now - storedAt < lifetime;
+        }
+
+        private boolean hasValidators() {
+            return etag != null || lastModified != null;
+        }
+
+        /**
+         * Whether the client's own conditional headers are satisfied by this entry.
+         */
+        private boolean matches(Map<String, String> requestHeaders) {
+            String ifNoneMatch = Utils.getHeader(requestHeaders, "If-None-Match");
+
+            if (ifNoneMatch != null) {
+                if (etag == null) {
+                    return false;
+                }
+
+                String tag = weak(etag);
+
+                for (String candidate : ifNoneMatch.split(",")) {
+                    String trimmed = candidate.trim();
+
+                    if (trimmed.equals("*") || weak(trimmed).equals(tag)) {
+                        return true;
+                    }
+                }
+
+                return false;
+            }
+
+            String ifModifiedSince = Utils.getHeader(requestHeaders, "If-Modified-Since");
+            return ifModifiedSince != null && lastModified != null
+                    && parseDate(lastModified, Long.MAX_VALUE) <= parseDate(ifModifiedSince, Long.MIN_VALUE);
+        }
+
+        private Entry revalidated(Map<String, String> notModifiedHeaders, long now) {
+            Map<String, String> merged = new HashMap<>(headers);
+
+            if (notModifiedHeaders != null) {
+                storedHeaders(notModifiedHeaders).forEach((name, value) -> {
+                    merged.keySet().removeIf(existing -> existing.equalsIgnoreCase(name));
+                    merged.put(name, value);
+                });
+            }
+
+            Directives directives = Directives.parse(Utils.getHeader(merged, "Cache-Control"));
+            return new Entry(route, key, subdomain, status, merged, body, now, lifetimeMillis(merged, directives, now),
+                    Utils.getHeader(merged, "ETag"), Utils.getHeader(merged, "Last-Modified"));
+        }
+
+        private Response toResponse(long now) {
+            return new Response(null, status, null, true, ResponseType.RESPONSE_CHUNK, withAge(now), body, null);
+        }
+
+        private Response toNotModified(long now) {
+            return new Response(null, 304, null, true, ResponseType.RESPONSE_CHUNK, withAge(now), new byte[0], null);
+        }
+
+        private Map<String, String> withAge(long now) {
+            Map<String, String> served = new HashMap<>(headers);
+            served.put("Age", String.valueOf(Math.max(0, (now - storedAt) / 1000)));
+            return served;
+        }
+
+        private static String weak(String tag) {
+            return tag.startsWith("W/") ? tag.substring(2) : tag;
+        }
+    }
+
+    private static final class Directives {
+        private static final Directives NONE = new Directives();
+
+        private boolean noStore;
+        private boolean noCache;
+        private boolean isPrivate;
+        private long maxAge = -1;
+        private long sMaxAge = -1;
+
+        private static Directives parse(String cacheControl) {
+            if (cacheControl == null || cacheControl.isBlank()) {
+                return NONE;
+            }
+
+            Directives directives = new Directives();
+
+            for (String part : cacheControl.split(",")) {
+                String directive = part.trim().toLowerCase(Locale.ROOT);
+                int equals = directive.indexOf('=');
+                String name = equals < 0 ? directive : directive.substring(0, equals).trim();
+                String value = equals < 0 ? null : directive.substring(equals + 1).trim().replace("\"", "");
+
+                switch (name) {
+                    case "no-store" -> directives.noStore = true;
+                    case "no-cache" -> directives.noCache = true;
+                    case "private" -> directives.isPrivate = true;
+                    case "max-age" -> directives.maxAge = parseSeconds(value);
+                    case "s-maxage" -> directives.sMaxAge = parseSeconds(value);
+                    default -> {
+                    }
+                }
+            }
+
+            return directives;
+        }
+    }
+
+    /**
+     * Passes a streamed body through to the client while keeping a copy for the cache, up to {@code limit}.
+     */
+    private static final class CopyingOutputStream extends OutputStream {
+        private final OutputStream target;
+        private final long limit;
+        private final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        private boolean overflowed;
+
+        private CopyingOutputStream(OutputStream target, long limit) {
+            this.target = target;
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            target.write(b, off, len);
+
+            if (!overflowed) {
+                if (copy.size() + len > limit) {
+                    overflowed = true;
+                    copy.reset();
+                } else {
+                    copy.write(b, off, len);
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            target.flush();
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package uz.server.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.stereotype.Component;
+import uz.server.config.Settings;
+import uz.server.domain.exception.BaseException;
+import uz.server.domain.exception.ServiceUnavailableException;
+import uz.server.domain.model.Response;
+import uz.server.utils.Utils;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Admission control in front of the agents. A request runs at once while its tunnel, its user and the whole
+ * node are under their in-flight limits; otherwise it waits in a bounded queue of its tunnel. Whenever a slot
+ * frees up, waiting tunnels are served round-robin, one request per tunnel per turn, so a tunnel with a long
+ * queue cannot push back the requests of other tenants.
+ * <p>
+ * The scheduler's own meters are node-wide; per-tunnel waits and rejections go through {@link TunnelMetrics},
+ * which bounds the number of tunnels with series of their own.
+ */
+@Component
+@Slf4j
+public class ForwardScheduler {
+    private final TunnelMetrics tunnelMetrics;
+    private final TaskExecutor executor;
+    private final int maxInFlight;
+    private final int maxInFlightPerTunnel;
+    private final int maxInFlightPerUser;
+    private final int maxQueuePerTunnel;
+    private final long queueTimeoutMillis;
+    private final Timer wait;
+    private final Counter rejected;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, TunnelQueue> tunnels = new HashMap<>();
+    private final Map<Long, Integer> userInFlight = new HashMap<>();
+    private final ArrayDeque<TunnelQueue> waiting = new ArrayDeque<>();
+    private int inFlight;
+
+    public ForwardScheduler(
+            MeterRegistry meterRegistry,
+            TunnelMetrics tunnelMetrics,
+            @Qualifier("applicationTaskExecutor") TaskExecutor executor,
+            @Value("${tarmoqchi.scheduler.max-in-flight}") int maxInFlight,
+            @Value("${tarmoqchi.scheduler.max-in-flight-per-tunnel}") int maxInFlightPerTunnel,
+            @Value("${tarmoqchi.scheduler.max-in-flight-per-user}") int maxInFlightPerUser,
+            @Value("${tarmoqchi.scheduler.max-queue-per-tunnel}") int maxQueuePerTunnel,
+            @Value("${tarmoqchi.forward.timeout}") Duration queueTimeout
+    ) {
+        this.tunnelMetrics = tunnelMetrics;
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+        this.maxInFlightPerTunnel = maxInFlightPerTunnel;
+        this.maxInFlightPerUser = maxInFlightPerUser;
+        this.maxQueuePerTunnel = maxQueuePerTunnel;
+        this.queueTimeoutMillis = queueTimeout.toMillis();
+
+        this.wait = Timer.builder("tarmoqchi.scheduler.wait")
+                .description("Time requests waited for an in-flight slot")
+                .register(meterRegistry);
+        this.rejected = Counter.builder("tarmoqchi.scheduler.rejected")
+                .description("Requests rejected because the queue of their tunnel was full")
+                .register(meterRegistry);
+
+        Gauge.builder("tarmoqchi.scheduler.in.flight", this, ForwardScheduler::inFlight)
+                .description("Requests sent to agents and not answered yet")
+                .register(meterRegistry);
+        Gauge.builder("tarmoqchi.scheduler.queued", this, ForwardScheduler::queued)
+                .description("Requests waiting for an in-flight slot")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Runs {@code task} now or once the tunnel gets its turn. A full tunnel queue fails with 503, and a request
+     * that waited for the whole forward timeout fails with the timeout page; once started, only the forward's own
+     * deadline applies. Cancelling the returned future drops a queued request, or cancels the running one.
+     */
+    public CompletableFuture<Response> submit(String subdomain, Long userId, Supplier<CompletableFuture<Response>> task) {
+        String key = subdomain.toLowerCase(Locale.ROOT);
+        Waiter waiter;
+        TunnelQueue tunnel;
+        lock.lock();
+
+        try {
+            tunnel = tunnels.computeIfAbsent(key, k -> new TunnelQueue(k, userId));
+
+            if (tunnel.queue.isEmpty() && isAdmissible(tunnel)) {
+                acquire(tunnel);
+                waiter = null;
+            } else if (tunnel.queue.size() >= maxQueuePerTunnel) {
+                rejected.increment();
+                tunnelMetrics.recordRejected(subdomain);
+                log.error("Tunnel queue is full: subdomain={}, queued={}", subdomain, tunnel.queue.size());
+                return CompletableFuture.failedFuture(new ServiceUnavailableException("Tunnel is overloaded, please try again later"));
+            } else {
+                waiter = new Waiter(task);
+                tunnel.queue.add(waiter);
+
+                if (!tunnel.waiting) {
+                    tunnel.waiting = true;
+                    waiting.add(tunnel);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (waiter == null) {
+            recordWait(key, 0);
+            return run(tunnel, task);
+        }
+
+        waiter.queued.orTimeout(queueTimeoutMillis, TimeUnit.MILLISECONDS).whenComplete((dispatched, e) -> {
+            if (e instanceof TimeoutException && waiter.future.completeExceptionally(new BaseException(Settings.TIMEOUT_HTML))) {
+                log.error("Request timed out in tunnel queue: subdomain={}", subdomain);
+            }
+        });
+        waiter.future.whenComplete((response, e) -> waiter.queued.complete(null));
+        return waiter.future;
+    }
+
+    /**
+     * Forgets a tunnel that is gone. Requests still queued fail.
+     */
+    public void removeTunnel(String subdomain) {
+        TunnelQueue tunnel;
+        lock.lock();
+
+        try {
+            tunnel = tunnels.remove(subdomain.toLowerCase(Locale.ROOT));
+
+            if (tunnel == null) {
+                return;
+            }
+
+            waiting.remove(tunnel);
+            tunnel.waiting = false;
+        } finally {
+            lock.unlock();
+        }
+
+        tunnel.queue.forEach(waiter -> waiter.future.completeExceptionally(new BaseException(Settings.TUNNEL_NOT_FOUND_HTML)));
+    }
+
+    public int inFlight() {
+        lock.lock();
+
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int queued() {
+        lock.lock();
+
+        try {
+            int queued = 0;
+
+            for (TunnelQueue tunnel : waiting) {
+                queued += tunnel.queue.size();
+            }
+
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int queued(String subdomain) {
+        lock.lock();
+
+        try {
+            TunnelQueue tunnel = tunnels.get(subdomain.toLowerCase(Locale.ROOT));
+            return tunnel != null ? tunnel.queue.size() : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private CompletableFuture<Response> run(TunnelQueue tunnel, Supplier<CompletableFuture<Response>> task) {
+        CompletableFuture<Response> future;
+
+        try {
+            future = task.get();
+        } catch (RuntimeException e) {
+            release(tunnel);
+            throw e;
+        }
+
+        // Returned as is rather than as the whenComplete stage: a stage cancelled by the caller would never run
+        // its action, and the slot would leak.
+        future.whenComplete((response, e) -> release(tunnel));
+        return future;
+    }
+
+    private void release(TunnelQueue tunnel) {
+        List<Map.Entry<TunnelQueue, Waiter>> ready = new ArrayList<>();
+        lock.lock();
+
+        try {
+            tunnel.inFlight--;
+            inFlight--;
+
+            if (tunnel.userId != null) {
+                userInFlight.computeIfPresent(tunnel.userId, (id, count) -> count > 1 ? count - 1 : null);
+            }
+
+            dispatch(ready);
+        } finally {
+            lock.unlock();
+        }
+
+        for (Map.Entry<TunnelQueue, Waiter> entry : ready) {
+            recordWait(entry.getKey().subdomain, System.nanoTime() - entry.getValue().queuedAt);
+            start(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Starts a request that waited for its slot. Never inline: release runs on whatever thread completed the
+     * previous forward, usually an agent session's receive thread or the timeout thread, and starting a forward
+     * can read a whole upload and wait for room in the agent's outbound queue.
+     */
+    private void start(TunnelQueue tunnel, Waiter waiter) {
+        try {
+            executor.execute(() -> {
+                if (waiter.future.isDone()) {
+                    release(tunnel);
+                    return;
+                }
+
+                try {
+                    CompletableFuture<Response> running = run(tunnel, waiter.task);
+                    running.whenComplete((response, e) -> {
+                        if (e != null) {
+                            waiter.future.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+                        } else {
+                            waiter.future.complete(response);
+                        }
+                    });
+                    Utils.propagateCancel(waiter.future, running);
+                } catch (RuntimeException e) {
+                    waiter.future.completeExceptionally(e);
+                }
+            });
+        } catch (TaskRejectedException e) {
+            log.error("Could not start queued request: error={}", e.getMessage());
+            release(tunnel);
+            waiter.future.completeExceptionally(new ServiceUnavailableException("Server is overloaded, please try again later"));
+        }
+    }
+
+    /**
+     * Takes one request from each waiting tunnel in turn until no waiting tunnel is admissible.
+     */
+    private void dispatch(List<Map.Entry<TunnelQueue, Waiter>> ready) {
+        boolean progress = true;
+
+        while (progress && inFlight < maxInFlight && !waiting.isEmpty()) {
+            progress = false;
+
+            for (int i = waiting.size(); i > 0 && inFlight < maxInFlight; i--) {
+                TunnelQueue tunnel = waiting.poll();
+                Waiter waiter = tunnel.queue.peek();
+
+                while (waiter != null && waiter.future.isDone()) {
+                    tunnel.queue.poll();
+                    waiter = tunnel.queue.peek();
+                }
+
+                if (waiter != null && isAdmissible(tunnel)) {
+                    tunnel.queue.poll();
+                    waiter.queued.complete(null);
+                    acquire(tunnel);
+                    ready.add(Map.entry(tunnel, waiter));
+                    progress = true;
+                }
+
+                if (tunnel.queue.isEmpty()) {
+                    tunnel.waiting = false;
+                } else {
+                    waiting.add(tunnel);
+                }
+            }
+        }
+    }
+
+    private void recordWait(String subdomain, long nanos) {
+        wait.record(nanos, TimeUnit.NANOSECONDS);
+        tunnelMetrics.recordQueueWait(subdomain, nanos);
+    }
+
+    private boolean isAdmissible(TunnelQueue tunnel) {
+        return inFlight < maxInFlight
+                && tunnel.inFlight < maxInFlightPerTunnel
+                && (tunnel.userId == null || userInFlight.getOrDefault(tunnel.userId, 0) < maxInFlightPerUser);
+    }
+
+    private void acquire(TunnelQueue tunnel) {
+        tunnel.inFlight++;
+        inFlight++;
+
+        if (tunnel.userId != null) {
+            userInFlight.merge(tunnel.userId, 1, Integer::sum);
+        }
+    }
+
+    private static class Waiter {
+        private final Supplier<CompletableFuture<Response>> task;
+        private final CompletableFuture<Response> future = new CompletableFuture<>();
+        /** Completes when the waiter leaves the queue, which also drops its queue timeout. */
+        private final CompletableFuture<Void> queued = new CompletableFuture<>();
+        private final long queuedAt = System.nanoTime();
+
+        private Waiter(Supplier<CompletableFuture<Response>> task) {
+            this.task = task;
+        }
+    }
+
+    private static class TunnelQueue {
+        private final String subdomain;
+        private final Long userId;
+        private final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+        private int inFlight;
+        private boolean waiting;
+
+        private TunnelQueue(String subdomain, Long userId) {
+            this.subdomain = subdomain;
+            this.userId = userId;
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package uz.server.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.stereotype.Component;
+import uz.server.domain.exception.ServiceUnavailableException;
+import uz.server.domain.model.ForwardInfo;
+import uz.server.domain.model.Request;
+import uz.server.domain.model.Response;
+import uz.server.utils.Utils;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+/**
+ * Lets identical GET and HEAD requests that are in flight together share one agent round trip. Requests are
+ * identical when subdomain, method, path and the configured key headers match; credentials and validators are
+ * among those headers, so a response is only shared between requests that would have got the same answer.
+ * <p>
+ * A request can join until the response head arrives. A buffered response that a shared cache could store is
+ * then handed to every caller. Any other response, including every streamed one, goes to the first caller
+ * only, and the others make their own round trips, so nothing is buffered here on their behalf.
+ */
+@Component
+@Slf4j
+public class RequestCoalescer {
+    private final boolean enabled;
+    private final List<String> keyHeaders;
+    private final TaskExecutor executor;
+    private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<>();
+
+    private final Counter leaders;
+    private final Counter followers;
+    private final Counter retries;
+
+    public RequestCoalescer(
+            MeterRegistry meterRegistry,
+            @Qualifier("applicationTaskExecutor") TaskExecutor executor,
+            @Value("${tarmoqchi.coalescing.enabled}") boolean enabled,
+            @Value("${tarmoqchi.coalescing.key-headers}") List<String> keyHeaders
+    ) {
+        this.enabled = enabled;
+        this.keyHeaders = List.copyOf(keyHeaders);
+        this.executor = executor;
+
+        this.leaders = counter(meterRegistry, "leader");
+        this.followers = counter(meterRegistry, "follower");
+        this.retries = counter(meterRegistry, "retried");
+    }
+
+    /**
+     * Joins an identical request in flight, or sends this one through {@code origin} and lets later identical
+     * requests join it. Requests with a body must not come through here.
+     */
+    public CompletableFuture<Response> forward(String subdomain, Request request,
+                                               Function<Request, CompletableFuture<Response>> origin) {
+        ForwardInfo info = request.getForwardInfo();
+
+        // Event streams are never shared, so joining one would only delay the follower's own round trip.
+        if (!enabled || !(info.getMethod().equals("GET") || info.getMethod().equals("HEAD"))
+                || Utils.acceptsStreamingType(info.getHeaders())) {
+            return origin.apply(request);
+        }
+
+        String key = key(subdomain, info);
+        Waiter waiter = new Waiter(new CompletableFuture<>(), request, origin);
+        boolean[] leader = {false};
+        Flight flight = flights.compute(key, (k, current) -> {
+            leader[0] = current == null;
+            Flight joined = leader[0] ? new Flight() : current;
+            joined.waiters.add(waiter);
+            return joined;
+        });
+
+        waiter.future.whenComplete((response, e) -> {
+            if (waiter.future.isCancelled()) {
+                leave(key, flight, waiter);
+            }
+        });
+
+        if (!leader[0]) {
+            followers.increment();
+            log.info("Request joined one in flight: subdomain={}, path={}, waiters={}", subdomain, info.getPath(), flight.waiters.size());
+            return waiter.future;
+        }
+
+        leaders.increment();
+
+        try {
+            flight.upstream = origin.apply(request);
+            flight.upstream.whenComplete((response, e) -> land(key, flight, response, e));
+
+            if (flight.waiters.isEmpty()) {
+                flight.upstream.cancel(false);
+            }
+        } catch (RuntimeException e) {
+            land(key, flight, null, e);
+        }
+
+        return waiter.future;
+    }
+
+    /**
+     * Drops a cancelled waiter. The round trip is cancelled only when nobody is left waiting for it, and the
+     * flight is forgotten first so a later identical request starts a fresh one.
+     */
+    private void leave(String key, Flight flight, Waiter waiter) {
+        boolean[] abandoned = {false};
+
+        flights.computeIfPresent(key, (k, current) -> {
+            if (current != flight) {
+                return current;
+            }
+
+            current.waiters.remove(waiter);
+            abandoned[0] = current.waiters.isEmpty();
+            return abandoned[0] ? null : current;
+        });
+
+        CompletableFuture<Response> upstream = flight.upstream;
+
+        if (abandoned[0] && upstream != null) {
+            int end = key.indexOf('\n');
+            log.info("Cancelling coalesced request, no waiters left: request={}", end < 0 ? key : key.substring(0, end));
+            upstream.cancel(false);
+        }
+    }
+
+    public int inFlight() {
+        return flights.size();
+    }
+
+    private void land(String key, Flight flight, Response response, Throwable e) {
+        flights.remove(key, flight);
+        List<Waiter> waiters = flight.waiters;
+
+        if (e != null) {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            waiters.forEach(waiter -> waiter.future.completeExceptionally(cause));
+            return;
+        }
+
+        if (waiters.isEmpty()) {
+            return;
+        }
+
+        if (waiters.size() == 1) {
+            waiters.get(0).future.complete(response);
+            return;
+        }
+
+        if (response.getStream() == null && EdgeCache.isStorable(response)) {
+            waiters.forEach(waiter -> waiter.future.complete(copy(response)));
+            return;
+        }
+
+        int end = key.indexOf('\n');
+        log.info("Response cannot be shared, followers send their own: request={}, status={}, streamed={}, followers={}",
+                end < 0 ? key : key.substring(0, end), response.getStatus(), response.getStream() != null, waiters.size() - 1);
+        waiters.get(0).future.complete(response);
+        waiters.subList(1, waiters.size()).forEach(this::retry);
+    }
+
+    /**
+     * Sends a follower's own request once it turned out the leader's response cannot be shared. It runs on the
+     * task executor, as the response that landed is usually completed on a WebSocket receiving thread.
+     */
+    private void retry(Waiter waiter) {
+        if (waiter.future.isDone()) {
+            return;
+        }
+
+        retries.increment();
+
+        try {
+            executor.execute(() -> {
+                if (waiter.future.isDone()) {
+                    return;
+                }
+
+                try {
+                    CompletableFuture<Response> upstream = waiter.origin.apply(waiter.request);
+                    Utils.propagateCancel(waiter.future, upstream);
+                    upstream.whenComplete((response, e) -> {
+                        if (e != null) {
+                            waiter.future.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+                        } else {
+                            waiter.future.complete(response);
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    waiter.future.completeExceptionally(e);
+                }
+            });
+        } catch (TaskRejectedException e) {
+            waiter.future.completeExceptionally(new ServiceUnavailableException("Server is overloaded, please try again later"));
+        }
+    }
+
+    private String key(String subdomain, ForwardInfo info) {
+        StringBuilder key = new StringBuilder(subdomain.toLowerCase(Locale.ROOT))
+                .append(' ').append(info.getMethod())
+                .append(' ').append(info.getPath());
+
+        for (String name : keyHeaders) {
+            key.append('\n').append(Objects.requireNonNullElse(Utils.getHeader(info.getHeaders(), name), ""));
+        }
+
+        return key.toString();
+    }
+
+    private static Response copy(Response response) {
+        Map<String, String> headers = response.getHeaders() != null ? new HashMap<>(response.getHeaders()) : new HashMap<>();
+        return new Response(response.getRequestId(), response.getStatus(), null, response.isLast(),
+                response.getResponseType(), headers, response.getData(), null);
+    }
+
+    private static Counter counter(MeterRegistry meterRegistry, String role) {
+        return Counter.builder("tarmoqchi.coalescing.requests")
+                .description("GET and HEAD requests by whether they led an agent round trip, joined one, or joined one "
+                        + "whose response could not be shared and sent their own")
+                .tag("role", role)
+                .register(meterRegistry);
+    }
+
+    private static class Flight {
+        private final List<Waiter> waiters = new CopyOnWriteArrayList<>();
+        private volatile CompletableFuture<Response> upstream;
+    }
+
+    /**
+     * A caller of {@link #forward}, with its own request and origin, so it can still make its own round trip.
+     */
+    private record Waiter(CompletableFuture<Response> future, Request request,
+                          Function<Request, CompletableFuture<Response>> origin) {
+    }
+}
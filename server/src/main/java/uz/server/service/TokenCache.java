@@ -0,0 +1,157 @@
+package uz.server.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import uz.server.domain.entity.User;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Bounded token to user cache with TTL, so reconnect storms do not turn into a burst of identical
+ * {@code findByToken} queries. Unknown tokens are cached for a shorter time, and concurrent misses
+ * for the same token share one lookup.
+ */
+@Component
+@Slf4j
+public class TokenCache {
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final long ttlMillis;
+    private final long negativeTtlMillis;
+    private final int maxSize;
+
+    private final Counter hits;
+    private final Counter negativeHits;
+    private final Counter misses;
+
+    public TokenCache(
+            MeterRegistry meterRegistry,
+            @Value("${tarmoqchi.auth.token-cache.ttl}") Duration ttl,
+            @Value("${tarmoqchi.auth.token-cache.negative-ttl}") Duration negativeTtl,
+            @Value("${tarmoqchi.auth.token-cache.max-size}") int maxSize
+    ) {
+        this.ttlMillis = ttl.toMillis();
+        this.negativeTtlMillis = negativeTtl.toMillis();
+        this.maxSize = maxSize;
+
+        this.hits = counter(meterRegistry, "hit");
+        this.negativeHits = counter(meterRegistry, "negative_hit");
+        this.misses = counter(meterRegistry, "miss");
+        Gauge.builder("tarmoqchi.auth.token.cache.size", entries, ConcurrentHashMap::size)
+                .description("Cached agent tokens")
+                .register(meterRegistry);
+    }
+
+    /**
+     * @return the cached user, or the result of {@code loader}, which may be null for an unknown token
+     */
+    public User get(String token, Function<String, User> loader) {
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(token);
+
+        if (entry != null && !entry.isExpired(now)) {
+            User user = await(entry);
+            (user != null ? hits : negativeHits).increment();
+            return user;
+        }
+
+        misses.increment();
+
+        Entry loading = new Entry();
+        Entry existing = entry == null ? entries.putIfAbsent(token, loading) : replace(token, entry, loading);
+
+        if (existing != null) {
+            return await(existing);
+        }
+
+        if (entries.size() > maxSize) {
+            evict(now);
+        }
+
+        try {
+            User user = loader.apply(token);
+            loading.expiresAt = System.currentTimeMillis() + (user != null ? ttlMillis : negativeTtlMillis);
+            loading.value.complete(user);
+            return user;
+        } catch (RuntimeException e) {
+            entries.remove(token, loading);
+            loading.value.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    public void invalidate(String token) {
+        if (token != null && entries.remove(token) != null) {
+            log.info("Token cache entry invalidated");
+        }
+    }
+
+    /**
+     * Drops the entries of the user, and any lookup still in flight, which may have read the user's old row.
+     */
+    public void invalidateUser(Long userId) {
+        entries.values().removeIf(entry -> {
+            if (!entry.value.isDone()) {
+                return true;
+            }
+
+            User user = entry.value.getNow(null);
+            return user != null && Objects.equals(user.getId(), userId);
+        });
+        log.info("Token cache invalidated for user: userId={}", userId);
+    }
+
+    private Entry replace(String token, Entry expired, Entry loading) {
+        if (entries.replace(token, expired, loading)) {
+            return null;
+        }
+
+        return entries.putIfAbsent(token, loading);
+    }
+
+    private static User await(Entry entry) {
+        try {
+            return entry.value.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    private void evict(long now) {
+        entries.values().removeIf(entry -> entry.isExpired(now));
+        Iterator<Entry> iterator = entries.values().iterator();
+
+        while (entries.size() > maxSize && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private static Counter counter(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("tarmoqchi.auth.token.cache")
+                .description("Agent token cache lookups")
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    private static class Entry {
+        private final CompletableFuture<User> value = new CompletableFuture<>();
+        private volatile long expiresAt = Long.MAX_VALUE;
+
+        private boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package uz.server.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import uz.server.domain.dto.TrafficPage;
+import uz.server.domain.model.Response;
+import uz.server.utils.PreviewInputStream;
+import uz.server.utils.TrafficRing;
+import uz.server.ws.TunnelHolder;
+
+import java.io.InputStream;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Recent forwards of the tunnels on this node, for their owners to look at. A tunnel gets a {@link TrafficRing}
+ * of {@code capacity} records on its first forward and loses it when the tunnel goes away. At most
+ * {@code max-tunnels} tunnels are recorded at once, so memory stays under max-tunnels times the ring size
+ * whatever the traffic.
+ * <p>
+ * Body previews are off unless {@code preview-size} is set, since bodies carry passwords and tokens as often
+ * as not. For the same reason paths are recorded without their query, which holds tokens and OAuth codes, unless
+ * previews are on.
+ */
+@Component
+@Slf4j
+public class TrafficInspector {
+    private final TunnelHolder tunnelHolder;
+    private final boolean enabled;
+    private final int capacity;
+    private final int previewSize;
+    private final int maxTunnels;
+    private final Map<String, TrafficRing> rings = new ConcurrentHashMap<>();
+    private final Counter dropped;
+
+    public TrafficInspector(
+            TunnelHolder tunnelHolder,
+            MeterRegistry meterRegistry,
+            @Value("${tarmoqchi.inspector.enabled}") boolean enabled,
+            @Value("${tarmoqchi.inspector.capacity}") int capacity,
+            @Value("${tarmoqchi.inspector.preview-size}") int previewSize,
+            @Value("${tarmoqchi.inspector.max-tunnels}") int maxTunnels
+    ) {
+        this.tunnelHolder = tunnelHolder;
+        this.enabled = enabled;
+        this.capacity = capacity;
+        this.previewSize = previewSize;
+        this.maxTunnels = maxTunnels;
+
+        this.dropped = Counter.builder("tarmoqchi.inspector.dropped")
+                .description("Forwards not recorded because their ring slot was still being written")
+                .register(meterRegistry);
+        Gauge.builder("tarmoqchi.inspector.memory", rings, r -> r.values().stream().mapToLong(TrafficRing::bytes).sum())
+                .description("Off-heap memory held by the rings of the traffic inspector")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Wraps a request body so its size, and its first bytes if previews are on, end up in the record.
+     */
+    public InputStream inspect(InputStream body) {
+        return enabled && body != null ? new PreviewInputStream(body, previewSize) : body;
+    }
+
+    /**
+     * Records a finished forward. Called on the forward path, so it never blocks.
+     *
+     * @param body   the body returned by {@link #inspect}, or null
+     * @param stages see {@link uz.server.domain.model.ForwardTiming#stages}
+     */
+    public void record(String subdomain, String method, String path, InputStream body, Response response,
+                       Throwable error, Map<String, Double> stages) {
+        if (!enabled) {
+            return;
+        }
+
+        TrafficRing ring = ring(subdomain);
+
+        if (ring == null) {
+            return;
+        }
+
+        PreviewInputStream request = body instanceof PreviewInputStream preview ? preview : null;
+        byte[] data = response != null ? response.getData() : null;
+        long responseSize = response == null ? 0 : response.getStream() != null ? -1 : data != null ? data.length : 0;
+
+        int query = path != null && previewSize == 0 ? path.indexOf('?') : -1;
+        boolean written = ring.write(System.currentTimeMillis(), method, query < 0 ? path : path.substring(0, query),
+                response != null ? response.getStatus() : 0,
+                error != null ? TunnelMetrics.outcome(null, error) : null,
+                request != null ? request.getCount() : 0,
+                responseSize,
+                stages,
+                request != null ? request.getPreview() : null,
+                request != null ? request.getPreviewLength() : 0,
+                previewSize > 0 ? data : null);
+
+        if (!written) {
+            dropped.increment();
+        }
+    }
+
+    public TrafficPage read(String subdomain, long after, int limit) {
+        TrafficRing ring = rings.get(subdomain.toLowerCase(Locale.ROOT));
+        return ring != null ? ring.read(after, limit) : new TrafficPage(List.of(), after, 0);
+    }
+
+    public void removeTunnel(String subdomain) {
+        if (rings.remove(subdomain.toLowerCase(Locale.ROOT)) != null) {
+            log.info("Traffic inspector ring released: subdomain={}", subdomain);
+        }
+    }
+
+    /**
+     * Only tunnels served by this node get a ring, so requests for unknown hosts cannot take up slots.
+     */
+    private TrafficRing ring(String subdomain) {
+        String key = subdomain.toLowerCase(Locale.ROOT);
+        TrafficRing ring = rings.get(key);
+
+        if (ring != null || rings.size() >= maxTunnels || tunnelHolder.getSessionId(key) == null) {
+            return ring;
+        }
+
+        return rings.computeIfAbsent(key, k -> new TrafficRing(capacity, previewSize));
+    }
+}
@@ -0,0 +1,319 @@
+package uz.server.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import uz.server.config.Settings;
+import uz.server.domain.exception.BaseException;
+import uz.server.domain.model.ForwardTiming;
+import uz.server.domain.model.Response;
+import uz.server.ws.RequestHolder;
+import uz.server.ws.Sender;
+import uz.server.ws.TunnelHolder;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Metrics of the forward path, for the whole node and per tunnel. Only the first {@code max-tunnels} live
+ * tunnels get series of their own; traffic of any other tunnel is counted under {@code tunnel="other"}, so the
+ * number of series stays bounded however many tunnels come and go. A tunnel's series are removed with it.
+ * <p>
+ * Latency is tagged with the outcome: the status class of the response, or {@code timeout}, {@code cancelled}
+ * or {@code error} when there was none.
+ */
+@Component
+public class TunnelMetrics {
+    public static final String OTHER = "other";
+
+    private static final Duration[] LATENCY_BUCKETS = {
+            Duration.ofMillis(10), Duration.ofMillis(50), Duration.ofMillis(100), Duration.ofMillis(250),
+            Duration.ofMillis(500), Duration.ofSeconds(1), Duration.ofMillis(2500), Duration.ofSeconds(5),
+            Duration.ofSeconds(10), Duration.ofSeconds(30)
+    };
+
+    private final MeterRegistry meterRegistry;
+    private final Sender sender;
+    private final TunnelHolder tunnelHolder;
+    private final int maxTunnels;
+
+    private final Map<String, Timer> latency = new ConcurrentHashMap<>();
+    private final Map<String, Timer> stages = new ConcurrentHashMap<>();
+    private final Counter requestBytes;
+    private final Counter responseBytes;
+    private final Counter chunks;
+    private final DistributionSummary responseSize;
+    private final Counter appNotRunning;
+    private final Map<String, TunnelMeters> tunnels = new ConcurrentHashMap<>();
+    private final TunnelMeters other;
+
+    public TunnelMetrics(
+            MeterRegistry meterRegistry,
+            RequestHolder requestHolder,
+            Sender sender,
+            TunnelHolder tunnelHolder,
+            @Value("${tarmoqchi.metrics.max-tunnels}") int maxTunnels
+    ) {
+        this.meterRegistry = meterRegistry;
+        this.sender = sender;
+        this.tunnelHolder = tunnelHolder;
+        this.maxTunnels = maxTunnels;
+
+        this.requestBytes = bytes("tarmoqchi.forward.bytes", "request").register(meterRegistry);
+        this.responseBytes = bytes("tarmoqchi.forward.bytes", "response").register(meterRegistry);
+        this.chunks = Counter.builder("tarmoqchi.forward.chunks")
+                .description("Response chunks received from agents")
+                .register(meterRegistry);
+        this.responseSize = DistributionSummary.builder("tarmoqchi.forward.response.size")
+                .description("Size of responses reassembled from their chunks before being forwarded")
+                .baseUnit("bytes")
+                .serviceLevelObjectives(1024, 16 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024, 4 * 1024 * 1024,
+                        16 * 1024 * 1024, 64 * 1024 * 1024)
+                .register(meterRegistry);
+        this.appNotRunning = Counter.builder("tarmoqchi.forward.app.not.running")
+                .description("Requests answered with NOT_RUNNING_APP_OF_CLIENT because the local app was down")
+                .register(meterRegistry);
+        this.other = new TunnelMeters(OTHER);
+
+        Gauge.builder("tarmoqchi.forward.in.flight", requestHolder, RequestHolder::size)
+                .description("Requests sent to agents and waiting in the request holder for their response")
+                .register(meterRegistry);
+        Gauge.builder("tarmoqchi.outbound.queued", sender, Sender::totalQueueSize)
+                .description("Messages queued for all agent sessions")
+                .register(meterRegistry);
+        Gauge.builder("tarmoqchi.outbound.queue.max", sender, Sender::maxQueueSize)
+                .description("Messages queued for the agent session with the longest queue")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Records a forward from the moment the request arrived until its response or failure.
+     */
+    public void recordForward(String subdomain, long startNanos, Response response, Throwable error) {
+        String outcome = outcome(response, error);
+        long elapsed = System.nanoTime() - startNanos;
+
+        latency.computeIfAbsent(outcome, key -> Timer.builder("tarmoqchi.forward.latency")
+                        .description("Time from receiving a tunnel request to having its response, cache hits included")
+                        .tag("outcome", key)
+                        .publishPercentileHistogram()
+                        .register(meterRegistry))
+                .record(elapsed, TimeUnit.NANOSECONDS);
+
+        TunnelMeters meters = forSubdomain(subdomain);
+
+        if (meters != null) {
+            meters.latency(outcome).record(elapsed, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Records the stages of a forward, see {@link ForwardTiming}. The names are fixed by the server, so they are
+     * safe as tags.
+     */
+    public void recordStages(Map<String, Double> durations) {
+        durations.forEach((stage, millis) -> stages.computeIfAbsent(stage, key -> Timer.builder("tarmoqchi.forward.stage")
+                        .description("Time a forward spent in each stage, from arrival to the response")
+                        .tag("stage", key)
+                        .publishPercentileHistogram()
+                        .register(meterRegistry))
+                .record((long) (millis * 1e6), TimeUnit.NANOSECONDS));
+    }
+
+    public void recordRequestBytes(String subdomain, long bytes) {
+        requestBytes.increment(bytes);
+        TunnelMeters meters = forSubdomain(subdomain);
+
+        if (meters != null) {
+            meters.requestBytes.increment(bytes);
+        }
+    }
+
+    public void recordChunk(String sessionId, long bytes) {
+        chunks.increment();
+        responseBytes.increment(bytes);
+        TunnelMeters meters = forSession(sessionId);
+
+        if (meters != null) {
+            meters.chunks.increment();
+            meters.responseBytes.increment(bytes);
+        }
+    }
+
+    public void recordResponseSize(long bytes) {
+        responseSize.record(bytes);
+    }
+
+    public void recordAppNotRunning(String sessionId) {
+        appNotRunning.increment();
+        TunnelMeters meters = forSession(sessionId);
+
+        if (meters != null) {
+            meters.appNotRunning.increment();
+        }
+    }
+
+    /**
+     * Records how long a request of a tunnel waited in {@link ForwardScheduler} for an in-flight slot.
+     */
+    public void recordQueueWait(String subdomain, long nanos) {
+        TunnelMeters meters = forSubdomain(subdomain);
+
+        if (meters != null) {
+            meters.queueWait.record(nanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    public void recordRejected(String subdomain) {
+        TunnelMeters meters = forSubdomain(subdomain);
+
+        if (meters != null) {
+            meters.rejected.increment();
+        }
+    }
+
+    /**
+     * Removes the series of a tunnel that is gone, which frees its slot for the next tunnel.
+     */
+    public void removeTunnel(String subdomain) {
+        TunnelMeters meters = tunnels.remove(subdomain.toLowerCase(Locale.ROOT));
+
+        if (meters != null) {
+            meters.meters.forEach(meterRegistry::remove);
+        }
+    }
+
+    public int trackedTunnels() {
+        return tunnels.size();
+    }
+
+    /**
+     * Only tunnels served by this node get series, so requests for unknown hosts cannot take up slots.
+     */
+    private TunnelMeters forSubdomain(String subdomain) {
+        if (subdomain == null) {
+            return null;
+        }
+
+        String key = subdomain.toLowerCase(Locale.ROOT);
+        TunnelMeters meters = tunnels.get(key);
+
+        if (meters != null) {
+            return meters;
+        }
+
+        if (tunnelHolder.getSessionId(key) == null) {
+            return null;
+        }
+
+        if (tunnels.size() >= maxTunnels) {
+            return other;
+        }
+
+        return tunnels.computeIfAbsent(key, TunnelMeters::new);
+    }
+
+    private TunnelMeters forSession(String sessionId) {
+        return forSubdomain(tunnelHolder.getSubdomain(sessionId));
+    }
+
+    static String outcome(Response response, Throwable error) {
+        if (error == null) {
+            return response.getStatus() / 100 + "xx";
+        }
+
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+
+        if (cause instanceof TimeoutException
+                || cause instanceof BaseException && Settings.TIMEOUT_HTML.equals(cause.getMessage())) {
+            return "timeout";
+        }
+
+        return cause instanceof CancellationException ? "cancelled" : "error";
+    }
+
+    private static Counter.Builder bytes(String name, String direction) {
+        return Counter.builder(name)
+                .description("Body bytes forwarded to agents (request) and received from them (response)")
+                .baseUnit("bytes")
+                .tag("direction", direction);
+    }
+
+    private int maxQueueSize(String subdomain) {
+        int max = 0;
+
+        for (String sessionId : tunnelHolder.getSessionIds(subdomain)) {
+            max = Math.max(max, sender.queueSize(sessionId));
+        }
+
+        return max;
+    }
+
+    private class TunnelMeters {
+        private final String tunnel;
+        private final Map<String, Timer> latency = new ConcurrentHashMap<>();
+        private final Counter requestBytes;
+        private final Counter responseBytes;
+        private final Counter chunks;
+        private final Counter appNotRunning;
+        private final Timer queueWait;
+        private final Counter rejected;
+        private final List<Meter> meters = new CopyOnWriteArrayList<>();
+
+        private TunnelMeters(String tunnel) {
+            this.tunnel = tunnel;
+            this.requestBytes = add(bytes("tarmoqchi.tunnel.bytes", "request").tag("tunnel", tunnel).register(meterRegistry));
+            this.responseBytes = add(bytes("tarmoqchi.tunnel.bytes", "response").tag("tunnel", tunnel).register(meterRegistry));
+            this.chunks = add(Counter.builder("tarmoqchi.tunnel.chunks")
+                    .description("Response chunks received from the agents of a tunnel")
+                    .tag("tunnel", tunnel)
+                    .register(meterRegistry));
+            this.appNotRunning = add(Counter.builder("tarmoqchi.tunnel.app.not.running")
+                    .description("Requests of a tunnel answered with NOT_RUNNING_APP_OF_CLIENT")
+                    .tag("tunnel", tunnel)
+                    .register(meterRegistry));
+            this.queueWait = add(Timer.builder("tarmoqchi.tunnel.queue.wait")
+                    .description("Time requests of a tunnel waited for an in-flight slot")
+                    .tag("tunnel", tunnel)
+                    .register(meterRegistry));
+            this.rejected = add(Counter.builder("tarmoqchi.tunnel.rejected")
+                    .description("Requests of a tunnel rejected because its queue was full")
+                    .tag("tunnel", tunnel)
+                    .register(meterRegistry));
+
+            // Session ids would make a series per connection, so a tunnel reports its deepest session queue.
+            if (!OTHER.equals(tunnel)) {
+                add(Gauge.builder("tarmoqchi.tunnel.outbound.queue.depth", this, m -> maxQueueSize(m.tunnel))
+                        .description("Messages queued for the agent session of a tunnel with the longest queue")
+                        .tag("tunnel", tunnel)
+                        .register(meterRegistry));
+            }
+        }
+
+        private Timer latency(String outcome) {
+            return latency.computeIfAbsent(outcome, key -> add(Timer.builder("tarmoqchi.tunnel.latency")
+                    .description("Time from receiving a request of a tunnel to having its response")
+                    .tags("tunnel", tunnel, "outcome", key)
+                    .serviceLevelObjectives(LATENCY_BUCKETS)
+                    .register(meterRegistry)));
+        }
+
+        private <T extends Meter> T add(T meter) {
+            meters.add(meter);
+            return meter;
+        }
+    }
+}
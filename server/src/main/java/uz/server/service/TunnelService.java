@@ -1,27 +1,49 @@
 package uz.server.service;
 
 import java.security.SecureRandom;
+import java.time.Instant;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import uz.server.config.Settings;
 import uz.server.domain.entity.Tunnel;
 import uz.server.domain.entity.User;
 import uz.server.domain.exception.BaseException;
+import uz.server.domain.model.TunnelSettings;
 import uz.server.repository.TunnelRepository;
+import uz.server.ws.TunnelHolder;
 
 @Service
 @RequiredArgsConstructor
 @Slf4j
 public class TunnelService {
     private final TunnelRepository repo;
+    private final TunnelHolder tunnelHolder;
+    private final ClusterService clusterService;
+    private final EdgeCache edgeCache;
+    private final ForwardScheduler forwardScheduler;
+    private final TunnelMetrics tunnelMetrics;
+    private final TrafficInspector trafficInspector;
 
     private static final SecureRandom RANDOM = new SecureRandom();
     private static final String CHARACTERS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
 
-    public String create(String sessionId, User user, String customSubdomain) {
+    /**
+     * Creates a tunnel for the session, or with {@code join} adds the session to the user's live tunnel on
+     * {@code customSubdomain}, so several agents serve one subdomain. Joining a subdomain that nothing serves
+     * yet creates it.
+     */
+    public String create(String sessionId, User user, String customSubdomain, boolean join, TunnelSettings settings) {
+        if (join && customSubdomain != null && join(sessionId, user, customSubdomain)) {
+            return customSubdomain;
+        }
+
         log.info("Creating tunnel: userId={}", user.getId());
         Integer count = repo.countByUser(user);
 
@@ -30,7 +52,8 @@ public class TunnelService {
             throw new BaseException("You can't create more than 3 tunnels!");
         }
 
-        if (customSubdomain != null && repo.existsBySubdomain(customSubdomain)){
+        // Routing ignores case, so "App" would collide with a live "app".
+        if (customSubdomain != null && repo.existsBySubdomainIgnoreCase(customSubdomain)){
             log.error("Subdomain already exists: subdomain={}", customSubdomain);
             throw new BaseException("Subdomain already exists!");
         }
@@ -38,9 +61,19 @@ public class TunnelService {
         Tunnel save = repo.save(Tunnel.builder()
                 .sessionId(sessionId)
                 .subdomain(Objects.requireNonNullElse(customSubdomain, generateUniqueString()))
+                .ownerNode(clusterService.getNodeUrl())
+                .heartbeatAt(Instant.now())
+                .forwardTimeout(settings != null ? settings.getForwardTimeout() : null)
                 .user(user)
                 .build());
 
+        // The check above can race with another session creating the same subdomain.
+        if (!tunnelHolder.add(save.getSubdomain(), sessionId, user.getId(), settings)) {
+            log.error("Subdomain already served: subdomain={}", save.getSubdomain());
+            repo.delete(save);
+            throw new BaseException("Subdomain already exists!");
+        }
+
         log.info("Tunnel created: subdomain={}", save.getSubdomain());
 
         return save.getSubdomain();
@@ -56,18 +89,54 @@ public class TunnelService {
       return sb.toString();
     }
 
-    public void deactivate(Long tunnelId) {
-        log.info("Deactivating tunnel: tunnelId={}", tunnelId);
-        Optional<Tunnel> tunnel = repo.findById(tunnelId);
+    private boolean join(String sessionId, User user, String subdomain) {
+        Optional<Tunnel> tunnel = repo.findBySubdomainIgnoreCase(subdomain);
+
+        if (tunnel.isEmpty()) {
+            return false;
+        }
+
+        if (!Objects.equals(tunnel.get().getUser().getId(), user.getId())) {
+            log.error("Joining tunnel of another user: userId={}, subdomain={}", user.getId(), subdomain);
+            throw new BaseException("Subdomain already exists!");
+        }
+
+        if (!Objects.equals(tunnel.get().getOwnerNode(), clusterService.getNodeUrl())
+                || !tunnelHolder.join(tunnel.get().getSubdomain(), sessionId)) {
+            log.error("Tunnel to join is not served by this node: subdomain={}", subdomain);
+            throw new BaseException("Tunnel is not available to join, please try again");
+        }
+
+        log.info("Session joined tunnel: userId={}, subdomain={}", user.getId(), subdomain);
+        return true;
+    }
+
+    /**
+     * Removes the session from its tunnel. The tunnel is deleted with its last session; until then the row
+     * points at one of the remaining sessions.
+     */
+    public void deactivate(String sessionId) {
+        String subdomain = tunnelHolder.getSubdomain(sessionId);
 
-        if (tunnel.isEmpty()){
-            log.error("Tunnel not found: tunnelId={}", tunnelId);
-            throw new BaseException("Tunnel not found!");
+        if (subdomain == null) {
+            log.info("Session has no tunnel: sessionId={}", sessionId);
+            return;
         }
 
-        log.info("Tunnel deactivated and deleting: tunnelId={}", tunnelId);
+        List<String> remaining = tunnelHolder.remove(subdomain, sessionId);
+
+        if (remaining.isEmpty()) {
+            log.info("Tunnel deactivated and deleting: subdomain={}", subdomain);
+            repo.deleteBySubdomainIgnoreCase(subdomain);
+            edgeCache.invalidateTunnel(subdomain);
+            forwardScheduler.removeTunnel(subdomain);
+            tunnelMetrics.removeTunnel(subdomain);
+            trafficInspector.removeTunnel(subdomain);
+            return;
+        }
 
-        repo.deleteById(tunnelId);
+        log.info("Session left tunnel: subdomain={}, sessionId={}, remaining={}", subdomain, sessionId, remaining.size());
+        repo.moveSession(subdomain, sessionId, remaining.get(0));
     }
 
     public Tunnel getTunnelBySubdomain(String subdomain) {
@@ -75,6 +144,102 @@ public class TunnelService {
         return repo.findBySubdomainIgnoreCase(subdomain).orElseThrow(() -> new BaseException(Settings.TUNNEL_NOT_FOUND_HTML));
     }
 
+    /**
+     * Picks the least busy agent session of a subdomain from the in-memory routing table, without touching the
+     * database. The caller must hand it back with {@link #releaseSession(String)} once the response arrived.
+     */
+    public String acquireSession(String subdomain) {
+        String sessionId = tunnelHolder.acquire(subdomain);
+
+        if (sessionId == null) {
+            throw new BaseException(Settings.TUNNEL_NOT_FOUND_HTML);
+        }
+
+        return sessionId;
+    }
+
+    public void releaseSession(String sessionId) {
+        tunnelHolder.release(sessionId);
+    }
+
+    /**
+     * @return the owner of a tunnel served by this node
+     */
+    public Long getUserId(String subdomain) {
+        Long userId = tunnelHolder.getUserId(subdomain);
+
+        if (userId == null) {
+            throw new BaseException(Settings.TUNNEL_NOT_FOUND_HTML);
+        }
+
+        return userId;
+    }
+
+    /**
+     * @return the settings of the tunnel the session serves, or null if it serves none
+     */
+    public TunnelSettings getSettingsBySessionId(String sessionId) {
+        String subdomain = tunnelHolder.getSubdomain(sessionId);
+        return subdomain != null ? tunnelHolder.getSettings(subdomain) : null;
+    }
+
+    public TunnelSettings getSettings(String subdomain) {
+        return tunnelHolder.getSettings(subdomain);
+    }
+
+    public boolean isLocal(String subdomain) {
+        return tunnelHolder.getSessionId(subdomain) != null;
+    }
+
+    /**
+     * Resolves a tunnel of another node, with the node that owns it, from the shared tunnels table.
+     */
+    public Tunnel getRemoteTunnel(String subdomain) {
+        Tunnel tunnel = getTunnelBySubdomain(subdomain);
+
+        if (tunnel.getOwnerNode() == null || tunnel.getOwnerNode().equals(clusterService.getNodeUrl())) {
+            log.error("Tunnel has no live owner: subdomain={}, ownerNode={}", subdomain, tunnel.getOwnerNode());
+            throw new BaseException(Settings.TUNNEL_NOT_FOUND_HTML);
+        }
+
+        if (clusterService.isExpired(tunnel.getHeartbeatAt())) {
+            log.error("Tunnel owner is gone, reclaiming: subdomain={}, ownerNode={}", subdomain, tunnel.getOwnerNode());
+            repo.delete(tunnel);
+            throw new BaseException(Settings.TUNNEL_NOT_FOUND_HTML);
+        }
+
+        return tunnel;
+    }
+
+    /**
+     * Sessions do not survive a restart, so tunnels this node owned before it went down are dead.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void removeStaleTunnels() {
+        if (clusterService.isEnabled()) {
+            long removed = repo.deleteByOwnerNode(clusterService.getNodeUrl());
+            log.info("Stale tunnels removed: ownerNode={}, count={}", clusterService.getNodeUrl(), removed);
+        }
+    }
+
+    /**
+     * Keeps the tunnels of this node alive for the other nodes, and reclaims those of nodes that stopped doing so
+     * without a restart to clean up after themselves.
+     */
+    @Scheduled(fixedDelayString = "${tarmoqchi.cluster.heartbeat-interval}")
+    public void heartbeat() {
+        if (!clusterService.isEnabled()) {
+            return;
+        }
+
+        repo.heartbeat(clusterService.getNodeUrl(), Instant.now());
+        long removed = repo.deleteByHeartbeatAtBefore(clusterService.getExpiryCutoff());
+
+        if (removed > 0) {
+            log.info("Tunnels of dead nodes removed: count={}", removed);
+        }
+    }
+
     public Tunnel getTunnelBySessionId(String id) {
         log.info("Getting tunnel by sessionId: sessionId={}", id);
         return repo.findBySessionId(id).orElseThrow(() -> new BaseException(Settings.TUNNEL_NOT_FOUND_HTML));
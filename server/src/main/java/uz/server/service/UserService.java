@@ -8,6 +8,8 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.*;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 import org.springframework.web.client.RestTemplate;
@@ -25,6 +27,7 @@ public class UserService {
     private final UserRepository userRepository;
     private final ObjectMapper objectMapper;
     private final RestTemplate restTemplate;
+    private final TokenCache tokenCache;
 
     @Value("${github.client-id}")
     private String githubClientId;
@@ -44,7 +47,7 @@ public class UserService {
 
     public Optional<User> getByToken(String token) {
         log.debug("Fetching user by token");
-        return Optional.ofNullable(userRepository.findByToken(token));
+        return Optional.ofNullable(tokenCache.get(token, userRepository::findByToken));
     }
 
     public Optional<User> findById(Long id) {
@@ -118,7 +121,9 @@ public class UserService {
         existingUser.setName(githubUser.getName());
         existingUser.setAvatarUrl(githubUser.getAvatarUrl());
 
-        return userRepository.save(existingUser);
+        User saved = userRepository.save(existingUser);
+        afterCommit(() -> tokenCache.invalidateUser(saved.getId()));
+        return saved;
     }
 
     private User createNewUser(User githubUser, String accessToken) {
@@ -130,7 +135,9 @@ public class UserService {
             githubUser.setEmail(fetchPrimaryEmailFromGithub(accessToken));
         }
 
-        return userRepository.save(githubUser);
+        User saved = userRepository.save(githubUser);
+        afterCommit(() -> tokenCache.invalidate(saved.getToken()));
+        return saved;
     }
 
     private String fetchPrimaryEmailFromGithub(String accessToken) {
@@ -159,6 +166,24 @@ public class UserService {
         }
     }
 
+    /**
+     * Runs {@code action} once the current transaction committed. Invalidated before that, the cache could load
+     * the old row again from a concurrent lookup and keep it for a whole TTL.
+     */
+    private static void afterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+
     private HttpHeaders getAuthHeaders(String accessToken) {
         HttpHeaders headers = new HttpHeaders();
         headers.setBearerAuth(accessToken);
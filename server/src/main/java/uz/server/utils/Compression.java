@@ -0,0 +1,97 @@
+package uz.server.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip helpers for frame bodies on agent sessions that negotiated {@code Tunnel-Encoding: gzip}.
+ * Every compressed fragment is a complete gzip member, so fragments can be inflated independently.
+ */
+public final class Compression {
+    public static final String ENCODING_HEADER = "Tunnel-Encoding";
+    public static final String GZIP = "gzip";
+
+    private static final Set<String> COMPRESSED_TYPES = Set.of(
+            "application/gzip",
+            "application/zip",
+            "application/zstd",
+            "application/x-7z-compressed",
+            "application/x-rar-compressed",
+            "application/octet-stream"
+    );
+
+    private Compression() {
+    }
+
+    /**
+     * Whether a body of this type and encoding is worth compressing. Bodies that already carry a
+     * Content-Encoding, and media that is compressed by its format, are sent as they are.
+     */
+    public static boolean isCompressible(String contentType, String contentEncoding) {
+        if (contentEncoding != null && !contentEncoding.equalsIgnoreCase("identity")) {
+            return false;
+        }
+
+        if (contentType == null) {
+            return false;
+        }
+
+        String type = contentType.toLowerCase(Locale.ROOT);
+        int parameters = type.indexOf(';');
+
+        if (parameters >= 0) {
+            type = type.substring(0, parameters).trim();
+        }
+
+        if (type.startsWith("image/") && !type.equals("image/svg+xml")) {
+            return false;
+        }
+
+        return !type.startsWith("video/") && !type.startsWith("audio/") && !COMPRESSED_TYPES.contains(type);
+    }
+
+    public static byte[] gzip(byte[] data, int length) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, length / 4));
+
+        try (GZIPOutputStream gzip = new FastGZIPOutputStream(out)) {
+            gzip.write(data, 0, length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * @throws IOException if the data is not gzip or inflates past {@code maxSize}
+     */
+    public static byte[] gunzip(byte[] data, long maxSize) throws IOException {
+        try (InputStream gzip = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            byte[] inflated = gzip.readNBytes((int) Math.min(maxSize + 1, Integer.MAX_VALUE - 8));
+
+            if (inflated.length > maxSize) {
+                throw new IOException("Compressed frame inflates past " + maxSize + " bytes");
+            }
+
+            return inflated;
+        }
+    }
+
+    /**
+     * Frames are compressed on the forwarding path, so speed matters more than the last few percent of ratio.
+     */
+    private static class FastGZIPOutputStream extends GZIPOutputStream {
+        FastGZIPOutputStream(ByteArrayOutputStream out) throws IOException {
+            super(out);
+            def.setLevel(Deflater.BEST_SPEED);
+        }
+    }
+}
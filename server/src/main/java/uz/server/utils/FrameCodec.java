@@ -0,0 +1,303 @@
+package uz.server.utils;
+
+import org.springframework.stereotype.Component;
+import uz.server.domain.enums.FrameType;
+import uz.server.domain.enums.ResponseType;
+import uz.server.domain.exception.BaseException;
+import uz.server.domain.model.ForwardInfo;
+import uz.server.domain.model.Frame;
+import uz.server.domain.model.Request;
+import uz.server.domain.model.Response;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Codec for the binary tunnel protocol, negotiated with the {@code Tunnel-Protocol: binary} handshake header.
+ * Control messages (CREATED, ERROR) stay JSON text frames, forwarded traffic travels as binary frames.
+ * <p>
+ * The agent in {@code cli/} does not ask for this protocol yet and stays on JSON, so gzip, CANCEL, HPACK
+ * headers and WebSocket passthrough only take effect with agents that do.
+ * <p>
+ * Frame layout, all integers big-endian:
+ * <pre>
+ * type (1) | flags (1) | request id (16) | header block length (4) | header block | body fragment
+ * </pre>
+ * Header block: {@code status (2) | method | path | header count (2) | (name | value)*}, where every string
+ * is a 2 byte length followed by UTF-8 bytes. Status is 0 and method/path are empty when not applicable.
+ * A header that occurs more than once is repeated. On sessions that negotiated
+ * {@code Tunnel-Header-Encoding: hpack}, the header count and pairs are replaced by an HPACK block running to
+ * the end of the header block, see {@link HeaderTable}.
+ * <p>
+ * HEADERS frames of requests carry the deadline as epoch millis in the {@code :deadline} pseudo-header, which
+ * agents must not pass on to the local app. A CANCEL frame has no header fields or body; it tells the agent to
+ * stop working on the request.
+ * <p>
+ * WebSocket passthrough uses the request id as stream id. The server opens a stream with WS_OPEN carrying the
+ * path and the upgrade request headers; the agent answers with WS_OPEN, status 101 if the local app accepted
+ * the upgrade (with its {@code Sec-WebSocket-Protocol}, if any) or the app's error status and body otherwise.
+ * Every WebSocket message is then one WS_MESSAGE frame, TEXT flagged for text messages. WS_CLOSE, sent by
+ * either side, carries the close code (2) and the UTF-8 reason as its body.
+ * <p>
+ * Flags: {@code 0x1} END_STREAM, {@code 0x2} COMPRESSED (body fragment is a gzip member, only on sessions that
+ * negotiated {@code Tunnel-Encoding: gzip}), {@code 0x4} TEXT (WS_MESSAGE only).
+ */
+@Component
+public class FrameCodec {
+    public static final String PROTOCOL_HEADER = "Tunnel-Protocol";
+    public static final String PROTOCOL = "binary";
+    public static final String DEADLINE_HEADER = ":deadline";
+
+    private static final int PREFIX_SIZE = 1 + 1 + 16 + 4;
+    private static final int MAX_STRING_LENGTH = 0xFFFF;
+
+    public ByteBuffer encode(Frame frame) {
+        return encode(frame, null);
+    }
+
+    /**
+     * @param table the session's outbound header table, null on sessions without header compression
+     */
+    public ByteBuffer encode(Frame frame, HeaderTable table) {
+        byte[] method = utf8(frame.getMethod());
+        byte[] path = utf8(frame.getPath());
+        Map<String, String> headers = frame.getHeaders() != null ? frame.getHeaders() : Collections.emptyMap();
+
+        int headerBlockLength = 2 + 2 + method.length + 2 + path.length;
+        List<byte[]> encodedHeaders = new ArrayList<>(headers.size() * 2);
+        byte[] compressedHeaders = null;
+
+        if (table != null) {
+            compressedHeaders = table.encode(headers);
+            headerBlockLength += compressedHeaders.length;
+        } else {
+            headerBlockLength += 2;
+
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                byte[] name = utf8(header.getKey());
+
+                for (String value : Utils.splitValues(header.getValue())) {
+                    byte[] encodedValue = utf8(value);
+                    encodedHeaders.add(name);
+                    encodedHeaders.add(encodedValue);
+                    headerBlockLength += 2 + name.length + 2 + encodedValue.length;
+                }
+            }
+        }
+
+        byte[] body = frame.getBody() != null ? frame.getBody() : new byte[0];
+        ByteBuffer buffer = ByteBuffer.allocate(PREFIX_SIZE + headerBlockLength + body.length);
+
+        UUID requestId = UUID.fromString(frame.getRequestId());
+        buffer.put(frame.getType().getCode());
+        buffer.put(frame.getFlags());
+        buffer.putLong(requestId.getMostSignificantBits());
+        buffer.putLong(requestId.getLeastSignificantBits());
+        buffer.putInt(headerBlockLength);
+
+        buffer.putShort((short) (frame.getStatus() != null ? frame.getStatus() : 0));
+        putString(buffer, method);
+        putString(buffer, path);
+
+        if (compressedHeaders != null) {
+            buffer.put(compressedHeaders);
+        } else {
+            buffer.putShort((short) (encodedHeaders.size() / 2));
+
+            for (byte[] encoded : encodedHeaders) {
+                putString(buffer, encoded);
+            }
+        }
+
+        buffer.put(body);
+        return buffer.flip();
+    }
+
+    public Frame decode(ByteBuffer buffer) throws IOException {
+        return decode(buffer, null);
+    }
+
+    /**
+     * @param table the session's inbound header table, null on sessions without header compression
+     */
+    public Frame decode(ByteBuffer buffer, HeaderTable table) throws IOException {
+        try {
+            FrameType type = FrameType.fromCode(buffer.get());
+
+            if (type == null) {
+                throw new IOException("Unknown frame type");
+            }
+
+            byte flags = buffer.get();
+            String requestId = new UUID(buffer.getLong(), buffer.getLong()).toString();
+            int headerBlockLength = buffer.getInt();
+
+            if (headerBlockLength < 0 || headerBlockLength > buffer.remaining()) {
+                throw new IOException("Truncated frame");
+            }
+
+            int bodyStart = buffer.position() + headerBlockLength;
+
+            int status = Short.toUnsignedInt(buffer.getShort());
+            String method = getString(buffer);
+            String path = getString(buffer);
+            Map<String, String> headers;
+
+            if (table != null) {
+                headers = table.decode(buffer, bodyStart);
+            } else {
+                int headerCount = Short.toUnsignedInt(buffer.getShort());
+                headers = new LinkedHashMap<>(headerCount * 2);
+
+                for (int i = 0; i < headerCount; i++) {
+                    headers.merge(getString(buffer), getString(buffer), (current, next) -> current + Utils.VALUE_SEPARATOR + next);
+                }
+            }
+
+            if (buffer.position() != bodyStart) {
+                throw new IOException("Header block length mismatch");
+            }
+
+            byte[] body = new byte[buffer.remaining()];
+            buffer.get(body);
+
+            return Frame.builder()
+                    .type(type)
+                    .flags(flags)
+                    .requestId(requestId)
+                    .status(status != 0 ? status : null)
+                    .method(method.isEmpty() ? null : method)
+                    .path(path.isEmpty() ? null : path)
+                    .headers(headers)
+                    .body(body)
+                    .build();
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated frame");
+        }
+    }
+
+    /**
+     * @param endStream false when the body follows as DATA frames
+     */
+    public Frame fromRequest(Request request, boolean endStream) {
+        ForwardInfo forwardInfo = request.getForwardInfo();
+        Map<String, String> headers = forwardInfo.getHeaders();
+
+        if (forwardInfo.getDeadline() != null) {
+            headers = new LinkedHashMap<>(headers != null ? headers : Collections.emptyMap());
+            headers.put(DEADLINE_HEADER, String.valueOf(forwardInfo.getDeadline()));
+        }
+
+        return Frame.builder()
+                .type(FrameType.HEADERS)
+                .flags(endStream ? Frame.END_STREAM : 0)
+                .requestId(request.getId())
+                .method(forwardInfo.getMethod())
+                .path(forwardInfo.getPath())
+                .headers(headers)
+                .build();
+    }
+
+    public Frame cancel(String requestId) {
+        return Frame.builder()
+                .type(FrameType.CANCEL)
+                .requestId(requestId)
+                .build();
+    }
+
+    public Frame wsOpen(String streamId, String path, Map<String, String> headers) {
+        return Frame.builder()
+                .type(FrameType.WS_OPEN)
+                .requestId(streamId)
+                .method("GET")
+                .path(path)
+                .headers(headers)
+                .build();
+    }
+
+    public Frame wsMessage(String streamId, byte[] payload, boolean text) {
+        return Frame.builder()
+                .type(FrameType.WS_MESSAGE)
+                .flags(text ? Frame.TEXT : 0)
+                .requestId(streamId)
+                .body(payload)
+                .build();
+    }
+
+    public Frame wsClose(String streamId, int code, String reason) {
+        byte[] encodedReason = reason != null ? reason.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        ByteBuffer body = ByteBuffer.allocate(2 + encodedReason.length)
+                .putShort((short) code)
+                .put(encodedReason);
+
+        return Frame.builder()
+                .type(FrameType.WS_CLOSE)
+                .requestId(streamId)
+                .body(body.array())
+                .build();
+    }
+
+    /**
+     * @return the close code of a WS_CLOSE frame, 1005 (no status) if the body is empty
+     */
+    public static int getCloseCode(Frame frame) {
+        byte[] body = frame.getBody();
+        return body != null && body.length >= 2 ? ((body[0] & 0xFF) << 8) | (body[1] & 0xFF) : 1005;
+    }
+
+    public static String getCloseReason(Frame frame) {
+        byte[] body = frame.getBody();
+        return body != null && body.length > 2 ? new String(body, 2, body.length - 2, StandardCharsets.UTF_8) : null;
+    }
+
+    public Response toResponse(Frame frame) {
+        ResponseType responseType = frame.getType() == FrameType.NOT_RUNNING_APP_OF_CLIENT
+                ? ResponseType.NOT_RUNNING_APP_OF_CLIENT
+                : ResponseType.RESPONSE_CHUNK;
+
+        return new Response(
+                frame.getRequestId(),
+                frame.getStatus(),
+                null,
+                frame.isEndStream(),
+                responseType,
+                frame.getHeaders(),
+                frame.getBody(),
+                null
+        );
+    }
+
+    private static byte[] utf8(String value) {
+        if (value == null) {
+            return new byte[0];
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+        if (bytes.length > MAX_STRING_LENGTH) {
+            throw new BaseException("Frame string field is too long: " + bytes.length);
+        }
+
+        return bytes;
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] value) {
+        buffer.putShort((short) value.length);
+        buffer.put(value);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = Short.toUnsignedInt(buffer.getShort());
+        byte[] value = new byte[length];
+        buffer.get(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,352 @@
+package uz.server.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * HPACK (RFC 7541) header compression for one direction of one agent session, negotiated with the
+ * {@code Tunnel-Header-Encoding: hpack} handshake header on binary sessions. Both ends keep the static table
+ * of the RFC plus a dynamic table of {@link #DEFAULT_SIZE} bytes that grows with every header sent with
+ * incremental indexing, so a User-Agent or Cookie repeated on every request costs one or two bytes after the
+ * first time. Differences from HPACK: strings are never Huffman coded, and the table size cannot be changed.
+ * <p>
+ * A table must see header blocks in exactly the order the peer does, so outbound blocks are encoded by the
+ * session's single writer, and inbound blocks by the session's receive thread.
+ * <p>
+ * Header names are lower-cased. Repeated values of one header, such as several Set-Cookie, are separate
+ * fields on the wire and joined with {@link Utils#VALUE_SEPARATOR} in the decoded map.
+ */
+public class HeaderTable {
+    public static final String ENCODING_HEADER = "Tunnel-Header-Encoding";
+    public static final String HPACK = "hpack";
+    public static final String OUTBOUND_ATTRIBUTE = "Tunnel-Header-Table-Outbound";
+    public static final String INBOUND_ATTRIBUTE = "Tunnel-Header-Table-Inbound";
+    public static final int DEFAULT_SIZE = 4096;
+
+    // Values shorter than this are cheap to guess by watching frame sizes, see RFC 7541 section 7.1.3.
+    private static final int MIN_INDEXED_COOKIE_LENGTH = 25;
+    private static final Set<String> NEVER_INDEXED = Set.of("authorization", "proxy-authorization", "set-cookie");
+    private static final int ENTRY_OVERHEAD = 32;
+    private static final int MAX_INTEGER = 1 << 28;
+
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"}, {":path", "/index.html"},
+            {":scheme", "http"}, {":scheme", "https"}, {":status", "200"}, {":status", "204"}, {":status", "206"},
+            {":status", "304"}, {":status", "400"}, {":status", "404"}, {":status", "500"}, {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"}, {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""},
+            {"access-control-allow-origin", ""}, {"age", ""}, {"allow", ""}, {"authorization", ""},
+            {"cache-control", ""}, {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""},
+            {"content-length", ""}, {"content-location", ""}, {"content-range", ""}, {"content-type", ""},
+            {"cookie", ""}, {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""}, {"from", ""}, {"host", ""},
+            {"if-match", ""}, {"if-modified-since", ""}, {"if-none-match", ""}, {"if-range", ""},
+            {"if-unmodified-since", ""}, {"last-modified", ""}, {"link", ""}, {"location", ""}, {"max-forwards", ""},
+            {"proxy-authenticate", ""}, {"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""},
+            {"retry-after", ""}, {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""},
+            {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""}, {"www-authenticate", ""}
+    };
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+
+            if (!STATIC_TABLE[i][1].isEmpty()) {
+                STATIC_FIELDS.put(key(STATIC_TABLE[i][0], STATIC_TABLE[i][1]), i + 1);
+            }
+        }
+    }
+
+    private final int maxSize;
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private final Map<String, Long> fields = new HashMap<>();
+    private final Map<String, Long> names = new HashMap<>();
+    private long inserted;
+    private int size;
+
+    public HeaderTable() {
+        this(DEFAULT_SIZE);
+    }
+
+    public HeaderTable(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public byte[] encode(Map<String, String> headers) {
+        if (headers == null || headers.isEmpty()) {
+            return new byte[0];
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(headers.size() * 8);
+
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            String name = header.getKey().toLowerCase(Locale.ROOT);
+
+            for (String value : Utils.splitValues(header.getValue())) {
+                encodeField(out, name, value);
+            }
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes the header block between the buffer's position and {@code end}. No read goes past {@code end}, so
+     * a block cut short fails with an IOException rather than reading the body that follows it.
+     */
+    public Map<String, String> decode(ByteBuffer buffer, int end) throws IOException {
+        Map<String, String> headers = new LinkedHashMap<>();
+
+        while (buffer.position() < end) {
+            int first = peek(buffer, end);
+            String name;
+            String value;
+
+            if ((first & 0x80) != 0) {
+                String[] field = get(readInteger(buffer, end, 7));
+                name = field[0];
+                value = field[1];
+            } else if ((first & 0x40) != 0) {
+                name = readName(buffer, end, 6);
+                value = readString(buffer, end);
+                add(name, value);
+            } else if ((first & 0x20) != 0) {
+                if (readInteger(buffer, end, 5) > maxSize) {
+                    throw new IOException("Header table size update above the negotiated size");
+                }
+                continue;
+            } else {
+                name = readName(buffer, end, 4);
+                value = readString(buffer, end);
+            }
+
+            headers.merge(name, value, (current, next) -> current + Utils.VALUE_SEPARATOR + next);
+        }
+
+        return headers;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void encodeField(ByteArrayOutputStream out, String name, String value) {
+        String key = key(name, value);
+        Integer staticIndex = STATIC_FIELDS.get(key);
+
+        if (staticIndex != null) {
+            writeInteger(out, 0x80, 7, staticIndex);
+            return;
+        }
+
+        Long seq = fields.get(key);
+
+        if (seq != null) {
+            writeInteger(out, 0x80, 7, dynamicIndex(seq));
+            return;
+        }
+
+        int nameIndex = nameIndex(name);
+
+        if (NEVER_INDEXED.contains(name) || (name.equals("cookie") && value.length() < MIN_INDEXED_COOKIE_LENGTH)) {
+            writeInteger(out, 0x10, 4, nameIndex);
+        } else if (entrySize(name, value) > maxSize) {
+            writeInteger(out, 0x00, 4, nameIndex);
+        } else {
+            writeInteger(out, 0x40, 6, nameIndex);
+
+            if (nameIndex == 0) {
+                writeString(out, name);
+            }
+
+            writeString(out, value);
+            add(name, value);
+            return;
+        }
+
+        if (nameIndex == 0) {
+            writeString(out, name);
+        }
+
+        writeString(out, value);
+    }
+
+    private int nameIndex(String name) {
+        Integer staticIndex = STATIC_NAMES.get(name);
+
+        if (staticIndex != null) {
+            return staticIndex;
+        }
+
+        Long seq = names.get(name);
+        return seq != null ? dynamicIndex(seq) : 0;
+    }
+
+    private int dynamicIndex(long seq) {
+        return STATIC_TABLE.length + 1 + (int) (inserted - seq);
+    }
+
+    private String[] get(int index) throws IOException {
+        if (index <= 0) {
+            throw new IOException("Invalid header table index: " + index);
+        }
+
+        if (index <= STATIC_TABLE.length) {
+            return STATIC_TABLE[index - 1];
+        }
+
+        int position = index - STATIC_TABLE.length - 1;
+
+        if (position >= entries.size()) {
+            throw new IOException("Header table index out of range: " + index);
+        }
+
+        Iterator<Entry> iterator = entries.iterator();
+        Entry entry = iterator.next();
+
+        for (int i = 0; i < position; i++) {
+            entry = iterator.next();
+        }
+
+        return new String[]{entry.name, entry.value};
+    }
+
+    private void add(String name, String value) {
+        int entrySize = entrySize(name, value);
+
+        while (!entries.isEmpty() && size + entrySize > maxSize) {
+            evict();
+        }
+
+        if (entrySize > maxSize) {
+            return;
+        }
+
+        long seq = ++inserted;
+        entries.addFirst(new Entry(name, value, seq));
+        fields.put(key(name, value), seq);
+        names.put(name, seq);
+        size += entrySize;
+    }
+
+    private void evict() {
+        Entry oldest = entries.removeLast();
+        size -= entrySize(oldest.name, oldest.value);
+        fields.remove(key(oldest.name, oldest.value), oldest.seq);
+        names.remove(oldest.name, oldest.seq);
+    }
+
+    private String readName(ByteBuffer buffer, int end, int prefix) throws IOException {
+        int index = readInteger(buffer, end, prefix);
+        return index == 0 ? readString(buffer, end).toLowerCase(Locale.ROOT) : get(index)[0];
+    }
+
+    private static String readString(ByteBuffer buffer, int end) throws IOException {
+        if ((peek(buffer, end) & 0x80) != 0) {
+            throw new IOException("Huffman coded header strings are not supported");
+        }
+
+        int length = readInteger(buffer, end, 7);
+
+        if (length > end - buffer.position()) {
+            throw new IOException("Truncated header block");
+        }
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int readInteger(ByteBuffer buffer, int end, int prefix) throws IOException {
+        int mask = (1 << prefix) - 1;
+        int value = read(buffer, end) & mask;
+
+        if (value < mask) {
+            return value;
+        }
+
+        int shift = 0;
+        int next;
+
+        do {
+            next = read(buffer, end);
+            value += (next & 0x7F) << shift;
+            shift += 7;
+
+            if (value > MAX_INTEGER || shift > 28) {
+                throw new IOException("Header integer is too large");
+            }
+        } while ((next & 0x80) != 0);
+
+        return value;
+    }
+
+    private static int peek(ByteBuffer buffer, int end) throws IOException {
+        if (buffer.position() >= end) {
+            throw new IOException("Truncated header block");
+        }
+
+        return Byte.toUnsignedInt(buffer.get(buffer.position()));
+    }
+
+    private static int read(ByteBuffer buffer, int end) throws IOException {
+        int value = peek(buffer, end);
+        buffer.position(buffer.position() + 1);
+        return value;
+    }
+
+    private static void writeInteger(ByteArrayOutputStream out, int flags, int prefix, int value) {
+        int mask = (1 << prefix) - 1;
+
+        if (value < mask) {
+            out.write(flags | value);
+            return;
+        }
+
+        out.write(flags | mask);
+        value -= mask;
+
+        while (value >= 0x80) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        out.write(value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeInteger(out, 0x00, 7, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static int entrySize(String name, String value) {
+        return utf8Length(name) + utf8Length(value) + ENTRY_OVERHEAD;
+    }
+
+    private static int utf8Length(String value) {
+        int length = value.length();
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            if (c >= 0x800) {
+                length += Character.isSurrogate(c) ? 1 : 2;
+            } else if (c >= 0x80) {
+                length++;
+            }
+        }
+
+        return length;
+    }
+
+    private static String key(String name, String value) {
+        return name + '\0' + value;
+    }
+
+    private record Entry(String name, String value, long seq) {
+    }
+}
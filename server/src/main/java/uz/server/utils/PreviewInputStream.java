@@ -0,0 +1,80 @@
+package uz.server.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read from a request body and keeps a copy of the first {@code previewSize} of them, for the
+ * traffic inspector. Reads go straight through, so the body is still streamed.
+ */
+public class PreviewInputStream extends FilterInputStream {
+    private final byte[] preview;
+    private int previewLength;
+    private long count;
+
+    public PreviewInputStream(InputStream in, int previewSize) {
+        super(in);
+        this.preview = previewSize > 0 ? new byte[previewSize] : null;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+
+        if (b >= 0) {
+            count++;
+
+            if (preview != null && previewLength < preview.length) {
+                preview[previewLength++] = (byte) b;
+            }
+        }
+
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = in.read(b, off, len);
+
+        if (read > 0) {
+            keep(b, off, read);
+        }
+
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        count += skipped;
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public byte[] getPreview() {
+        return preview;
+    }
+
+    public int getPreviewLength() {
+        return previewLength;
+    }
+
+    private void keep(byte[] b, int off, int len) {
+        count += len;
+
+        if (preview != null && previewLength < preview.length) {
+            int copied = Math.min(len, preview.length - previewLength);
+            System.arraycopy(b, off, preview, previewLength, copied);
+            previewLength += copied;
+        }
+    }
+}
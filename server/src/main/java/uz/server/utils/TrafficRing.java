@@ -0,0 +1,216 @@
+package uz.server.utils;
+
+import uz.server.domain.dto.TrafficEntry;
+import uz.server.domain.dto.TrafficPage;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed-size ring of the most recent forwards of one tunnel, kept in a direct buffer of fixed-size slots, so it
+ * costs the same memory whatever the traffic and adds nothing for the garbage collector to trace.
+ * <p>
+ * Writers never lock: each claims the next sequence number and moves the stamp of its slot from committed to
+ * writing with a CAS, fills the slot, and publishes the stamp again. A writer that finds its slot still being
+ * written by one that came a full lap earlier drops its record instead of waiting. Readers copy a slot and
+ * keep it only if its stamp was the expected one before and after the copy.
+ * <p>
+ * Method, path and previews are truncated to their slot fields; the path keeps ASCII only, as request URIs
+ * are percent-encoded.
+ */
+public class TrafficRing {
+    public static final int PATH_SIZE = 256;
+    private static final int METHOD_SIZE = 8;
+    private static final String[] STAGES = {"queue", "send", "tunnel", "agent", "app", "reassembly", "total"};
+    private static final String[] OUTCOMES = {null, "timeout", "cancelled", "error"};
+
+    private static final int STAMP = 0;
+    private static final int TIME = 8;
+    private static final int REQUEST_SIZE = 16;
+    private static final int RESPONSE_SIZE = 24;
+    private static final int STATUS = 32;
+    private static final int OUTCOME = 36;
+    private static final int METHOD_LENGTH = 37;
+    private static final int PATH_LENGTH = 38;
+    private static final int REQUEST_PREVIEW_LENGTH = 40;
+    private static final int RESPONSE_PREVIEW_LENGTH = 42;
+    private static final int TIMINGS = 44;
+    private static final int METHOD = TIMINGS + STAGES.length * Float.BYTES;
+    private static final int PATH = METHOD + METHOD_SIZE;
+    private static final int PREVIEWS = PATH + PATH_SIZE;
+
+    private static final VarHandle STAMPS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private final long mask;
+    private final int slotSize;
+    private final int previewSize;
+    private final AtomicLong next = new AtomicLong();
+
+    /**
+     * @param capacity slots, rounded up to a power of two
+     */
+    public TrafficRing(int capacity, int previewSize) {
+        this.capacity = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.mask = this.capacity - 1;
+        this.previewSize = Math.min(previewSize, Short.MAX_VALUE);
+        // Slots stay 8-byte aligned for the stamp's atomic access.
+        this.slotSize = (PREVIEWS + 2 * this.previewSize + 7) & ~7;
+        this.buffer = ByteBuffer.allocateDirect(this.capacity * slotSize).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * @param outcome null for an answered forward, otherwise why it failed: timeout, cancelled or error
+     * @param stages  milliseconds by stage name, see {@link uz.server.domain.model.ForwardTiming}
+     * @return false if the record was dropped because its slot was still being written
+     */
+    public boolean write(long time, String method, String path, int status, String outcome, long requestSize,
+                         long responseSize, Map<String, Double> stages, byte[] requestPreview, int requestPreviewLength,
+                         byte[] responsePreview) {
+        long sequence = next.getAndIncrement();
+        int offset = (int) (sequence & mask) * slotSize;
+        long stamp = (long) STAMPS.getVolatile(buffer, offset + STAMP);
+
+        if (stamp < 0 || stamp > sequence || !STAMPS.compareAndSet(buffer, offset + STAMP, stamp, -(sequence + 1))) {
+            return false;
+        }
+
+        buffer.putLong(offset + TIME, time);
+        buffer.putLong(offset + REQUEST_SIZE, requestSize);
+        buffer.putLong(offset + RESPONSE_SIZE, responseSize);
+        buffer.putInt(offset + STATUS, status);
+        buffer.put(offset + OUTCOME, outcomeIndex(outcome));
+
+        for (int i = 0; i < STAGES.length; i++) {
+            Double millis = stages.get(STAGES[i]);
+            buffer.putFloat(offset + TIMINGS + i * Float.BYTES, millis != null ? millis.floatValue() : -1);
+        }
+
+        buffer.put(offset + METHOD_LENGTH, (byte) putAscii(offset + METHOD, method, METHOD_SIZE));
+        buffer.putShort(offset + PATH_LENGTH, (short) putAscii(offset + PATH, path, PATH_SIZE));
+
+        int requestLength = requestPreview != null ? Math.min(requestPreviewLength, previewSize) : 0;
+        int responseLength = responsePreview != null ? Math.min(responsePreview.length, previewSize) : 0;
+
+        if (requestLength > 0) {
+            buffer.put(offset + PREVIEWS, requestPreview, 0, requestLength);
+        }
+
+        if (responseLength > 0) {
+            buffer.put(offset + PREVIEWS + previewSize, responsePreview, 0, responseLength);
+        }
+
+        buffer.putShort(offset + REQUEST_PREVIEW_LENGTH, (short) requestLength);
+        buffer.putShort(offset + RESPONSE_PREVIEW_LENGTH, (short) responseLength);
+
+        STAMPS.setRelease(buffer, offset + STAMP, sequence + 1);
+        return true;
+    }
+
+    /**
+     * Reads up to {@code limit} records that follow {@code after}, oldest first. Stops at a record that is
+     * still being written, so the next read picks it up.
+     */
+    public TrafficPage read(long after, int limit) {
+        List<TrafficEntry> entries = new ArrayList<>();
+        long end = next.get();
+        long first = Math.max(after + 1, end - capacity);
+        long sequence = first;
+
+        for (; sequence < end && entries.size() < limit; sequence++) {
+            int offset = (int) (sequence & mask) * slotSize;
+            long stamp = (long) STAMPS.getAcquire(buffer, offset + STAMP);
+
+            if (stamp == -(sequence + 1)) {
+                break;
+            }
+
+            if (stamp != sequence + 1) {
+                // Dropped, or already overwritten by a later lap.
+                continue;
+            }
+
+            TrafficEntry entry = readSlot(sequence, offset);
+            VarHandle.loadLoadFence();
+
+            if ((long) STAMPS.getVolatile(buffer, offset + STAMP) == stamp) {
+                entries.add(entry);
+            }
+        }
+
+        return new TrafficPage(entries, sequence - 1, first - (after + 1));
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public long bytes() {
+        return buffer.capacity();
+    }
+
+    private TrafficEntry readSlot(long sequence, int offset) {
+        Map<String, Double> timings = new LinkedHashMap<>();
+
+        for (int i = 0; i < STAGES.length; i++) {
+            float millis = buffer.getFloat(offset + TIMINGS + i * Float.BYTES);
+
+            if (millis >= 0) {
+                timings.put(STAGES[i], Math.round(millis * 1000) / 1000.0);
+            }
+        }
+
+        int outcome = buffer.get(offset + OUTCOME);
+
+        return new TrafficEntry(
+                sequence,
+                buffer.getLong(offset + TIME),
+                getString(offset + METHOD, buffer.get(offset + METHOD_LENGTH), METHOD_SIZE),
+                getString(offset + PATH, buffer.getShort(offset + PATH_LENGTH), PATH_SIZE),
+                buffer.getInt(offset + STATUS),
+                outcome >= 0 && outcome < OUTCOMES.length ? OUTCOMES[outcome] : null,
+                buffer.getLong(offset + REQUEST_SIZE),
+                buffer.getLong(offset + RESPONSE_SIZE),
+                timings,
+                previewSize > 0 ? getString(offset + PREVIEWS, buffer.getShort(offset + REQUEST_PREVIEW_LENGTH), previewSize) : null,
+                previewSize > 0 ? getString(offset + PREVIEWS + previewSize, buffer.getShort(offset + RESPONSE_PREVIEW_LENGTH), previewSize) : null
+        );
+    }
+
+    private int putAscii(int offset, String value, int size) {
+        int length = value != null ? Math.min(value.length(), size) : 0;
+
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            buffer.put(offset + i, c < 0x80 ? (byte) c : (byte) '?');
+        }
+
+        return length;
+    }
+
+    private String getString(int offset, int length, int size) {
+        // A torn read can leave any length behind; the stamp check throws the entry away afterwards.
+        byte[] bytes = new byte[Math.max(0, Math.min(length, size))];
+        buffer.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte outcomeIndex(String outcome) {
+        for (byte i = 1; i < OUTCOMES.length; i++) {
+            if (OUTCOMES[i].equals(outcome)) {
+                return i;
+            }
+        }
+
+        return 0;
+    }
+}
@@ -5,15 +5,41 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
 import org.springframework.http.HttpHeaders;
 import org.springframework.stereotype.Component;
+import uz.server.domain.enums.ResponseType;
 import uz.server.domain.exception.BaseException;
 import uz.server.domain.model.Request;
 import uz.server.domain.model.Response;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 @Component
 @RequiredArgsConstructor
 public class Utils {
+    /**
+     * Content types read as they arrive that may never end: relayed chunk by chunk and never buffered, cached
+     * or shared between clients.
+     */
+    private static final Set<String> STREAMING_TYPES = Set.of(
+            "text/event-stream",
+            "application/x-ndjson",
+            "application/stream+json",
+            "multipart/x-mixed-replace"
+    );
+
+    /**
+     * Joins the values of a header that occurs more than once, like Set-Cookie, in a single-valued header map.
+     * A raw newline cannot occur in a header value, so the join is lossless.
+     */
+    public static final String VALUE_SEPARATOR = "\n";
+
     private final ObjectMapper objectMapper;
 
     public String parseToJson(Request payload) {
@@ -31,8 +57,121 @@ public class Utils {
             return null;
         }
 
-        response.setBody(Objects.requireNonNullElse(response.getBody(), ""));
+        String body = Objects.requireNonNullElse(response.getBody(), "");
+
+        try {
+            response.setData(response.getResponseType() == ResponseType.RESPONSE_CHUNK_BASE64
+                    ? Base64.getDecoder().decode(body)
+                    : body.getBytes(StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        response.setBody(null);
 
         return response;
     }
+
+    /**
+     * Returns the first label of a three-label host ({@code sub.tarmoqchi.uz}), or an empty string.
+     * Scans for dots instead of splitting, so the only allocation is the returned subdomain.
+     */
+    public static String getSubdomain(String host) {
+        if (host == null) {
+            return "";
+        }
+
+        int first = host.indexOf('.');
+
+        if (first < 0) {
+            return "";
+        }
+
+        int second = host.indexOf('.', first + 1);
+
+        if (second < 0 || host.indexOf('.', second + 1) >= 0) {
+            return "";
+        }
+
+        return host.substring(0, first);
+    }
+
+    /**
+     * Case-insensitive lookup in a forwarded header map, whose names keep the case the client or agent sent.
+     */
+    public static String getHeader(Map<String, String> headers, String name) {
+        if (headers == null) {
+            return null;
+        }
+
+        String value = headers.get(name);
+
+        if (value != null) {
+            return value;
+        }
+
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (header.getKey().equalsIgnoreCase(name)) {
+                return header.getValue();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the values joined with {@link #VALUE_SEPARATOR}
+     */
+    public static List<String> splitValues(String value) {
+        if (value == null) {
+            return List.of();
+        }
+
+        return value.contains(VALUE_SEPARATOR) ? Arrays.asList(value.split(VALUE_SEPARATOR)) : List.of(value);
+    }
+
+    public static boolean isStreamingType(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+
+        int end = contentType.indexOf(';');
+        String mediaType = (end < 0 ? contentType : contentType.substring(0, end)).trim().toLowerCase(Locale.ROOT);
+        return STREAMING_TYPES.contains(mediaType);
+    }
+
+    /**
+     * @return true if the request asks for a streaming type, like an EventSource does
+     */
+    public static boolean acceptsStreamingType(Map<String, String> headers) {
+        String accept = getHeader(headers, "Accept");
+
+        if (accept == null) {
+            return false;
+        }
+
+        for (String range : accept.split(",")) {
+            if (isStreamingType(range)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Cancels {@code source} once {@code derived} is cancelled. A stage built with thenApply or whenComplete
+     * does not pass cancellation back to the future it was built from, so a client that goes away would
+     * otherwise leave the agent round trip running until the forward timeout.
+     *
+     * @return {@code derived}
+     */
+    public static <T> CompletableFuture<T> propagateCancel(CompletableFuture<T> derived, CompletableFuture<?> source) {
+        derived.whenComplete((result, e) -> {
+            if (derived.isCancelled()) {
+                source.cancel(false);
+            }
+        });
+        return derived;
+    }
 }
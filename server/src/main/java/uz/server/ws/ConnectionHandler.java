@@ -2,21 +2,30 @@ package uz.server.ws;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
-import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
 
 @Component
 @RequiredArgsConstructor
 @Slf4j
-public class ConnectionHandler extends TextWebSocketHandler {
+public class ConnectionHandler extends AbstractWebSocketHandler {
     private final EventManager eventManager;
 
+    @Value("${tarmoqchi.websocket.max-message-size}")
+    private DataSize maxMessageSize;
+
     @Override
     public void afterConnectionEstablished(WebSocketSession session) {
         log.info("Connection established: {}", session.getId());
+        // Sessions start with the small passthrough limit; Tomcat resizes the buffer on the next message.
+        session.setTextMessageSizeLimit((int) maxMessageSize.toBytes());
+        session.setBinaryMessageSizeLimit((int) maxMessageSize.toBytes());
         eventManager.onConnectionEstablished(session);
     }
 
@@ -32,4 +41,9 @@ public class ConnectionHandler extends TextWebSocketHandler {
 
         eventManager.onResponseReceived(message, session.getId());
     }
+
+    @Override
+    protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) {
+        eventManager.onFrameReceived(message, session.getId());
+    }
 }
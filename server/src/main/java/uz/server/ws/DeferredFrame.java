@@ -0,0 +1,44 @@
+package uz.server.ws;
+
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import uz.server.domain.model.Frame;
+
+import java.nio.ByteBuffer;
+import java.util.function.Function;
+
+/**
+ * A frame that is encoded by the session's writer right before it goes out rather than by the caller, because
+ * the session's header table has to see header blocks in the order they are written.
+ */
+public class DeferredFrame implements WebSocketMessage<Frame> {
+    // Rough size of the compressed header block, only used to account for queued bytes.
+    private static final int HEADER_ESTIMATE = 256;
+
+    private final Frame frame;
+    private final Function<Frame, ByteBuffer> encoder;
+
+    public DeferredFrame(Frame frame, Function<Frame, ByteBuffer> encoder) {
+        this.frame = frame;
+        this.encoder = encoder;
+    }
+
+    public BinaryMessage encode() {
+        return new BinaryMessage(encoder.apply(frame));
+    }
+
+    @Override
+    public Frame getPayload() {
+        return frame;
+    }
+
+    @Override
+    public int getPayloadLength() {
+        return HEADER_ESTIMATE + (frame.getBody() != null ? frame.getBody().length : 0);
+    }
+
+    @Override
+    public boolean isLast() {
+        return true;
+    }
+}
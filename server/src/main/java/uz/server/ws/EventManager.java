@@ -1,26 +1,45 @@
 package uz.server.ws;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 import uz.server.config.Settings;
-import uz.server.domain.entity.Tunnel;
 import uz.server.domain.entity.User;
+import uz.server.domain.enums.FrameType;
 import uz.server.domain.enums.RequestType;
 import uz.server.domain.enums.ResponseType;
 import uz.server.domain.exception.BaseException;
+import uz.server.domain.exception.ServiceUnavailableException;
+import uz.server.domain.model.ForwardTiming;
+import uz.server.domain.model.Frame;
 import uz.server.domain.model.Request;
 import uz.server.domain.model.Response;
 import uz.server.domain.model.TunnelInfo;
+import uz.server.domain.model.TunnelSettings;
+import uz.server.service.TunnelMetrics;
 import uz.server.service.TunnelService;
 import uz.server.service.UserService;
+import uz.server.utils.Compression;
+import uz.server.utils.FrameCodec;
+import uz.server.utils.HeaderTable;
 import uz.server.utils.Utils;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.*;
 
@@ -35,6 +54,36 @@ public class EventManager {
     private final TunnelService tunnelService;
     private final ResponseHolder responseHolder;
     private final Utils utils;
+    private final FrameCodec frameCodec;
+    private final MeterRegistry meterRegistry;
+    private final PassthroughHandler passthroughHandler;
+    private final TunnelMetrics tunnelMetrics;
+    // Raw and wire counters by direction, registered on first use instead of looked up for every frame.
+    private final Map<String, Counter[]> compressionBytes = new ConcurrentHashMap<>();
+
+    @Value("${tarmoqchi.forward.timeout}")
+    private Duration forwardTimeout;
+
+    @Value("${tarmoqchi.forward.max-timeout}")
+    private Duration maxTimeout;
+
+    @Value("${tarmoqchi.forward.streaming}")
+    private boolean streaming;
+
+    @Value("${tarmoqchi.forward.stream-idle-timeout}")
+    private Duration streamIdleTimeout;
+
+    @Value("${tarmoqchi.forward.max-stream-buffer}")
+    private DataSize maxStreamBuffer;
+
+    @Value("${tarmoqchi.forward.upload-chunk-size}")
+    private DataSize uploadChunkSize;
+
+    @Value("${tarmoqchi.forward.max-request-size}")
+    private DataSize maxRequestSize;
+
+    @Value("${tarmoqchi.forward.max-response-size}")
+    private DataSize maxResponseSize;
 
     public void onConnectionEstablished(WebSocketSession session) {
         sessionHolder.addSession(session.getId(), session);
@@ -42,7 +91,11 @@ public class EventManager {
         try {
             User user = userService.authorizeWithToken(extractToken(session));
             String customSubdomain = session.getHandshakeHeaders().getFirst("Custom-Subdomain");
-            String subdomain = tunnelService.create(session.getId(), user, customSubdomain);
+            boolean join = Boolean.parseBoolean(session.getHandshakeHeaders().getFirst("Join-Tunnel"));
+            TunnelSettings settings = new TunnelSettings(
+                    getTimeout(session, "Tunnel-Timeout", forwardTimeout),
+                    getTimeout(session, "Tunnel-Idle-Timeout", streamIdleTimeout));
+            String subdomain = tunnelService.create(session.getId(), user, customSubdomain, join, settings);
             sendConnectionConfirmation(session.getId(), subdomain);
 
             log.info("User authorized and tunnel created: userId={}, subdomain={}", user.getId(), subdomain);
@@ -53,11 +106,12 @@ public class EventManager {
     }
 
     public void onConnectionClosed(WebSocketSession session) {
-        Tunnel tunnel = tunnelService.getTunnelBySessionId(session.getId());
-        responseHolder.remove(session.getId());
-        requestHolder.remove(session.getId());
-        tunnelService.deactivate(tunnel.getId());
+        responseHolder.removeSession(session.getId());
+        passthroughHandler.removeSession(session.getId());
+        requestHolder.failSession(session.getId(), new ServiceUnavailableException("Tunnel agent disconnected, please try again"));
+        tunnelService.deactivate(session.getId());
         sessionHolder.removeSession(session.getId());
+        sender.release(session.getId());
     }
 
     public void onResponseReceived(TextMessage message, String sessionId) {
@@ -71,58 +125,407 @@ public class EventManager {
                 return;
             }
 
-            switch (response.getResponseType()){
-                case RESPONSE_CHUNK -> {
-                    responseHolder.add(sessionId, response.getBody());
+            handleResponse(response, sessionId);
+        } catch (IOException e) {
+            log.error("Failed to parse response: sessionId={}, error={}", sessionId, e.getMessage());
+        }
+    }
+
+    public void onFrameReceived(BinaryMessage message, String sessionId) {
+        log.debug("Frame received: sessionId={}", sessionId);
 
-                    if (!response.isLast()) {
-                        return;
-                    }
+        HeaderTable table = sessionHolder.getHeaderTable(sessionId, HeaderTable.INBOUND_ATTRIBUTE);
 
-                    response.setBody(responseHolder.get(sessionId));
-                    responseHolder.remove(sessionId);
+        try {
+            Frame frame = frameCodec.decode(message.getPayload(), table);
+
+            switch (frame.getType()) {
+                case CANCEL -> {
+                    onAgentCancel(frame.getRequestId(), sessionId);
+                    return;
                 }
-                case NOT_RUNNING_APP_OF_CLIENT -> {
-                    requestHolder.complete(new Response(
-                            response.getRequestId(),
-                            500,
-                            Settings.NOT_RUNNING_APP_OF_CLIENT_HTML,
-                            false,
-                            ResponseType.NOT_RUNNING_APP_OF_CLIENT,
-                            Collections.emptyMap()
-                    ));
+                case WS_OPEN, WS_MESSAGE, WS_CLOSE -> {
+                    passthroughHandler.onFrame(frame, sessionId);
                     return;
                 }
+                default -> {
+                }
             }
 
-            log.info("Response handled: requestId={}, status={}, bodyLength={}",
-                    response.getRequestId(), response.getStatus(),
-                    response.getBody() != null ? response.getBody().length() : 0);
+            if (frame.isCompressed() && frame.getBody() != null) {
+                byte[] wire = frame.getBody();
+                frame.setBody(Compression.gunzip(wire, maxResponseSize.toBytes()));
+                countCompression("response", frame.getBody().length, wire.length);
+            }
 
-            requestHolder.complete(response);
+            handleResponse(frameCodec.toResponse(frame), sessionId);
         } catch (IOException e) {
-            log.error("Failed to parse response: sessionId={}, error={}", sessionId, e.getMessage());
+            log.error("Failed to decode frame: sessionId={}, error={}", sessionId, e.getMessage());
+            sendErrorMessage(sessionId, "Invalid frame: " + e.getMessage());
+
+            // A header block that did not decode leaves the table out of step with the agent's.
+            if (table != null) {
+                sender.close(sessionId);
+            }
+        }
+    }
+
+    private void handleResponse(Response response, String sessionId) {
+        switch (response.getResponseType()){
+            case RESPONSE_CHUNK, RESPONSE_CHUNK_BASE64 -> {
+                tunnelMetrics.recordChunk(sessionId, response.getData().length);
+                ResponseStream stream = responseHolder.getStream(response.getRequestId());
+
+                if (stream != null) {
+                    if (!stream.offer(response.getData(), response.isLast())) {
+                        responseHolder.removeStream(response.getRequestId());
+                        sendCancel(sessionId, response.getRequestId());
+                    } else if (response.isLast()) {
+                        responseHolder.removeStream(response.getRequestId());
+                    }
+                    return;
+                }
+
+                String agentTiming = takeAgentTiming(response);
+                ForwardTiming timing = requestHolder.getTiming(response.getRequestId());
+
+                if (timing == null && !requestHolder.contains(response.getRequestId())) {
+                    log.info("Dropping chunk of expired request: requestId={}", response.getRequestId());
+                    return;
+                }
+
+                if (timing != null) {
+                    timing.markFirstChunk();
+
+                    if (agentTiming != null) {
+                        timing.setAgentTimings(agentTiming);
+                    }
+                }
+
+                if (!response.isLast() && (streaming || isLowLatency(response.getHeaders()))) {
+                    openStream(response, sessionId);
+                    return;
+                }
+
+                if (!responseHolder.add(sessionId, response)) {
+                    requestHolder.fail(response.getRequestId(), new BaseException("Response is too large to be forwarded"));
+                    return;
+                }
+
+                if (!requestHolder.contains(response.getRequestId())) {
+                    responseHolder.remove(response.getRequestId());
+                    return;
+                }
+
+                if (!response.isLast()) {
+                    return;
+                }
+
+                response = responseHolder.complete(response.getRequestId());
+
+                if (response == null) {
+                    return;
+                }
+
+                tunnelMetrics.recordResponseSize(response.getData().length);
+            }
+            case NOT_RUNNING_APP_OF_CLIENT -> {
+                tunnelMetrics.recordAppNotRunning(sessionId);
+                requestHolder.complete(new Response(
+                        response.getRequestId(),
+                        500,
+                        null,
+                        false,
+                        ResponseType.NOT_RUNNING_APP_OF_CLIENT,
+                        Collections.emptyMap(),
+                        Settings.NOT_RUNNING_APP_OF_CLIENT_HTML.getBytes(StandardCharsets.UTF_8),
+                        null
+                ));
+                return;
+            }
+        }
+
+        log.info("Response handled: requestId={}, status={}, bodyLength={}",
+                response.getRequestId(), response.getStatus(), response.getData().length);
+
+        requestHolder.complete(response);
+    }
+
+    /**
+     * Event streams and responses that opt out of proxy buffering are relayed chunk by chunk even when
+     * {@code tarmoqchi.forward.streaming} is off, since their clients act on every event.
+     */
+    private static boolean isLowLatency(Map<String, String> headers) {
+        return Utils.isStreamingType(Utils.getHeader(headers, "Content-Type"))
+                || "no".equalsIgnoreCase(Utils.getHeader(headers, "X-Accel-Buffering"));
+    }
+
+    /**
+     * Removes the agent's timing report from the response headers, so it is neither forwarded nor cached.
+     */
+    private static String takeAgentTiming(Response response) {
+        String value = Utils.getHeader(response.getHeaders(), ForwardTiming.AGENT_HEADER);
+
+        if (value != null) {
+            Map<String, String> headers = new HashMap<>(response.getHeaders());
+            headers.keySet().removeIf(ForwardTiming.AGENT_HEADER::equalsIgnoreCase);
+            response.setHeaders(headers);
+        }
+
+        return value;
+    }
+
+    /**
+     * The agent gave up on a request, for example because its local app closed the connection mid-response.
+     */
+    private void onAgentCancel(String requestId, String sessionId) {
+        log.info("Request cancelled by agent: requestId={}, sessionId={}", requestId, sessionId);
+        ResponseStream stream = responseHolder.getStream(requestId);
+
+        if (stream != null) {
+            stream.abort();
+            responseHolder.removeStream(requestId);
+        }
+
+        responseHolder.remove(requestId);
+        requestHolder.fail(requestId, new BaseException("Tunnel agent cancelled the request"));
+    }
+
+    private void openStream(Response response, String sessionId) {
+        String requestId = response.getRequestId();
+        TunnelSettings settings = tunnelService.getSettingsBySessionId(sessionId);
+        Duration idleTimeout = settings != null ? settings.getStreamIdleTimeout() : streamIdleTimeout;
+        ResponseStream stream = responseHolder.openStream(requestId, sessionId, maxStreamBuffer.toBytes(),
+                idleTimeout.toMillis(), () -> sendCancel(sessionId, requestId));
+        stream.offer(response.getData(), false);
+
+        response.setData(null);
+        response.setStream(stream);
+
+        if (isLowLatency(response.getHeaders()) && Utils.getHeader(response.getHeaders(), "X-Accel-Buffering") == null) {
+            // Keeps a reverse proxy in front of the server from holding events back.
+            Map<String, String> headers = new HashMap<>(response.getHeaders());
+            headers.put("X-Accel-Buffering", "no");
+            response.setHeaders(headers);
+        }
+
+        log.info("Response stream opened: requestId={}, status={}", response.getRequestId(), response.getStatus());
+
+        if (!requestHolder.complete(response)) {
+            responseHolder.removeStream(response.getRequestId());
         }
     }
 
-    public Response sendRequestToAgent(String subdomain, Request request) {
+    /**
+     * Sends the request to the agent without waiting for the answer. When several agents joined the tunnel, the
+     * one with the fewest outstanding requests gets it. The returned future is completed by
+     * {@link RequestHolder#complete} from the WebSocket thread, or fails after the tunnel's forward timeout.
+     * The agent learns the deadline with the request, and gets a CANCEL once the server stops waiting, whether
+     * the deadline passed or the returned future was cancelled. The stages of the forward are stamped on
+     * {@code timing}.
+     */
+    public CompletableFuture<Response> sendRequestToAgent(String subdomain, Request request, InputStream body,
+                                                          ForwardTiming timing) {
+        timing.markDispatched();
         request.setId(UUID.randomUUID().toString());
-        log.info("Sending request to CLI: subdomain={}, requestId={}", subdomain, request.getId());
+        String requestId = request.getId();
+        log.info("Sending request to CLI: subdomain={}, requestId={}", subdomain, requestId);
+
+        String sessionId = tunnelService.acquireSession(subdomain);
+        TunnelSettings settings = tunnelService.getSettings(subdomain);
+        long timeout = (settings != null ? settings.getForwardTimeout() : forwardTimeout).toMillis();
+        request.getForwardInfo().setDeadline(System.currentTimeMillis() + timeout);
 
         CompletableFuture<Response> future = new CompletableFuture<>();
-        requestHolder.add(request.getId(), future);
+        requestHolder.add(requestId, sessionId, future, timing);
+
+        try {
+            if (sessionHolder.usesBinaryFrames(sessionId)) {
+                sender.send(sessionId, frameCodec.fromRequest(request, body == null));
+
+                if (body != null) {
+                    boolean compress = sessionHolder.usesCompression(sessionId)
+                            && isCompressible(request.getForwardInfo().getHeaders());
+                    tunnelMetrics.recordRequestBytes(subdomain, streamBody(sessionId, requestId, body, compress));
+                }
+            } else {
+                byte[] bytes = readBody(body);
+
+                if (bytes != null) {
+                    tunnelMetrics.recordRequestBytes(subdomain, bytes.length);
+                    request.getForwardInfo().setBody(new String(bytes, StandardCharsets.UTF_8));
+                }
+                sender.send(sessionId, utils.parseToJson(request));
+            }
+        } catch (BaseException e) {
+            requestHolder.remove(requestId);
+            responseHolder.remove(requestId);
+            tunnelService.releaseSession(sessionId);
+            throw e;
+        }
 
-        Tunnel tunnel = tunnelService.getTunnelBySubdomain(subdomain);
+        timing.markSent();
 
-        sender.send(tunnel.getSessionId(), utils.parseToJson(request));
+        return Utils.propagateCancel(future
+                .orTimeout(timeout, TimeUnit.MILLISECONDS)
+                .whenComplete((response, e) -> {
+                    timing.markCompleted();
+                    requestHolder.remove(requestId);
+                    responseHolder.remove(requestId);
+                    tunnelService.releaseSession(sessionId);
+                    log.info("Request removed from holder: requestId={}", requestId);
+
+                    if (e instanceof TimeoutException || e instanceof CancellationException) {
+                        sendCancel(sessionId, requestId);
+                    }
+                })
+                .exceptionally(e -> {
+                    Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+
+                    if (cause instanceof BaseException baseException) {
+                        throw baseException;
+                    }
+
+                    if (cause instanceof CancellationException cancellation) {
+                        throw cancellation;
+                    }
+
+                    log.error("Request timed out: requestId={}", requestId);
+                    throw new BaseException(Settings.TIMEOUT_HTML);
+                }), future);
+    }
+
+    /**
+     * Tells the agent to stop working on a request nobody waits for anymore. Binary agents get a CANCEL frame,
+     * JSON agents a CANCEL message; agents that predate cancellation ignore both. Best effort: a full outbound
+     * queue or a closing session just means the agent finishes the work for nothing.
+     */
+    private void sendCancel(String sessionId, String requestId) {
+        WebSocketSession session = sessionHolder.getSession(sessionId);
+
+        if (session == null || !session.isOpen()) {
+            return;
+        }
+
+        log.info("Cancelling request on agent: requestId={}, sessionId={}", requestId, sessionId);
 
         try {
-            return future.get(60, TimeUnit.SECONDS);
-        } catch (TimeoutException | InterruptedException | ExecutionException e) {
-            throw new BaseException(Settings.TIMEOUT_HTML);
-        } finally {
-            requestHolder.remove(request.getId());
-            log.info("Request removed from holder: requestId={}", request.getId());
+            if (sessionHolder.usesBinaryFrames(sessionId)) {
+                sender.send(sessionId, frameCodec.cancel(requestId));
+            } else {
+                sender.send(sessionId, utils.parseToJson(Request.builder().id(requestId).type(RequestType.CANCEL).build()));
+            }
+        } catch (BaseException e) {
+            log.error("Failed to cancel request on agent: requestId={}, error={}", requestId, e.getMessage());
+        }
+    }
+
+    /**
+     * Sends the request body to a binary agent as ordered DATA frames. Each fragment waits for room in the
+     * session's outbound queue, so the upload is paced by the agent connection. When {@code compress} is set,
+     * every fragment that shrinks is sent as its own gzip member with the COMPRESSED flag.
+     *
+     * @return the size of the body before compression
+     */
+    private long streamBody(String sessionId, String requestId, InputStream body, boolean compress) {
+        byte[] buffer = new byte[(int) uploadChunkSize.toBytes()];
+        long total = 0;
+
+        try {
+            while (true) {
+                int read = body.readNBytes(buffer, 0, buffer.length);
+                total += read;
+                boolean last = read < buffer.length;
+                byte flags = last ? Frame.END_STREAM : 0;
+                byte[] fragment = compress && read > 0 ? Compression.gzip(buffer, read) : null;
+
+                if (fragment != null && fragment.length < read) {
+                    flags |= Frame.COMPRESSED;
+                    countCompression("request", read, fragment.length);
+                } else {
+                    fragment = last ? Arrays.copyOf(buffer, read) : buffer;
+                }
+
+                Frame frame = Frame.builder()
+                        .type(FrameType.DATA)
+                        .flags(flags)
+                        .requestId(requestId)
+                        .body(fragment)
+                        .build();
+
+                sender.sendWhenReady(sessionId, frame);
+
+                if (last) {
+                    return total;
+                }
+            }
+        } catch (IOException e) {
+            log.error("Failed to read request body: requestId={}", requestId, e);
+            throw new BaseException("Error while reading request body");
+        }
+    }
+
+    private static boolean isCompressible(Map<String, String> headers) {
+        return Compression.isCompressible(Utils.getHeader(headers, "Content-Type"), Utils.getHeader(headers, "Content-Encoding"));
+    }
+
+    private void countCompression(String direction, long raw, long wire) {
+        Counter[] counters = compressionBytes.computeIfAbsent(direction, key ->
+                new Counter[]{compressionCounter(key, "raw"), compressionCounter(key, "wire")});
+        counters[0].increment(raw);
+        counters[1].increment(wire);
+    }
+
+    private Counter compressionCounter(String direction, String kind) {
+        return Counter.builder("tarmoqchi.tunnel.compression.bytes")
+                .description("Compressed frame bodies between server and agents, before (raw) and after (wire) gzip")
+                .tags("direction", direction, "kind", kind)
+                .register(meterRegistry);
+    }
+
+    /**
+     * JSON agents take the whole body as one string, so it has to be buffered.
+     */
+    private byte[] readBody(InputStream body) {
+        if (body == null) {
+            return null;
+        }
+
+        try {
+            byte[] bytes = body.readNBytes((int) maxRequestSize.toBytes() + 1);
+
+            if (bytes.length > maxRequestSize.toBytes()) {
+                throw new BaseException("Request body is too large");
+            }
+
+            return bytes;
+        } catch (IOException e) {
+            log.error("Failed to read request body", e);
+            throw new BaseException("Error while reading request body");
+        }
+    }
+
+    /**
+     * Reads a per-tunnel timeout in seconds from the handshake, capped at the server's maximum.
+     */
+    private Duration getTimeout(WebSocketSession session, String header, Duration defaultValue) {
+        String value = session.getHandshakeHeaders().getFirst(header);
+
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+
+        try {
+            long seconds = Long.parseLong(value.trim());
+
+            if (seconds <= 0) {
+                throw new BaseException("Invalid " + header + ": " + value);
+            }
+
+            Duration timeout = Duration.ofSeconds(seconds);
+            return timeout.compareTo(maxTimeout) > 0 ? maxTimeout : timeout;
+        } catch (NumberFormatException e) {
+            throw new BaseException("Invalid " + header + ": " + value);
         }
     }
 
@@ -0,0 +1,251 @@
+package uz.server.ws;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
+import uz.server.domain.exception.BaseException;
+import uz.server.domain.exception.ServiceUnavailableException;
+import uz.server.domain.model.Frame;
+import uz.server.service.TunnelService;
+import uz.server.utils.FrameCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Relays WebSocket connections of tunneled apps. A public upgrade on a tunnel subdomain opens a stream over an
+ * agent session; after that every message travels as a single WS_MESSAGE frame in either direction, and a close
+ * on one side becomes a WS_CLOSE on the other. Only agents on the binary protocol can carry streams. The
+ * upgrade itself is negotiated by {@link uz.server.config.PassthroughHandshakeInterceptor}.
+ */
+@Component
+@Slf4j
+public class PassthroughHandler extends AbstractWebSocketHandler {
+    public static final String STREAM_ATTRIBUTE = "Passthrough-Stream";
+
+    private final Sender sender;
+    private final SessionHolder sessionHolder;
+    private final TunnelService tunnelService;
+    private final FrameCodec frameCodec;
+    private final int sendTimeLimit;
+    private final int bufferSizeLimit;
+    private final ConcurrentHashMap<String, PassthroughStream> streams = new ConcurrentHashMap<>();
+
+    public PassthroughHandler(
+            Sender sender,
+            SessionHolder sessionHolder,
+            TunnelService tunnelService,
+            FrameCodec frameCodec,
+            @Value("${tarmoqchi.passthrough.send-time-limit}") Duration sendTimeLimit,
+            @Value("${tarmoqchi.passthrough.buffer-size-limit}") DataSize bufferSizeLimit
+    ) {
+        this.sender = sender;
+        this.sessionHolder = sessionHolder;
+        this.tunnelService = tunnelService;
+        this.frameCodec = frameCodec;
+        this.sendTimeLimit = (int) sendTimeLimit.toMillis();
+        this.bufferSizeLimit = (int) bufferSizeLimit.toBytes();
+    }
+
+    /**
+     * Asks an agent of the subdomain to open a WebSocket to its local app. The agent answers on
+     * {@link PassthroughStream#getOpened()}. The stream holds a request slot on the agent session until it closes.
+     */
+    public PassthroughStream open(String subdomain, String path, Map<String, String> headers) {
+        String sessionId = tunnelService.acquireSession(subdomain);
+
+        if (!sessionHolder.usesBinaryFrames(sessionId)) {
+            tunnelService.releaseSession(sessionId);
+            throw new BaseException("WebSocket passthrough needs an agent on the binary tunnel protocol");
+        }
+
+        PassthroughStream stream = new PassthroughStream(UUID.randomUUID().toString(), sessionId);
+        streams.put(stream.getId(), stream);
+        log.info("Opening passthrough stream: subdomain={}, streamId={}, sessionId={}", subdomain, stream.getId(), sessionId);
+
+        try {
+            sender.send(sessionId, frameCodec.wsOpen(stream.getId(), path, headers));
+        } catch (BaseException e) {
+            remove(stream.getId());
+            throw e;
+        }
+
+        return stream;
+    }
+
+    /**
+     * Drops a stream whose public upgrade did not go through and tells the agent to close its side.
+     */
+    public void abandon(String streamId) {
+        PassthroughStream stream = remove(streamId);
+
+        if (stream != null) {
+            log.info("Abandoning passthrough stream: streamId={}", streamId);
+            sendClose(stream, CloseStatus.GOING_AWAY);
+        }
+    }
+
+    /**
+     * Handles a WS_* frame of an agent session.
+     */
+    public void onFrame(Frame frame, String sessionId) {
+        PassthroughStream stream = streams.get(frame.getRequestId());
+
+        if (stream == null || !stream.getSessionId().equals(sessionId)) {
+            log.info("Dropping frame of unknown passthrough stream: streamId={}, type={}", frame.getRequestId(), frame.getType());
+            return;
+        }
+
+        switch (frame.getType()) {
+            case WS_OPEN -> stream.getOpened().complete(frame);
+            case WS_MESSAGE -> {
+                try {
+                    stream.deliver(frame.isText() ? new TextMessage(frame.getBody()) : new BinaryMessage(frame.getBody()));
+                } catch (IOException e) {
+                    log.error("Failed to deliver passthrough message: streamId={}, error={}", stream.getId(), e.getMessage());
+                    remove(stream.getId());
+                    sendClose(stream, CloseStatus.SESSION_NOT_RELIABLE);
+                    stream.close(CloseStatus.SESSION_NOT_RELIABLE);
+                }
+            }
+            case WS_CLOSE -> {
+                remove(stream.getId());
+                stream.getOpened().complete(frame);
+                stream.close(toCloseStatus(frame));
+                log.info("Passthrough stream closed by agent: streamId={}, code={}", stream.getId(), FrameCodec.getCloseCode(frame));
+            }
+            default -> log.error("Unexpected passthrough frame: streamId={}, type={}", stream.getId(), frame.getType());
+        }
+    }
+
+    /**
+     * Closes every stream of an agent session that went away.
+     */
+    public void removeSession(String sessionId) {
+        streams.values().removeIf(stream -> {
+            if (!stream.getSessionId().equals(sessionId)) {
+                return false;
+            }
+
+            log.info("Closing passthrough stream of closed session: streamId={}, sessionId={}", stream.getId(), sessionId);
+            stream.getOpened().completeExceptionally(new ServiceUnavailableException("Tunnel agent disconnected, please try again"));
+            stream.close(CloseStatus.GOING_AWAY.withReason("Tunnel agent disconnected"));
+            return true;
+        });
+    }
+
+    public int size() {
+        return streams.size();
+    }
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) throws IOException {
+        PassthroughStream stream = getStream(session);
+
+        if (stream == null) {
+            session.close(CloseStatus.GOING_AWAY);
+            return;
+        }
+
+        log.info("Passthrough stream established: streamId={}", stream.getId());
+        stream.attach(new ConcurrentWebSocketSessionDecorator(session, sendTimeLimit, bufferSizeLimit,
+                ConcurrentWebSocketSessionDecorator.OverflowStrategy.TERMINATE));
+    }
+
+    @Override
+    protected void handleTextMessage(WebSocketSession session, TextMessage message) throws IOException {
+        relay(session, message.asBytes(), true);
+    }
+
+    @Override
+    protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) throws IOException {
+        ByteBuffer payload = message.getPayload();
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        relay(session, bytes, false);
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+        String streamId = (String) session.getAttributes().get(STREAM_ATTRIBUTE);
+        PassthroughStream stream = streamId != null ? remove(streamId) : null;
+
+        if (stream != null) {
+            log.info("Passthrough stream closed by client: streamId={}, code={}", streamId, status.getCode());
+            sendClose(stream, status);
+        }
+    }
+
+    private void relay(WebSocketSession session, byte[] payload, boolean text) throws IOException {
+        PassthroughStream stream = getStream(session);
+
+        if (stream == null) {
+            session.close(CloseStatus.GOING_AWAY);
+            return;
+        }
+
+        try {
+            sender.send(stream.getSessionId(), frameCodec.wsMessage(stream.getId(), payload, text));
+        } catch (BaseException e) {
+            log.error("Failed to relay passthrough message: streamId={}, error={}", stream.getId(), e.getMessage());
+            session.close(CloseStatus.SERVICE_OVERLOAD);
+        }
+    }
+
+    private PassthroughStream getStream(WebSocketSession session) {
+        String streamId = (String) session.getAttributes().get(STREAM_ATTRIBUTE);
+        return streamId != null ? streams.get(streamId) : null;
+    }
+
+    private PassthroughStream remove(String streamId) {
+        PassthroughStream stream = streams.remove(streamId);
+
+        if (stream != null) {
+            tunnelService.releaseSession(stream.getSessionId());
+        }
+
+        return stream;
+    }
+
+    private void sendClose(PassthroughStream stream, CloseStatus status) {
+        if (!sessionHolder.hasSession(stream.getSessionId())) {
+            return;
+        }
+
+        try {
+            sender.send(stream.getSessionId(), frameCodec.wsClose(stream.getId(), status.getCode(), status.getReason()));
+        } catch (BaseException e) {
+            log.error("Failed to send passthrough close: streamId={}, error={}", stream.getId(), e.getMessage());
+        }
+    }
+
+    /**
+     * 1005 and 1006 describe a close without a close frame and must not be sent, so they become a normal close
+     * and an error close respectively, as does any code outside the valid range.
+     */
+    private static CloseStatus toCloseStatus(Frame frame) {
+        int code = FrameCodec.getCloseCode(frame);
+        String reason = FrameCodec.getCloseReason(frame);
+
+        if (code == 1005) {
+            return CloseStatus.NORMAL;
+        }
+
+        if (code == 1006 || code < 1000 || code > 4999) {
+            return CloseStatus.SERVER_ERROR;
+        }
+
+        return new CloseStatus(code, reason);
+    }
+}
@@ -0,0 +1,81 @@
+package uz.server.ws;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import uz.server.domain.model.Frame;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * One public WebSocket relayed over an agent session. The agent may start sending right after it accepted the
+ * upgrade, before the public connection is established on our side, so messages are held until then.
+ */
+@Slf4j
+public class PassthroughStream {
+    private static final int MAX_EARLY_MESSAGES = 1024;
+
+    @Getter
+    private final String id;
+    @Getter
+    private final String sessionId;
+    @Getter
+    private final CompletableFuture<Frame> opened = new CompletableFuture<>();
+
+    private final List<WebSocketMessage<?>> early = new ArrayList<>();
+    private WebSocketSession client;
+    private CloseStatus closeStatus;
+
+    public PassthroughStream(String id, String sessionId) {
+        this.id = id;
+        this.sessionId = sessionId;
+    }
+
+    public synchronized void attach(WebSocketSession session) throws IOException {
+        client = session;
+
+        if (closeStatus != null) {
+            session.close(closeStatus);
+            return;
+        }
+
+        for (WebSocketMessage<?> message : early) {
+            session.sendMessage(message);
+        }
+
+        early.clear();
+    }
+
+    public synchronized void deliver(WebSocketMessage<?> message) throws IOException {
+        if (client != null) {
+            client.sendMessage(message);
+            return;
+        }
+
+        if (early.size() >= MAX_EARLY_MESSAGES) {
+            throw new IOException("Too many messages before the client connection was established: streamId=" + id);
+        }
+
+        early.add(message);
+    }
+
+    public synchronized void close(CloseStatus status) {
+        closeStatus = status;
+        early.clear();
+
+        if (client == null || !client.isOpen()) {
+            return;
+        }
+
+        try {
+            client.close(status);
+        } catch (IOException e) {
+            log.error("Failed to close passthrough client: streamId={}, error={}", id, e.getMessage());
+        }
+    }
+}
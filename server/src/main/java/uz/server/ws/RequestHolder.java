@@ -3,6 +3,8 @@ package uz.server.ws;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
+import uz.server.domain.exception.BaseException;
+import uz.server.domain.model.ForwardTiming;
 import uz.server.domain.model.Response;
 
 import java.util.concurrent.CompletableFuture;
@@ -12,11 +14,15 @@ import java.util.concurrent.ConcurrentHashMap;
 @RequiredArgsConstructor
 @Slf4j
 public class RequestHolder {
-    private static final ConcurrentHashMap<String, CompletableFuture<Response>> requests = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Pending> requests = new ConcurrentHashMap<>();
 
-    public void add(String id, CompletableFuture<Response> future) {
+    public void add(String id, String sessionId, CompletableFuture<Response> future) {
+        add(id, sessionId, future, null);
+    }
+
+    public void add(String id, String sessionId, CompletableFuture<Response> future, ForwardTiming timing) {
         log.info("Adding request with id: {}", id);
-        requests.put(id, future);
+        requests.put(id, new Pending(sessionId, future, timing));
     }
 
     public void remove(String id) {
@@ -24,14 +30,54 @@ public class RequestHolder {
         requests.remove(id);
     }
 
-    public void complete(Response response) {
+    public boolean contains(String id) {
+        return requests.containsKey(id);
+    }
+
+    public ForwardTiming getTiming(String id) {
+        Pending pending = requests.get(id);
+        return pending != null ? pending.timing : null;
+    }
+
+    public int size() {
+        return requests.size();
+    }
+
+    public void fail(String id, BaseException e) {
+        Pending remove = requests.remove(id);
+
+        if (remove != null) {
+            log.info("Failing request with id: {}", id);
+            remove.future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Fails every request still waiting on the session, so a disconnected agent does not leave them hanging
+     * until the forward timeout.
+     */
+    public void failSession(String sessionId, BaseException e) {
+        requests.forEach((id, pending) -> {
+            if (pending.sessionId.equals(sessionId) && requests.remove(id, pending)) {
+                log.info("Failing request of closed session: requestId={}, sessionId={}", id, sessionId);
+                pending.future.completeExceptionally(e);
+            }
+        });
+    }
+
+    public boolean complete(Response response) {
         log.info("Completing request with response: {}", response);
 
-        CompletableFuture<Response> remove = requests.remove(response.getRequestId());
+        Pending remove = requests.remove(response.getRequestId());
 
         if (remove != null) {
             log.info("Completing request with id: {}", response.getRequestId());
-            remove.complete(response);
+            return remove.future.complete(response);
         }
+
+        return false;
+    }
+
+    private record Pending(String sessionId, CompletableFuture<Response> future, ForwardTiming timing) {
     }
 }
\ No newline at end of file
@@ -1,34 +1,145 @@
 package uz.server.ws;
 
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import uz.server.domain.model.Response;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Reassembles chunked agent responses per request id. Chunks are kept as a list of segments and copied
+ * into a single body exactly once, when the last chunk arrives.
+ */
 @Component
 @Slf4j
 public class ResponseHolder {
-    private final ConcurrentHashMap<String, String> responses = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Reassembly> responses = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ResponseStream> streams = new ConcurrentHashMap<>();
+    private final long maxResponseSize;
 
-    public void add(String sessionId, String value) {
-        log.info("Adding response: sessionId={}", sessionId);
-        String old = responses.get(sessionId);
+    public ResponseHolder(@Value("${tarmoqchi.forward.max-response-size}") DataSize maxResponseSize) {
+        this.maxResponseSize = maxResponseSize.toBytes();
+    }
+
+    /**
+     * @return false if the response grew past the size cap, in which case it is dropped
+     */
+    public boolean add(String sessionId, Response chunk) {
+        String requestId = chunk.getRequestId();
+        boolean[] accepted = {true};
+
+        responses.compute(requestId, (id, reassembly) -> {
+            if (reassembly == null) {
+                reassembly = new Reassembly(sessionId, chunk);
+            }
+
+            if (reassembly.size + chunk.getData().length > maxResponseSize) {
+                log.error("Response exceeds size cap, dropping: requestId={}, size={}", requestId, reassembly.size);
+                accepted[0] = false;
+                return null;
+            }
+
+            reassembly.append(chunk.getData());
+            return reassembly;
+        });
+
+        return accepted[0];
+    }
+
+    /**
+     * Removes the reassembled response and returns its head with the whole body attached.
+     */
+    public Response complete(String requestId) {
+        Reassembly reassembly = responses.remove(requestId);
 
-        if (old != null){
-            log.info("Response already exists: sessionId={}", sessionId);
-            responses.put(sessionId, old + value);
-        } else {
-            responses.put(sessionId, value);
+        if (reassembly == null) {
+            return null;
         }
+
+        Response response = reassembly.head;
+        response.setData(reassembly.assemble());
+        return response;
+    }
+
+    public void remove(String requestId) {
+        if (responses.remove(requestId) != null) {
+            log.info("Removing response: requestId={}", requestId);
+        }
+    }
+
+    public int size() {
+        return responses.size();
+    }
+
+    public ResponseStream openStream(String requestId, String sessionId, long maxPendingBytes, long idleTimeoutMillis,
+                                     Runnable onCancel) {
+        log.info("Opening response stream: requestId={}, sessionId={}", requestId, sessionId);
+        ResponseStream stream = new ResponseStream(requestId, sessionId, maxPendingBytes, idleTimeoutMillis,
+                () -> removeStream(requestId), onCancel);
+        streams.put(requestId, stream);
+        return stream;
     }
 
-    public String get(String sessionId) {
-        log.info("Getting response: sessionId={}", sessionId);
-        return responses.get(sessionId);
+    public ResponseStream getStream(String requestId) {
+        return streams.get(requestId);
     }
 
-    public void remove(String sessionId) {
-        log.info("Removing response: sessionId={}", sessionId);
-        responses.remove(sessionId);
+    public void removeStream(String requestId) {
+        log.info("Removing response stream: requestId={}", requestId);
+        streams.remove(requestId);
+    }
+
+    public void removeSession(String sessionId) {
+        log.info("Removing responses of session: sessionId={}", sessionId);
+        responses.values().removeIf(reassembly -> reassembly.sessionId.equals(sessionId));
+
+        streams.values().removeIf(stream -> {
+            if (!stream.getSessionId().equals(sessionId)) {
+                return false;
+            }
+
+            log.info("Aborting response stream: requestId={}, sessionId={}", stream.getRequestId(), sessionId);
+            stream.abort();
+            return true;
+        });
+    }
+
+    private static class Reassembly {
+        private final String sessionId;
+        private final Response head;
+        private final List<byte[]> segments = new ArrayList<>();
+        private long size;
+
+        private Reassembly(String sessionId, Response head) {
+            this.sessionId = sessionId;
+            this.head = head;
+        }
+
+        private void append(byte[] segment) {
+            if (segment.length > 0) {
+                segments.add(segment);
+                size += segment.length;
+            }
+        }
+
+        private byte[] assemble() {
+            if (segments.size() == 1) {
+                return segments.get(0);
+            }
+
+            byte[] body = new byte[(int) size];
+            int offset = 0;
+
+            for (byte[] segment : segments) {
+                System.arraycopy(segment, 0, body, offset, segment.length);
+                offset += segment.length;
+            }
+
+            return body;
+        }
     }
 }
@@ -0,0 +1,123 @@
+package uz.server.ws;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands response chunks from the agent session to the public connection as they arrive.
+ * The WebSocket thread only enqueues, the servlet async thread writes and flushes each chunk, so every event
+ * of a server-sent event stream reaches the client as soon as the agent relays it.
+ * If the client goes away or the agent stays silent for the idle timeout, {@code onCancel} runs so the
+ * agent can stop producing the rest.
+ */
+@Slf4j
+public class ResponseStream implements StreamingResponseBody {
+    private static final byte[] END = new byte[0];
+    private static final byte[] ABORTED = new byte[0];
+    private static final byte[] KEEP_ALIVE = new byte[0];
+
+    @Getter
+    private final String requestId;
+    @Getter
+    private final String sessionId;
+    private final long maxPendingBytes;
+    private final long idleTimeoutMillis;
+    private final Runnable onClose;
+    private final Runnable onCancel;
+
+    private final BlockingQueue<byte[]> chunks = new LinkedBlockingQueue<>();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private volatile boolean aborted;
+
+    public ResponseStream(String requestId, String sessionId, long maxPendingBytes, long idleTimeoutMillis,
+                          Runnable onClose, Runnable onCancel) {
+        this.requestId = requestId;
+        this.sessionId = sessionId;
+        this.maxPendingBytes = maxPendingBytes;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.onClose = onClose;
+        this.onCancel = onCancel;
+    }
+
+    public boolean offer(byte[] chunk, boolean last) {
+        if (aborted) {
+            return false;
+        }
+
+        if (pendingBytes.addAndGet(chunk.length) > maxPendingBytes) {
+            log.error("Response stream overflow, aborting: requestId={}, pendingBytes={}", requestId, pendingBytes.get());
+            abort();
+            return false;
+        }
+
+        if (chunk.length > 0) {
+            chunks.add(chunk);
+        } else if (!last && chunks.isEmpty()) {
+            // An empty chunk is the agent's keep-alive: it writes nothing but restarts the idle timeout.
+            chunks.add(KEEP_ALIVE);
+        }
+
+        if (last) {
+            chunks.add(END);
+        }
+
+        return true;
+    }
+
+    public void abort() {
+        aborted = true;
+        chunks.clear();
+        chunks.add(ABORTED);
+    }
+
+    @Override
+    public void writeTo(OutputStream outputStream) throws IOException {
+        boolean cancel = true;
+
+        try {
+            while (true) {
+                byte[] chunk = chunks.poll(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+
+                if (chunk == null) {
+                    throw new IOException("Timed out waiting for response chunk: requestId=" + requestId);
+                }
+
+                if (chunk == END) {
+                    cancel = false;
+                    return;
+                }
+
+                if (chunk == ABORTED) {
+                    cancel = false;
+                    throw new IOException("Response stream aborted: requestId=" + requestId);
+                }
+
+                if (chunk == KEEP_ALIVE) {
+                    continue;
+                }
+
+                outputStream.write(chunk);
+                outputStream.flush();
+                pendingBytes.addAndGet(-chunk.length);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while streaming response: requestId=" + requestId);
+        } finally {
+            aborted = true;
+            onClose.run();
+
+            if (cancel) {
+                onCancel.run();
+            }
+        }
+    }
+}
@@ -1,36 +1,209 @@
 package uz.server.ws;
 
-import lombok.RequiredArgsConstructor;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.system.JavaVersion;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
 import org.springframework.web.socket.WebSocketSession;
+import uz.server.domain.enums.OverflowPolicy;
 import uz.server.domain.exception.BaseException;
+import uz.server.domain.exception.ServiceUnavailableException;
+import uz.server.domain.model.Frame;
+import uz.server.utils.FrameCodec;
+import uz.server.utils.HeaderTable;
 
-import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Component
-@RequiredArgsConstructor
 @Slf4j
 public class Sender {
     private final SessionHolder sessionHolder;
+    private final TaskExecutor executor;
+    private final FrameCodec frameCodec;
+    private final ConcurrentHashMap<String, SessionOutbox> outboxes = new ConcurrentHashMap<>();
+
+    @Value("${tarmoqchi.outbound.max-messages}")
+    private int maxMessages;
+
+    @Value("${tarmoqchi.outbound.max-bytes}")
+    private DataSize maxBytes;
+
+    @Value("${tarmoqchi.outbound.overflow-policy}")
+    private OverflowPolicy overflowPolicy;
+
+    @Value("${tarmoqchi.outbound.body-wait}")
+    private Duration bodyWait;
+
+    /**
+     * Writes on an executor of its own: the MVC async pool also runs response streams and queued forwards that
+     * can block for as long as a download lasts, and a write queued behind them would stall every tunnel.
+     */
+    @Autowired
+    public Sender(SessionHolder sessionHolder, FrameCodec frameCodec,
+                  @Value("${tarmoqchi.outbound.writer-threads}") int writerThreads,
+                  @Value("${spring.threads.virtual.enabled}") boolean virtualThreads) {
+        this(sessionHolder, writerExecutor(writerThreads, virtualThreads), frameCodec);
+    }
+
+    public Sender(SessionHolder sessionHolder, TaskExecutor executor, FrameCodec frameCodec) {
+        this.sessionHolder = sessionHolder;
+        this.executor = executor;
+        this.frameCodec = frameCodec;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor instanceof ThreadPoolTaskExecutor pool) {
+            pool.shutdown();
+        } else if (executor instanceof SimpleAsyncTaskExecutor simple) {
+            simple.close();
+        }
+    }
 
     public void send(String id, String message) throws BaseException {
+        send(id, new TextMessage(message));
+    }
+
+    /**
+     * Queues a binary frame. On sessions with header compression, frames that carry headers are encoded by the
+     * session's writer, so the header table sees them in the order they go out.
+     */
+    public void send(String id, Frame frame) throws BaseException {
+        send(id, toMessage(id, frame));
+    }
+
+    public void sendWhenReady(String id, Frame frame) throws BaseException {
+        sendWhenReady(id, toMessage(id, frame));
+    }
+
+    /**
+     * Queues the message for the session's writer and returns immediately.
+     */
+    public void send(String id, WebSocketMessage<?> message) throws BaseException {
         log.info("Sending message to sessionHolder with id: {}", id);
 
-        if (!sessionHolder.hasSession(id)) {
-            log.error("Session not found with id: {}", id);
-            throw new BaseException("Session not found with id: " + id);
+        if (getOutbox(id).offer(message)) {
+            return;
         }
 
+        log.error("Outbound queue is full: sessionId={}, policy={}", id, overflowPolicy);
+
+        if (overflowPolicy == OverflowPolicy.CLOSE) {
+            close(id);
+        }
+
+        throw new ServiceUnavailableException("Tunnel is overloaded, please try again later");
+    }
+
+    /**
+     * Like {@link #send(String, WebSocketMessage)}, but waits for room in the queue instead of applying the
+     * overflow policy. Request bodies use this, so uploads are paced by the agent connection.
+     */
+    public void sendWhenReady(String id, WebSocketMessage<?> message) throws BaseException {
         try {
-            WebSocketSession session = sessionHolder.getSession(id);
-            synchronized (session){
-                session.sendMessage(new TextMessage(message));
+            if (!getOutbox(id).offer(message, bodyWait.toMillis())) {
+                log.error("Outbound queue stayed full: sessionId={}", id);
+                throw new ServiceUnavailableException("Tunnel is overloaded, please try again later");
             }
-        } catch (IOException e) {
-            log.error("Error while sending message to sessionHolder with id: {}", id, e);
-            throw new BaseException("Error while sending message to sessionHolder with id: " + id);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BaseException("Interrupted while sending message to session with id: " + id);
+        }
+    }
+
+    public int queueSize(String id) {
+        SessionOutbox outbox = outboxes.get(id);
+        return outbox != null ? outbox.size() : 0;
+    }
+
+    public int totalQueueSize() {
+        int total = 0;
+
+        for (SessionOutbox outbox : outboxes.values()) {
+            total += outbox.size();
         }
+
+        return total;
+    }
+
+    public int maxQueueSize() {
+        int max = 0;
+
+        for (SessionOutbox outbox : outboxes.values()) {
+            max = Math.max(max, outbox.size());
+        }
+
+        return max;
+    }
+
+    public void release(String id) {
+        SessionOutbox outbox = outboxes.remove(id);
+
+        if (outbox != null) {
+            outbox.close();
+        }
+    }
+
+    /**
+     * Drops whatever is queued and closes the session as unreliable, for example when the two ends no longer
+     * agree on its state.
+     */
+    public void close(String id) {
+        SessionOutbox outbox = outboxes.remove(id);
+
+        if (outbox != null) {
+            outbox.closeSession(CloseStatus.SESSION_NOT_RELIABLE);
+        }
+    }
+
+    private WebSocketMessage<?> toMessage(String id, Frame frame) {
+        HeaderTable table = sessionHolder.getHeaderTable(id, HeaderTable.OUTBOUND_ATTRIBUTE);
+
+        // Without headers the table is not touched, so the frame can be encoded right here.
+        if (table == null || frame.getHeaders() == null || frame.getHeaders().isEmpty()) {
+            return new BinaryMessage(frameCodec.encode(frame, table));
+        }
+
+        return new DeferredFrame(frame, deferred -> frameCodec.encode(deferred, table));
+    }
+
+    private static TaskExecutor writerExecutor(int threads, boolean virtualThreads) {
+        if (virtualThreads && JavaVersion.getJavaVersion().isEqualOrNewerThan(JavaVersion.TWENTY_ONE)) {
+            SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor("outbound-");
+            executor.setVirtualThreads(true);
+            return executor;
+        }
+
+        // The queue needs no bound of its own: a session never has more than one write task in it.
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setAllowCoreThreadTimeOut(true);
+        executor.setThreadNamePrefix("outbound-");
+        executor.initialize();
+        return executor;
+    }
+
+    private SessionOutbox getOutbox(String id) {
+        WebSocketSession session = sessionHolder.getSession(id);
+
+        if (session == null) {
+            log.error("Session not found with id: {}", id);
+            throw new BaseException("Session not found with id: " + id);
+        }
+
+        return outboxes.computeIfAbsent(id, key ->
+                new SessionOutbox(session, executor, maxMessages, maxBytes.toBytes()));
     }
 }
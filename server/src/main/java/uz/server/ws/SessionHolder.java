@@ -3,6 +3,9 @@ package uz.server.ws;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
 import org.springframework.web.socket.WebSocketSession;
+import uz.server.utils.Compression;
+import uz.server.utils.FrameCodec;
+import uz.server.utils.HeaderTable;
 
 import java.io.IOException;
 import java.util.concurrent.ConcurrentHashMap;
@@ -35,6 +38,24 @@ public class SessionHolder {
         }
     }
 
+    public boolean usesBinaryFrames(String id) {
+        WebSocketSession session = sessions.get(id);
+        return session != null && FrameCodec.PROTOCOL.equals(session.getAttributes().get(FrameCodec.PROTOCOL_HEADER));
+    }
+
+    public boolean usesCompression(String id) {
+        WebSocketSession session = sessions.get(id);
+        return session != null && Compression.GZIP.equals(session.getAttributes().get(Compression.ENCODING_HEADER));
+    }
+
+    /**
+     * @return one of the session's {@link HeaderTable}s, or null if it did not negotiate header compression
+     */
+    public HeaderTable getHeaderTable(String id, String attribute) {
+        WebSocketSession session = sessions.get(id);
+        return session != null ? (HeaderTable) session.getAttributes().get(attribute) : null;
+    }
+
     public boolean hasSession(String id) {
         log.info("Checking session with id: {}", id);
         return sessions.containsKey(id);
@@ -0,0 +1,178 @@
+package uz.server.ws;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import uz.server.domain.exception.BaseException;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded outbound queue of one agent session. Callers only enqueue; a single writer task, started on the
+ * executor whenever the queue becomes non-empty, performs the socket writes in order. The executor must not be
+ * one that callers can block in while waiting for room, or the writer that would make room waits behind them.
+ */
+@Slf4j
+public class SessionOutbox {
+    private final WebSocketSession session;
+    private final Executor executor;
+    private final int maxMessages;
+    private final long maxBytes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final ArrayDeque<WebSocketMessage<?>> queue = new ArrayDeque<>();
+    private long queuedBytes;
+    private boolean draining;
+    private boolean closed;
+
+    public SessionOutbox(WebSocketSession session, Executor executor, int maxMessages, long maxBytes) {
+        this.session = session;
+        this.executor = executor;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return false if the queue is full or the outbox is closed
+     */
+    public boolean offer(WebSocketMessage<?> message) {
+        lock.lock();
+
+        try {
+            if (closed || !hasRoom(message)) {
+                return false;
+            }
+
+            enqueue(message);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits up to {@code timeoutMillis} for room in the queue. Used for request bodies, where waiting for the
+     * agent connection to drain is the flow control.
+     */
+    public boolean offer(WebSocketMessage<?> message, long timeoutMillis) throws InterruptedException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        lock.lock();
+
+        try {
+            while (!closed && !hasRoom(message)) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = notFull.awaitNanos(remaining);
+            }
+
+            if (closed) {
+                return false;
+            }
+
+            enqueue(message);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long bytes() {
+        lock.lock();
+
+        try {
+            return queuedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        lock.lock();
+
+        try {
+            closed = true;
+            queue.clear();
+            queuedBytes = 0;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean hasRoom(WebSocketMessage<?> message) {
+        if (queue.isEmpty()) {
+            return true;
+        }
+
+        return queue.size() < maxMessages && queuedBytes + message.getPayloadLength() <= maxBytes;
+    }
+
+    private void enqueue(WebSocketMessage<?> message) {
+        queue.add(message);
+        queuedBytes += message.getPayloadLength();
+
+        if (!draining) {
+            draining = true;
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            WebSocketMessage<?> message;
+            lock.lock();
+
+            try {
+                message = queue.poll();
+
+                if (message == null) {
+                    draining = false;
+                    return;
+                }
+
+                queuedBytes -= message.getPayloadLength();
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                session.sendMessage(message instanceof DeferredFrame deferred ? deferred.encode() : message);
+            } catch (BaseException e) {
+                log.error("Failed to encode frame, dropping it: sessionId={}, error={}", session.getId(), e.getMessage());
+            } catch (IOException | IllegalStateException e) {
+                log.error("Error while writing to session, closing: sessionId={}", session.getId(), e);
+                closeSession(CloseStatus.SESSION_NOT_RELIABLE);
+                return;
+            }
+        }
+    }
+
+    public void closeSession(CloseStatus status) {
+        close();
+
+        try {
+            session.close(status);
+        } catch (IOException e) {
+            log.error("Error while closing session: sessionId={}", session.getId(), e);
+        }
+    }
+}
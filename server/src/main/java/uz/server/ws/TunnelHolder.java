@@ -0,0 +1,207 @@
+package uz.server.ws;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import uz.server.domain.model.TunnelSettings;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Live routing table from lower-cased subdomain to the agent sessions serving it, so forwarding a request
+ * needs no database round trip. A subdomain can be served by several sessions that joined the same tunnel;
+ * requests go to the one with the fewest outstanding requests. Kept current by
+ * {@link uz.server.service.TunnelService}.
+ */
+@Component
+@Slf4j
+public class TunnelHolder {
+    private final ConcurrentHashMap<String, Group> groups = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String> subdomains = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicInteger> outstanding = new ConcurrentHashMap<>();
+
+    /**
+     * Starts a new group of the user's tunnel with this session as its only member.
+     *
+     * @return false if the subdomain, in any case, is already served on this node
+     */
+    public boolean add(String subdomain, String sessionId, Long userId, TunnelSettings settings) {
+        log.info("Adding route: subdomain={}, sessionId={}", subdomain, sessionId);
+        String key = subdomain.toLowerCase(Locale.ROOT);
+        outstanding.put(sessionId, new AtomicInteger());
+        subdomains.put(sessionId, key);
+
+        if (groups.putIfAbsent(key, new Group(List.of(sessionId), userId, settings)) != null) {
+            outstanding.remove(sessionId);
+            subdomains.remove(sessionId);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Adds the session to the live group of the subdomain.
+     *
+     * @return false if nothing serves the subdomain on this node
+     */
+    public boolean join(String subdomain, String sessionId) {
+        String key = subdomain.toLowerCase(Locale.ROOT);
+        outstanding.put(sessionId, new AtomicInteger());
+        subdomains.put(sessionId, key);
+
+        Group group = groups.computeIfPresent(key, (k, current) -> current.with(sessionId));
+
+        if (group == null) {
+            outstanding.remove(sessionId);
+            subdomains.remove(sessionId);
+            return false;
+        }
+
+        log.info("Session joined route: subdomain={}, sessionId={}, members={}", subdomain, sessionId, group.members.size());
+        return true;
+    }
+
+    public String getSessionId(String subdomain) {
+        Group group = groups.get(subdomain.toLowerCase(Locale.ROOT));
+        return group != null ? group.members.get(0) : null;
+    }
+
+    public List<String> getSessionIds(String subdomain) {
+        Group group = groups.get(subdomain.toLowerCase(Locale.ROOT));
+        return group != null ? group.members : List.of();
+    }
+
+    public Long getUserId(String subdomain) {
+        Group group = groups.get(subdomain.toLowerCase(Locale.ROOT));
+        return group != null ? group.userId : null;
+    }
+
+    public TunnelSettings getSettings(String subdomain) {
+        Group group = groups.get(subdomain.toLowerCase(Locale.ROOT));
+        return group != null ? group.settings : null;
+    }
+
+    /**
+     * Picks the member with the fewest outstanding requests and counts one more request on it. Every
+     * successful call must be paired with {@link #release(String)}.
+     *
+     * @return the session id, or null if nothing serves the subdomain
+     */
+    public String acquire(String subdomain) {
+        Group group = groups.get(subdomain.toLowerCase(Locale.ROOT));
+
+        if (group == null) {
+            return null;
+        }
+
+        List<String> members = group.members;
+        int size = members.size();
+
+        if (size == 1) {
+            String sessionId = members.get(0);
+            increment(sessionId);
+            return sessionId;
+        }
+
+        // Start the scan at a rotating offset, so ties do not always go to the first member.
+        int start = Math.floorMod(group.next.getAndIncrement(), size);
+        String best = null;
+        int bestCount = Integer.MAX_VALUE;
+
+        for (int i = 0; i < size; i++) {
+            String sessionId = members.get((start + i) % size);
+            AtomicInteger count = outstanding.get(sessionId);
+
+            if (count != null && count.get() < bestCount) {
+                best = sessionId;
+                bestCount = count.get();
+            }
+        }
+
+        if (best != null) {
+            increment(best);
+        }
+
+        return best;
+    }
+
+    public void release(String sessionId) {
+        AtomicInteger count = outstanding.get(sessionId);
+
+        if (count != null) {
+            count.decrementAndGet();
+        }
+    }
+
+    public int outstanding(String sessionId) {
+        AtomicInteger count = outstanding.get(sessionId);
+        return count != null ? count.get() : 0;
+    }
+
+    public String getSubdomain(String sessionId) {
+        return subdomains.get(sessionId);
+    }
+
+    /**
+     * Removes the session from its group, and the group once its last member is gone.
+     *
+     * @return the members left serving the subdomain, empty if the tunnel is gone
+     */
+    public List<String> remove(String subdomain, String sessionId) {
+        log.info("Removing route: subdomain={}, sessionId={}", subdomain, sessionId);
+        outstanding.remove(sessionId);
+        subdomains.remove(sessionId);
+
+        Group group = groups.computeIfPresent(subdomain.toLowerCase(Locale.ROOT), (k, current) -> current.without(sessionId));
+        return group != null ? group.members : List.of();
+    }
+
+    public int size() {
+        return groups.size();
+    }
+
+    private void increment(String sessionId) {
+        AtomicInteger count = outstanding.get(sessionId);
+
+        if (count != null) {
+            count.incrementAndGet();
+        }
+    }
+
+    /**
+     * Immutable member list, replaced on every join and leave, so request routing reads it without locking.
+     */
+    private static class Group {
+        private final List<String> members;
+        private final Long userId;
+        private final TunnelSettings settings;
+        private final AtomicInteger next;
+
+        private Group(List<String> members, Long userId, TunnelSettings settings) {
+            this(members, userId, settings, new AtomicInteger());
+        }
+
+        private Group(List<String> members, Long userId, TunnelSettings settings, AtomicInteger next) {
+            this.members = members;
+            this.userId = userId;
+            this.settings = settings;
+            this.next = next;
+        }
+
+        private Group with(String sessionId) {
+            List<String> updated = new ArrayList<>(members);
+            updated.add(sessionId);
+            return new Group(List.copyOf(updated), userId, settings, next);
+        }
+
+        private Group without(String sessionId) {
+            List<String> updated = new ArrayList<>(members);
+            updated.remove(sessionId);
+            return updated.isEmpty() ? null : new Group(List.copyOf(updated), userId, settings, next);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package uz.server;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import uz.server.domain.entity.Tunnel;
+import uz.server.domain.entity.User;
+import uz.server.domain.enums.RequestType;
+import uz.server.domain.enums.ResponseType;
+import uz.server.domain.model.Request;
+import uz.server.domain.model.Response;
+import uz.server.repository.TunnelRepository;
+import uz.server.repository.UserRepository;
+import uz.server.service.ClusterService;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Two nodes on one in-memory database: an agent connects to the owner node, and requests for its tunnel are
+ * sent to the other node, which has to relay them.
+ */
+class ClusterTests {
+    private static final String SECRET = "cluster-tests-secret";
+    private static final String TOKEN = "cluster-tests-token";
+    private static final String SUBDOMAIN = "cluster";
+
+    private static ConfigurableApplicationContext owner;
+    private static ConfigurableApplicationContext relay;
+    private static int ownerPort;
+    private static int relayPort;
+    private static WebSocket agent;
+
+    @BeforeAll
+    static void startNodes() throws Exception {
+        String database = "cluster-" + UUID.randomUUID();
+        ownerPort = freePort();
+        relayPort = freePort();
+        owner = start(ownerPort, database, "create-drop");
+        relay = start(relayPort, database, "none");
+        owner.getBean(UserRepository.class).save(User.builder().id(1L).name("cluster").token(TOKEN).build());
+
+        Agent listener = new Agent();
+        agent = HttpClient.newHttpClient().newWebSocketBuilder()
+                .header("Authorization", "Bearer " + TOKEN)
+                .header("Custom-Subdomain", SUBDOMAIN)
+                .buildAsync(URI.create("ws://localhost:" + ownerPort + "/server"), listener)
+                .get(10, TimeUnit.SECONDS);
+        listener.created.get(10, TimeUnit.SECONDS);
+    }
+
+    @AfterAll
+    static void stopNodes() {
+        if (agent != null) {
+            agent.sendClose(WebSocket.NORMAL_CLOSURE, "done").orTimeout(5, TimeUnit.SECONDS).exceptionally(e -> null).join();
+        }
+
+        if (relay != null) {
+            relay.close();
+        }
+
+        if (owner != null) {
+            owner.close();
+        }
+    }
+
+    @Test
+    void relaysRequestsToTheNodeOwningTheTunnel() throws IOException {
+        String response = get(relayPort, SUBDOMAIN + ".tarmoqchi.uz", "/hello?name=relay");
+
+        assertTrue(response.startsWith("HTTP/1.1 200"), response);
+        assertTrue(response.contains("GET /hello?name=relay"), response);
+    }
+
+    @Test
+    void acceptsAgentMessagesAbovePassthroughLimit() throws IOException {
+        String response = get(ownerPort, SUBDOMAIN + ".tarmoqchi.uz", "/large");
+
+        assertTrue(response.startsWith("HTTP/1.1 200"), response.substring(0, Math.min(200, response.length())));
+        // Headers and chunk sizes have no 'z' in them.
+        assertEquals(256 * 1024, response.chars().filter(c -> c == 'z').count());
+    }
+
+    @Test
+    void reclaimsTunnelsOfDeadNodes() throws IOException {
+        TunnelRepository tunnels = relay.getBean(TunnelRepository.class);
+        User user = relay.getBean(UserRepository.class).findById(1L).orElseThrow();
+        tunnels.save(Tunnel.builder()
+                .sessionId("dead-session")
+                .subdomain("orphan")
+                .ownerNode("http://localhost:" + freePort())
+                .heartbeatAt(Instant.now().minus(Duration.ofHours(1)))
+                .user(user)
+                .build());
+
+        String response = get(relayPort, "orphan.tarmoqchi.uz", "/hello");
+
+        assertTrue(response.startsWith("HTTP/1.1 400"), response);
+        assertTrue(response.contains("Tunnel Not Found"), response);
+        assertFalse(tunnels.existsBySubdomainIgnoreCase("orphan"));
+    }
+
+    @Test
+    void rejectsSubdomainTakenInAnotherCase() throws Exception {
+        Agent listener = new Agent();
+        WebSocket second = HttpClient.newHttpClient().newWebSocketBuilder()
+                .header("Authorization", "Bearer " + TOKEN)
+                .header("Custom-Subdomain", SUBDOMAIN.toUpperCase(Locale.ROOT))
+                .buildAsync(URI.create("ws://localhost:" + ownerPort + "/server"), listener)
+                .get(10, TimeUnit.SECONDS);
+
+        try {
+            ExecutionException e = assertThrows(ExecutionException.class, () -> listener.created.get(10, TimeUnit.SECONDS));
+            assertEquals("Subdomain already exists!", e.getCause().getMessage());
+        } finally {
+            second.abort();
+        }
+
+        assertTrue(get(ownerPort, SUBDOMAIN + ".tarmoqchi.uz", "/hello").startsWith("HTTP/1.1 200"));
+    }
+
+    @Test
+    void inspectorIsOnlyMappedOnTheServerHost() throws IOException {
+        String direct = get(ownerPort, SUBDOMAIN + ".tarmoqchi.uz", "/inspector/" + SUBDOMAIN);
+        String relayed = get(relayPort, SUBDOMAIN + ".tarmoqchi.uz", "/inspector/" + SUBDOMAIN);
+
+        assertTrue(direct.contains("GET /inspector/" + SUBDOMAIN), direct);
+        assertTrue(relayed.contains("GET /inspector/" + SUBDOMAIN), relayed);
+
+        String inspector = get(ownerPort, "localhost", "/inspector/" + SUBDOMAIN, "Authorization", "Bearer " + TOKEN);
+        assertTrue(inspector.startsWith("HTTP/1.1 200"), inspector);
+        assertTrue(inspector.contains("\"entries\""), inspector);
+    }
+
+    @Test
+    void rejectsRelayedRequestWithoutSubdomain() throws IOException {
+        String response = get(ownerPort, "localhost", "/hello", ClusterService.RELAY_SECRET_HEADER, SECRET);
+
+        assertTrue(response.startsWith("HTTP/1.1 400"), response);
+    }
+
+    private static ConfigurableApplicationContext start(int port, String database, String ddlAuto) {
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("server.port", String.valueOf(port));
+        properties.put("spring.datasource.url", "jdbc:h2:mem:" + database + ";MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1");
+        properties.put("spring.datasource.driver-class-name", "org.h2.Driver");
+        properties.put("spring.datasource.username", "sa");
+        properties.put("spring.jpa.hibernate.ddl-auto", ddlAuto);
+        properties.put("spring.jpa.show-sql", "false");
+        properties.put("logging.level.root", "WARN");
+        properties.put("github.client-id", "cluster");
+        properties.put("github.client-secret", "cluster");
+        properties.put("github.redirect-uri", "http://localhost/");
+        properties.put("tarmoqchi.cluster.enabled", "true");
+        properties.put("tarmoqchi.cluster.secret", SECRET);
+        properties.put("tarmoqchi.cluster.node-url", "http://localhost:" + port);
+
+        return SpringApplication.run(ServerApplication.class, properties.entrySet().stream()
+                .map(property -> "--" + property.getKey() + "=" + property.getValue())
+                .toArray(String[]::new));
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Sends the request over a plain socket, as the JDK HTTP client does not let a test pick the Host header.
+     */
+    private static String get(int port, String host, String path, String... headers) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(10_000);
+            StringBuilder request = new StringBuilder("GET ").append(path).append(" HTTP/1.1\r\n")
+                    .append("Host: ").append(host).append("\r\n")
+                    .append("Connection: close\r\n");
+
+            for (int i = 0; i < headers.length; i += 2) {
+                request.append(headers[i]).append(": ").append(headers[i + 1]).append("\r\n");
+            }
+
+            OutputStream out = socket.getOutputStream();
+            out.write(request.append("\r\n").toString().getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            return new String(socket.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Speaks the JSON protocol of the CLI and answers every request with its own method and path, or with 256KB for
+     * {@code /large}.
+     */
+    private static class Agent implements WebSocket.Listener {
+        private final ObjectMapper objectMapper = new ObjectMapper();
+        private final CompletableFuture<String> created = new CompletableFuture<>();
+        private final StringBuilder text = new StringBuilder();
+
+        @Override
+        public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+            text.append(data);
+
+            if (last) {
+                String message = text.toString();
+                text.setLength(0);
+
+                try {
+                    onMessage(webSocket, objectMapper.readValue(message, Request.class));
+                } catch (IOException e) {
+                    created.completeExceptionally(e);
+                }
+            }
+
+            webSocket.request(1);
+            return null;
+        }
+
+        @Override
+        public void onError(WebSocket webSocket, Throwable error) {
+            created.completeExceptionally(error);
+        }
+
+        private void onMessage(WebSocket webSocket, Request request) throws IOException {
+            if (request.getType() == RequestType.CREATED) {
+                created.complete(request.getTunnelInfo().message());
+            } else if (request.getType() == RequestType.ERROR) {
+                created.completeExceptionally(new IllegalStateException(request.getError()));
+            } else if (request.getType() == RequestType.FORWARD) {
+                String path = request.getForwardInfo().getPath();
+                String body = path.equals("/large") ? "z".repeat(256 * 1024) : request.getForwardInfo().getMethod() + " " + path;
+                Response response = new Response(request.getId(), 200,
+                        Base64.getEncoder().encodeToString(body.getBytes(StandardCharsets.UTF_8)), true,
+                        ResponseType.RESPONSE_CHUNK_BASE64, Map.of("Content-Type", "text/plain"), null, null);
+                webSocket.sendText(objectMapper.writeValueAsString(response), true);
+            }
+        }
+    }
+}
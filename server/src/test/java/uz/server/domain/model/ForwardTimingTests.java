@@ -0,0 +1,55 @@
+package uz.server.domain.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ForwardTimingTests {
+    @Test
+    void reportsStagesInOrder() {
+        ForwardTiming timing = new ForwardTiming(System.nanoTime());
+        timing.markDispatched();
+        timing.markSent();
+        timing.markFirstChunk();
+        timing.setAgentTimings("app;dur=12.5, agent;desc=\"cli\";dur=0.4");
+        timing.markCompleted();
+
+        Map<String, Double> stages = timing.stages(System.nanoTime());
+
+        assertEquals(List.of("queue", "send", "tunnel", "app", "agent", "reassembly", "total"), List.copyOf(stages.keySet()));
+        assertEquals(12.5, stages.get("app"));
+        assertEquals(0.4, stages.get("agent"));
+        assertTrue(stages.values().stream().allMatch(duration -> duration >= 0));
+    }
+
+    @Test
+    void leavesOutStagesThatDidNotHappen() {
+        ForwardTiming timing = new ForwardTiming(System.nanoTime());
+
+        assertEquals(List.of("total"), List.copyOf(timing.stages(System.nanoTime()).keySet()));
+    }
+
+    @Test
+    void keepsOnlyWellFormedAgentStages() {
+        ForwardTiming timing = new ForwardTiming(System.nanoTime());
+        timing.setAgentTimings("db;dur=3, app;dur=abc, agent;dur=-1, APP;dur=2");
+
+        Map<String, Double> stages = timing.stages(System.nanoTime());
+
+        assertEquals(List.of("app", "total"), List.copyOf(stages.keySet()));
+        assertEquals(2.0, stages.get("app"));
+    }
+
+    @Test
+    void formatsAsServerTiming() {
+        Map<String, Double> stages = new LinkedHashMap<>();
+        stages.put("queue", 0.34);
+        stages.put("total", 15.0);
+
+        assertEquals("queue;dur=0.3, total;dur=15.0", ForwardTiming.toHeader(stages));
+    }
+}
@@ -0,0 +1,65 @@
+package uz.server.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import uz.server.config.Settings;
+import uz.server.domain.exception.BaseException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClusterServiceTests {
+    private final ClusterService clusterService = new ClusterService(true, "http://localhost", "secret",
+            Duration.ofMillis(200), Duration.ofSeconds(30), Duration.ofMinutes(1));
+
+    @Test
+    void cancellingRelayAbortsTheExchange() throws Exception {
+        try (ServerSocket owner = new ServerSocket(0)) {
+            CompletableFuture<Socket> accepted = new CompletableFuture<>();
+            CompletableFuture<Boolean> closed = CompletableFuture.supplyAsync(() -> {
+                try (Socket socket = owner.accept()) {
+                    accepted.complete(socket);
+                    // Reads the request and then waits, like an owner whose agent has not answered yet, until the
+                    // relay goes away.
+                    socket.getInputStream().transferTo(OutputStream.nullOutputStream());
+                    return true;
+                } catch (IOException e) {
+                    return true;
+                }
+            });
+
+            CompletableFuture<ResponseEntity<StreamingResponseBody>> relayed = relay(owner.getLocalPort(), null);
+            accepted.get(5, TimeUnit.SECONDS);
+            relayed.cancel(false);
+
+            assertTrue(closed.get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    void waitsForTheTunnelTimeout() throws Exception {
+        try (ServerSocket owner = new ServerSocket(0)) {
+            long start = System.nanoTime();
+            CompletableFuture<ResponseEntity<StreamingResponseBody>> relayed = relay(owner.getLocalPort(), Duration.ofMillis(300));
+
+            ExecutionException e = assertThrows(ExecutionException.class, () -> relayed.get(5, TimeUnit.SECONDS));
+            assertInstanceOf(BaseException.class, e.getCause());
+            assertEquals(Settings.TIMEOUT_HTML, e.getCause().getMessage());
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        }
+    }
+
+    private CompletableFuture<ResponseEntity<StreamingResponseBody>> relay(int port, Duration tunnelTimeout) {
+        return clusterService.relay("http://localhost:" + port, "app", tunnelTimeout, "GET", "/hello", Map.of(), null, 0);
+    }
+}
@@ -0,0 +1,160 @@
+package uz.server.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+import uz.server.domain.enums.ResponseType;
+import uz.server.domain.model.ForwardInfo;
+import uz.server.domain.model.Request;
+import uz.server.domain.model.Response;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EdgeCacheTests {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final List<Request> forwarded = new ArrayList<>();
+
+    @Test
+    void servesFreshEntryWithoutAgent() {
+        EdgeCache cache = cache(DataSize.ofMegabytes(1));
+        Function<Request, CompletableFuture<Response>> origin = answer(200, Map.of("Cache-Control", "max-age=60"), "hello");
+
+        assertEquals("hello", body(cache.forward("app", get("/a.js"), origin)));
+        assertEquals("hello", body(cache.forward("APP", get("/a.js"), origin)));
+
+        assertEquals(1, forwarded.size());
+        assertEquals(5, meterRegistry.counter("tarmoqchi.cache.bytes.saved").count());
+    }
+
+    @Test
+    void revalidatesStaleEntryWithEtag() {
+        EdgeCache cache = cache(DataSize.ofMegabytes(1));
+
+        cache.forward("app", get("/"), answer(200, Map.of("Cache-Control", "no-cache", "ETag", "\"v1\""), "page")).join();
+        Response response = cache.forward("app", get("/"), answer(304, Map.of("ETag", "\"v1\""), "")).join();
+
+        assertEquals(200, response.getStatus());
+        assertEquals("page", new String(response.getData(), StandardCharsets.UTF_8));
+        assertEquals("\"v1\"", forwarded.get(1).getForwardInfo().getHeaders().get("If-None-Match"));
+        assertEquals(1, meterRegistry.counter("tarmoqchi.cache.requests", "result", "revalidated").count());
+    }
+
+    @Test
+    void keepsVariantsApart() {
+        EdgeCache cache = cache(DataSize.ofMegabytes(1));
+        Map<String, String> headers = Map.of("Cache-Control", "max-age=60", "Vary", "Accept-Language");
+
+        cache.forward("app", get("/", "Accept-Language", "uz"), answer(200, headers, "salom")).join();
+        cache.forward("app", get("/", "Accept-Language", "en"), answer(200, headers, "hello")).join();
+
+        assertEquals("salom", body(cache.forward("app", get("/", "accept-language", "uz"), answer(500, Map.of(), ""))));
+        assertEquals("hello", body(cache.forward("app", get("/", "Accept-Language", "en"), answer(500, Map.of(), ""))));
+        assertEquals(2, forwarded.size());
+    }
+
+    @Test
+    void doesNotStorePrivateOrUnsafe() {
+        EdgeCache cache = cache(DataSize.ofMegabytes(1));
+
+        cache.forward("app", get("/me"), answer(200, Map.of("Cache-Control", "private, max-age=60"), "me")).join();
+        cache.forward("app", get("/me"), answer(200, Map.of("Cache-Control", "max-age=60", "Set-Cookie", "a=b"), "me")).join();
+        cache.forward("app", get("/me"), answer(200, Map.of(), "me")).join();
+
+        assertEquals(3, forwarded.size());
+        assertEquals(0, cache.entryCount());
+    }
+
+    @Test
+    void unsafeRequestInvalidatesPath() {
+        EdgeCache cache = cache(DataSize.ofMegabytes(1));
+        Function<Request, CompletableFuture<Response>> origin = answer(200, Map.of("Cache-Control", "max-age=60"), "list");
+
+        cache.forward("app", get("/items"), origin).join();
+        cache.forward("app", request("POST", "/items", Map.of()), answer(201, Map.of(), "")).join();
+        cache.forward("app", get("/items"), origin).join();
+
+        assertEquals(3, forwarded.size());
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedWithinBudget() {
+        EdgeCache cache = cache(DataSize.ofBytes(2048));
+        Function<Request, CompletableFuture<Response>> origin = answer(200, Map.of("Cache-Control", "max-age=60"), "x".repeat(600));
+
+        cache.forward("app", get("/1"), origin).join();
+        cache.forward("app", get("/2"), origin).join();
+        cache.forward("app", get("/1"), origin).join();
+        cache.forward("app", get("/3"), origin).join();
+
+        assertTrue(cache.size() <= 2048);
+        assertEquals(3, forwarded.size());
+        cache.forward("app", get("/1"), origin).join();
+        assertEquals(3, forwarded.size());
+        cache.forward("app", get("/2"), origin).join();
+        assertEquals(4, forwarded.size());
+    }
+
+    @Test
+    void keepsRoutesOnlyForStoredEntries() {
+        EdgeCache cache = cache(DataSize.ofBytes(2048));
+        Function<Request, CompletableFuture<Response>> uncacheable = answer(200, Map.of("Cache-Control", "no-store"), "x");
+        Function<Request, CompletableFuture<Response>> origin = answer(200, Map.of("Cache-Control", "max-age=60"), "x".repeat(600));
+
+        for (int i = 0; i < 100; i++) {
+            cache.forward("app", get("/private/" + i), uncacheable).join();
+        }
+
+        assertEquals(0, cache.routeCount());
+
+        for (int i = 0; i < 100; i++) {
+            cache.forward("app", get("/" + i), origin).join();
+        }
+
+        assertEquals(cache.entryCount(), cache.routeCount());
+        assertTrue(cache.size() <= 2048);
+
+        cache.invalidateTunnel("app");
+        assertEquals(0, cache.routeCount());
+        assertEquals(0, cache.size());
+    }
+
+    private EdgeCache cache(DataSize maxSize) {
+        return new EdgeCache(meterRegistry, true, maxSize, maxSize, DataSize.ofMegabytes(1));
+    }
+
+    private Function<Request, CompletableFuture<Response>> answer(int status, Map<String, String> headers, String body) {
+        return request -> {
+            forwarded.add(request);
+            return CompletableFuture.completedFuture(new Response(request.getId(), status, null, true,
+                    ResponseType.RESPONSE_CHUNK, headers, body.getBytes(StandardCharsets.UTF_8), null));
+        };
+    }
+
+    private static Request get(String path, String... headers) {
+        Map<String, String> map = new HashMap<>();
+
+        for (int i = 0; i < headers.length; i += 2) {
+            map.put(headers[i], headers[i + 1]);
+        }
+
+        return request("GET", path, map);
+    }
+
+    private static Request request(String method, String path, Map<String, String> headers) {
+        return Request.builder()
+                .forwardInfo(ForwardInfo.builder().method(method).path(path).headers(headers).build())
+                .build();
+    }
+
+    private static String body(CompletableFuture<Response> response) {
+        return new String(response.join().getData(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,210 @@
+package uz.server.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+import uz.server.domain.exception.BaseException;
+import uz.server.domain.exception.ServiceUnavailableException;
+import uz.server.domain.model.Response;
+import uz.server.ws.RequestHolder;
+import uz.server.ws.SessionHolder;
+import uz.server.ws.Sender;
+import uz.server.ws.TunnelHolder;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ForwardSchedulerTests {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final List<String> started = new ArrayList<>();
+    private final List<CompletableFuture<Response>> running = new ArrayList<>();
+    private final TunnelHolder tunnelHolder = new TunnelHolder();
+    private final TunnelMetrics tunnelMetrics = new TunnelMetrics(meterRegistry, new RequestHolder(),
+            new Sender(new SessionHolder(), new SyncTaskExecutor(), null), tunnelHolder, 1);
+
+    @Test
+    void queuesBeyondTunnelLimit() {
+        ForwardScheduler scheduler = scheduler(100, 2, 100, 10);
+
+        for (int i = 0; i < 5; i++) {
+            submit(scheduler, "app", 1L);
+        }
+
+        assertEquals(2, started.size());
+        assertEquals(3, scheduler.queued("app"));
+
+        finishOldest();
+        assertEquals(3, started.size());
+        assertEquals(2, scheduler.inFlight());
+    }
+
+    @Test
+    void servesWaitingTunnelsRoundRobin() {
+        ForwardScheduler scheduler = scheduler(1, 10, 10, 100);
+        submit(scheduler, "noisy", 1L);
+
+        for (int i = 0; i < 50; i++) {
+            submit(scheduler, "noisy", 1L);
+        }
+
+        submit(scheduler, "quiet", 2L);
+        submit(scheduler, "quiet", 2L);
+
+        finishOldest();
+        finishOldest();
+        finishOldest();
+        finishOldest();
+
+        assertEquals(List.of("noisy", "noisy", "quiet", "noisy", "quiet"), started);
+    }
+
+    @Test
+    void limitsUserAcrossTunnels() {
+        ForwardScheduler scheduler = scheduler(100, 10, 3, 10);
+
+        for (int i = 0; i < 3; i++) {
+            submit(scheduler, "one", 1L);
+            submit(scheduler, "two", 1L);
+        }
+
+        submit(scheduler, "other", 2L);
+
+        assertEquals(4, started.size());
+        assertEquals(List.of("one", "two", "one", "other"), started);
+    }
+
+    @Test
+    void rejectsWhenTunnelQueueIsFull() {
+        ForwardScheduler scheduler = scheduler(100, 1, 100, 1);
+        submit(scheduler, "app", 1L);
+        submit(scheduler, "app", 1L);
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> submit(scheduler, "app", 1L).get());
+        assertInstanceOf(ServiceUnavailableException.class, e.getCause());
+        assertEquals(1, meterRegistry.get("tarmoqchi.scheduler.rejected").counter().count());
+    }
+
+    @Test
+    void tunnelSeriesAreCapped() {
+        ForwardScheduler scheduler = scheduler(100, 1, 100, 1);
+        tunnelHolder.add("one", "s1", 1L, null);
+        tunnelHolder.add("two", "s2", 2L, null);
+
+        for (String subdomain : List.of("one", "two", "unknown")) {
+            for (int i = 0; i < 3; i++) {
+                submit(scheduler, subdomain, 1L);
+            }
+        }
+
+        assertEquals(3, meterRegistry.get("tarmoqchi.scheduler.rejected").counter().count());
+        assertEquals(1, meterRegistry.get("tarmoqchi.tunnel.rejected").tag("tunnel", "one").counter().count());
+        assertEquals(1, meterRegistry.get("tarmoqchi.tunnel.rejected").tag("tunnel", TunnelMetrics.OTHER).counter().count());
+        assertNull(meterRegistry.find("tarmoqchi.tunnel.rejected").tag("tunnel", "two").counter());
+        assertNull(meterRegistry.find("tarmoqchi.tunnel.queue.wait").tag("tunnel", "unknown").timer());
+        assertEquals(3, meterRegistry.get("tarmoqchi.scheduler.queued").gauge().value());
+    }
+
+    @Test
+    void dropsCancelledRequestsAndCancelsRunningOnes() {
+        ForwardScheduler scheduler = scheduler(100, 1, 100, 10);
+        CompletableFuture<Response> first = submit(scheduler, "app", 1L);
+        CompletableFuture<Response> queued = submit(scheduler, "app", 1L);
+        submit(scheduler, "app", 1L);
+
+        queued.cancel(false);
+        first.cancel(false);
+
+        assertTrue(running.get(0).isCancelled());
+        assertEquals(2, started.size());
+        assertEquals(0, scheduler.queued("app"));
+        assertEquals(1, scheduler.inFlight());
+    }
+
+    @Test
+    void timesOutRequestsStillQueued() {
+        ForwardScheduler scheduler = new ForwardScheduler(meterRegistry, tunnelMetrics, new SyncTaskExecutor(), 100, 1, 100, 10,
+                Duration.ofMillis(50));
+        submit(scheduler, "app", 1L);
+        CompletableFuture<Response> queued = submit(scheduler, "app", 1L);
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> queued.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(BaseException.class, e.getCause());
+
+        finishOldest();
+        assertEquals(1, started.size());
+        assertEquals(0, scheduler.inFlight());
+    }
+
+    @Test
+    void leavesDispatchedRequestsToTheirOwnDeadline() throws Exception {
+        ForwardScheduler scheduler = new ForwardScheduler(meterRegistry, tunnelMetrics, new SyncTaskExecutor(), 100, 1, 100, 10,
+                Duration.ofMillis(50));
+        submit(scheduler, "app", 1L);
+        CompletableFuture<Response> queued = submit(scheduler, "app", 1L);
+        finishOldest();
+
+        Thread.sleep(200);
+
+        assertFalse(queued.isDone());
+        assertEquals(1, scheduler.inFlight());
+
+        Response response = new Response();
+        running.get(0).complete(response);
+        assertSame(response, queued.get(5, TimeUnit.SECONDS));
+        assertEquals(0, scheduler.inFlight());
+    }
+
+    @Test
+    void startsQueuedRequestsOffTheCompletingThread() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        ForwardScheduler scheduler = new ForwardScheduler(meterRegistry, tunnelMetrics, new TaskExecutorAdapter(executor), 100, 1, 100,
+                10, Duration.ofMinutes(1));
+        CompletableFuture<Response> first = new CompletableFuture<>();
+        CompletableFuture<Thread> startedOn = new CompletableFuture<>();
+
+        try {
+            scheduler.submit("app", 1L, () -> first);
+            CompletableFuture<Response> queued = scheduler.submit("app", 1L, () -> {
+                startedOn.complete(Thread.currentThread());
+                return CompletableFuture.completedFuture(new Response());
+            });
+
+            // Stands in for an agent session's receive thread delivering the first response.
+            Thread receiver = new Thread(() -> first.complete(new Response()), "receiver");
+            receiver.start();
+            receiver.join();
+
+            assertNotEquals(receiver, startedOn.get(5, TimeUnit.SECONDS));
+            assertNotNull(queued.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private ForwardScheduler scheduler(int maxInFlight, int perTunnel, int perUser, int queue) {
+        return new ForwardScheduler(meterRegistry, tunnelMetrics, new SyncTaskExecutor(), maxInFlight, perTunnel, perUser, queue,
+                Duration.ofMinutes(1));
+    }
+
+    private CompletableFuture<Response> submit(ForwardScheduler scheduler, String subdomain, Long userId) {
+        return scheduler.submit(subdomain, userId, () -> {
+            started.add(subdomain);
+            CompletableFuture<Response> future = new CompletableFuture<>();
+            running.add(future);
+            return future;
+        });
+    }
+
+    private void finishOldest() {
+        running.remove(0).complete(new Response());
+    }
+}
@@ -0,0 +1,204 @@
+package uz.server.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import uz.server.domain.enums.ResponseType;
+import uz.server.domain.exception.BaseException;
+import uz.server.domain.model.ForwardInfo;
+import uz.server.domain.model.Request;
+import uz.server.domain.model.Response;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RequestCoalescerTests {
+    private final RequestCoalescer coalescer = new RequestCoalescer(new SimpleMeterRegistry(), new SyncTaskExecutor(),
+            true, List.of("Accept", "Cookie"));
+    private final AtomicInteger calls = new AtomicInteger();
+    private final CompletableFuture<Response> pending = new CompletableFuture<>();
+    private final Function<Request, CompletableFuture<Response>> origin = request -> {
+        calls.incrementAndGet();
+        return pending;
+    };
+
+    @Test
+    void sharesOneRoundTripBetweenIdenticalRequests() {
+        List<CompletableFuture<Response>> responses = new ArrayList<>();
+
+        for (int i = 0; i < 100; i++) {
+            responses.add(coalescer.forward("app", get("/", "Accept", "text/html"), origin));
+        }
+
+        assertEquals(1, calls.get());
+        pending.complete(response(null, "hello".getBytes(StandardCharsets.UTF_8)));
+
+        for (CompletableFuture<Response> response : responses) {
+            assertEquals("hello", new String(response.join().getData(), StandardCharsets.UTF_8));
+        }
+
+        assertEquals(0, coalescer.inFlight());
+    }
+
+    @Test
+    void electsOneLeaderUnderContention() throws InterruptedException {
+        List<CompletableFuture<Response>> responses = new CopyOnWriteArrayList<>();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                for (int j = 0; j < 100; j++) {
+                    responses.add(coalescer.forward("app", get("/"), origin));
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, calls.get());
+        pending.complete(response(null, new byte[0]));
+        responses.forEach(response -> assertEquals(200, response.join().getStatus()));
+    }
+
+    @Test
+    void keepsDifferentRequestsApart() {
+        coalescer.forward("app", get("/", "Cookie", "a=1"), origin);
+        coalescer.forward("app", get("/", "Cookie", "a=2"), origin);
+        coalescer.forward("app", get("/other"), origin);
+        coalescer.forward("other", get("/"), origin);
+        coalescer.forward("app", request("POST", "/"), origin);
+        coalescer.forward("app", request("POST", "/"), origin);
+
+        assertEquals(6, calls.get());
+    }
+
+    @Test
+    void streamedBodyGoesToTheFirstCallerAndTheOthersSendTheirOwn() throws IOException {
+        List<CompletableFuture<Response>> upstreams = new CopyOnWriteArrayList<>();
+        Function<Request, CompletableFuture<Response>> origin = request -> {
+            CompletableFuture<Response> upstream = new CompletableFuture<>();
+            upstreams.add(upstream);
+            return upstream;
+        };
+        List<CompletableFuture<Response>> responses = new ArrayList<>();
+
+        for (int i = 0; i < 3; i++) {
+            responses.add(coalescer.forward("app", get("/video"), origin));
+        }
+
+        assertEquals(1, upstreams.size());
+        upstreams.get(0).complete(response(outputStream -> outputStream.write("first".getBytes(StandardCharsets.UTF_8)), null));
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        responses.get(0).join().getStream().writeTo(body);
+        assertEquals("first", body.toString(StandardCharsets.UTF_8));
+
+        assertEquals(3, upstreams.size());
+        assertFalse(responses.get(1).isDone());
+        upstreams.get(1).complete(response(null, "second".getBytes(StandardCharsets.UTF_8)));
+        upstreams.get(2).complete(response(null, "third".getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals("second", new String(responses.get(1).join().getData(), StandardCharsets.UTF_8));
+        assertEquals("third", new String(responses.get(2).join().getData(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void doesNotShareResponsesACacheCouldNotStore() {
+        List<CompletableFuture<Response>> upstreams = new CopyOnWriteArrayList<>();
+        Function<Request, CompletableFuture<Response>> origin = request -> {
+            CompletableFuture<Response> upstream = new CompletableFuture<>();
+            upstreams.add(upstream);
+            return upstream;
+        };
+
+        CompletableFuture<Response> first = coalescer.forward("app", get("/me"), origin);
+        CompletableFuture<Response> second = coalescer.forward("app", get("/me"), origin);
+
+        upstreams.get(0).complete(new Response("id", 200, null, true, ResponseType.RESPONSE_CHUNK,
+                Map.of("Set-Cookie", "session=1"), new byte[0], null));
+
+        assertEquals("session=1", first.join().getHeaders().get("Set-Cookie"));
+        assertEquals(2, upstreams.size());
+        assertFalse(second.isDone());
+
+        second.cancel(false);
+        assertTrue(upstreams.get(1).isCancelled());
+    }
+
+    @Test
+    void failsEveryCallerWhenTheRoundTripFails() {
+        CompletableFuture<Response> first = coalescer.forward("app", get("/"), origin);
+        CompletableFuture<Response> second = coalescer.forward("app", get("/"), origin);
+
+        pending.completeExceptionally(new BaseException("timeout"));
+
+        CompletionException e = assertThrows(CompletionException.class, first::join);
+        assertInstanceOf(BaseException.class, e.getCause());
+        assertThrows(CompletionException.class, second::join);
+
+        coalescer.forward("app", get("/"), origin);
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void cancelsRoundTripOnlyWhenEveryCallerLeft() {
+        CompletableFuture<Response> first = coalescer.forward("app", get("/"), origin);
+        CompletableFuture<Response> second = coalescer.forward("app", get("/"), origin);
+
+        first.cancel(false);
+        assertFalse(pending.isCancelled());
+
+        second.cancel(false);
+        assertTrue(pending.isCancelled());
+        assertEquals(0, coalescer.inFlight());
+    }
+
+    private static Response response(StreamingResponseBody stream, byte[] data) {
+        return new Response("id", 200, null, stream == null, ResponseType.RESPONSE_CHUNK, Map.of(), data, stream);
+    }
+
+    private static Request get(String path, String... headers) {
+        Map<String, String> map = new HashMap<>();
+
+        for (int i = 0; i < headers.length; i += 2) {
+            map.put(headers[i], headers[i + 1]);
+        }
+
+        return Request.builder()
+                .forwardInfo(ForwardInfo.builder().method("GET").path(path).headers(map).build())
+                .build();
+    }
+
+    private static Request request(String method, String path) {
+        return Request.builder()
+                .forwardInfo(ForwardInfo.builder().method(method).path(path).headers(Map.of()).build())
+                .build();
+    }
+}
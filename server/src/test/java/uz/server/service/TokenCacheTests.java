@@ -0,0 +1,79 @@
+package uz.server.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import uz.server.domain.entity.User;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenCacheTests {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @Test
+    void keepsUsersForTheirTtl() throws InterruptedException {
+        TokenCache cache = cache(Duration.ofMillis(100), Duration.ofMinutes(1));
+        User user = User.builder().id(1L).token("token").build();
+
+        assertSame(user, cache.get("token", loader(user)));
+        assertSame(user, cache.get("token", loader(user)));
+        assertEquals(1, loads.get());
+
+        Thread.sleep(150);
+
+        assertSame(user, cache.get("token", loader(user)));
+        assertEquals(2, loads.get());
+        assertEquals(1, meterRegistry.get("tarmoqchi.auth.token.cache").tag("result", "hit").counter().count());
+    }
+
+    @Test
+    void keepsUnknownTokensForTheNegativeTtl() throws InterruptedException {
+        TokenCache cache = cache(Duration.ofMinutes(1), Duration.ofMillis(100));
+
+        assertNull(cache.get("unknown", loader(null)));
+        assertNull(cache.get("unknown", loader(null)));
+        assertEquals(1, loads.get());
+        assertEquals(1, meterRegistry.get("tarmoqchi.auth.token.cache").tag("result", "negative_hit").counter().count());
+
+        Thread.sleep(150);
+
+        // A token created in the meantime is found once the negative entry expired.
+        User user = User.builder().id(1L).token("unknown").build();
+        assertSame(user, cache.get("unknown", loader(user)));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void invalidatesByTokenAndByUser() {
+        TokenCache cache = cache(Duration.ofMinutes(1), Duration.ofMinutes(1));
+        User first = User.builder().id(1L).token("first").build();
+        User second = User.builder().id(2L).token("second").build();
+        cache.get("first", loader(first));
+        cache.get("second", loader(second));
+        cache.get("missing", loader(null));
+
+        cache.invalidate("missing");
+        cache.invalidateUser(1L);
+
+        User renamed = User.builder().id(1L).name("renamed").token("first").build();
+        assertSame(renamed, cache.get("first", loader(renamed)));
+        assertSame(second, cache.get("second", loader(second)));
+        assertNull(cache.get("missing", loader(null)));
+        assertEquals(5, loads.get());
+    }
+
+    private TokenCache cache(Duration ttl, Duration negativeTtl) {
+        return new TokenCache(meterRegistry, ttl, negativeTtl, 100);
+    }
+
+    private Function<String, User> loader(User user) {
+        return token -> {
+            loads.incrementAndGet();
+            return user;
+        };
+    }
+}
@@ -0,0 +1,39 @@
+package uz.server.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import uz.server.domain.model.Response;
+import uz.server.ws.TunnelHolder;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TrafficInspectorTests {
+    private final TunnelHolder tunnelHolder = new TunnelHolder();
+
+    @Test
+    void leavesQueryOutWithoutPreviews() {
+        TrafficInspector inspector = inspector(0);
+        inspector.record("app", "GET", "/callback?code=secret", null, response(), null, Map.of());
+
+        assertEquals("/callback", inspector.read("app", -1, 10).entries().get(0).path());
+    }
+
+    @Test
+    void keepsQueryWithPreviews() {
+        TrafficInspector inspector = inspector(64);
+        inspector.record("app", "GET", "/search?q=tunnel", null, response(), null, Map.of());
+
+        assertEquals("/search?q=tunnel", inspector.read("app", -1, 10).entries().get(0).path());
+    }
+
+    private TrafficInspector inspector(int previewSize) {
+        tunnelHolder.add("app", "session", 1L, null);
+        return new TrafficInspector(tunnelHolder, new SimpleMeterRegistry(), true, 16, previewSize, 4);
+    }
+
+    private static Response response() {
+        return new Response("id", 200, null, true, null, Map.of(), new byte[0], null);
+    }
+}
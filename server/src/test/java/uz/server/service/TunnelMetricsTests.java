@@ -0,0 +1,81 @@
+package uz.server.service;
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.task.SyncTaskExecutor;
+import uz.server.config.Settings;
+import uz.server.domain.exception.BaseException;
+import uz.server.domain.model.Response;
+import uz.server.ws.RequestHolder;
+import uz.server.ws.SessionHolder;
+import uz.server.ws.Sender;
+import uz.server.ws.TunnelHolder;
+
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TunnelMetricsTests {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final TunnelHolder tunnelHolder = new TunnelHolder();
+    private final TunnelMetrics metrics = new TunnelMetrics(meterRegistry, new RequestHolder(),
+            new Sender(new SessionHolder(), new SyncTaskExecutor(), null), tunnelHolder, 2);
+
+    @Test
+    void tunnelsBeyondTheLimitShareOneSeries() {
+        for (int i = 0; i < 5; i++) {
+            tunnelHolder.add("app" + i, "session" + i, 1L, null);
+            metrics.recordForward("app" + i, System.nanoTime(), response(200), null);
+        }
+
+        assertEquals(2, metrics.trackedTunnels());
+        assertEquals(1, tunnelLatency("app0", "2xx").count());
+        assertNull(meterRegistry.find("tarmoqchi.tunnel.latency").tag("tunnel", "app4").timer());
+        assertEquals(3, tunnelLatency(TunnelMetrics.OTHER, "2xx").count());
+        assertEquals(5, meterRegistry.get("tarmoqchi.forward.latency").tag("outcome", "2xx").timer().count());
+    }
+
+    @Test
+    void removingATunnelFreesItsSlot() {
+        tunnelHolder.add("a", "s1", 1L, null);
+        tunnelHolder.add("b", "s2", 1L, null);
+        tunnelHolder.add("c", "s3", 1L, null);
+        metrics.recordChunk("s1", 10);
+        metrics.recordChunk("s2", 10);
+
+        tunnelHolder.remove("a", "s1");
+        metrics.removeTunnel("A");
+        metrics.recordChunk("s3", 10);
+
+        assertNull(meterRegistry.find("tarmoqchi.tunnel.chunks").tag("tunnel", "a").counter());
+        assertEquals(1, meterRegistry.get("tarmoqchi.tunnel.chunks").tag("tunnel", "c").counter().count());
+        assertEquals(3, meterRegistry.get("tarmoqchi.forward.chunks").counter().count());
+    }
+
+    @Test
+    void unknownHostsGetNoSeries() {
+        metrics.recordForward("nope", System.nanoTime(), null, new CompletionException(new BaseException(Settings.TUNNEL_NOT_FOUND_HTML)));
+
+        assertEquals(0, metrics.trackedTunnels());
+        assertEquals(1, meterRegistry.get("tarmoqchi.forward.latency").tag("outcome", "error").timer().count());
+    }
+
+    @Test
+    void timeoutsAreTheirOwnOutcome() {
+        tunnelHolder.add("app", "s1", 1L, null);
+        metrics.recordForward("app", System.nanoTime(), null, new CompletionException(new BaseException(Settings.TIMEOUT_HTML)));
+        metrics.recordForward("app", System.nanoTime(), response(503), null);
+
+        assertEquals(1, tunnelLatency("app", "timeout").count());
+        assertEquals(1, tunnelLatency("app", "5xx").count());
+    }
+
+    private Timer tunnelLatency(String tunnel, String outcome) {
+        return meterRegistry.get("tarmoqchi.tunnel.latency").tags("tunnel", tunnel, "outcome", outcome).timer();
+    }
+
+    private static Response response(int status) {
+        return new Response("id", status, null, true, null, null, new byte[0], null);
+    }
+}
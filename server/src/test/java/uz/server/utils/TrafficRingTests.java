@@ -0,0 +1,107 @@
+package uz.server.utils;
+
+import org.junit.jupiter.api.Test;
+import uz.server.domain.dto.TrafficEntry;
+import uz.server.domain.dto.TrafficPage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TrafficRingTests {
+    @Test
+    void keepsTheLatestRecordsAndReportsWhatWasMissed() {
+        TrafficRing ring = new TrafficRing(4, 0);
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(write(ring, "/items/" + i, 200));
+        }
+
+        TrafficPage page = ring.read(-1, 100);
+
+        assertEquals(List.of("/items/6", "/items/7", "/items/8", "/items/9"),
+                page.entries().stream().map(TrafficEntry::path).toList());
+        assertEquals(9, page.next());
+        assertEquals(6, page.missed());
+        assertTrue(ring.read(page.next(), 100).entries().isEmpty());
+    }
+
+    @Test
+    void pagesFromTheCursor() {
+        TrafficRing ring = new TrafficRing(8, 0);
+
+        for (int i = 0; i < 5; i++) {
+            write(ring, "/" + i, 200);
+        }
+
+        TrafficPage first = ring.read(-1, 2);
+        TrafficPage second = ring.read(first.next(), 10);
+
+        assertEquals(List.of(0L, 1L), first.entries().stream().map(TrafficEntry::sequence).toList());
+        assertEquals(List.of(2L, 3L, 4L), second.entries().stream().map(TrafficEntry::sequence).toList());
+        assertEquals(0, second.missed());
+    }
+
+    @Test
+    void storesEveryFieldAndTruncatesToTheSlot() {
+        TrafficRing ring = new TrafficRing(2, 4);
+        byte[] request = "{\"name\":\"x\"}".getBytes(StandardCharsets.UTF_8);
+        ring.write(1234L, "DELETE", "/" + "a".repeat(300) + "/ü", 0, "timeout", 12, -1,
+                Map.of("queue", 1.5, "total", 30000.0), request, request.length, "hello".getBytes(StandardCharsets.UTF_8));
+
+        TrafficEntry entry = ring.read(-1, 1).entries().get(0);
+
+        assertEquals(1234L, entry.time());
+        assertEquals("DELETE", entry.method());
+        assertEquals(TrafficRing.PATH_SIZE, entry.path().length());
+        assertEquals(0, entry.status());
+        assertEquals("timeout", entry.outcome());
+        assertEquals(12, entry.requestSize());
+        assertEquals(-1, entry.responseSize());
+        assertEquals(Map.of("queue", 1.5, "total", 30000.0), entry.timings());
+        assertEquals("{\"na", entry.requestPreview());
+        assertEquals("hell", entry.responsePreview());
+    }
+
+    @Test
+    void concurrentWritersNeverProduceTornRecords() throws Exception {
+        TrafficRing ring = new TrafficRing(16, 0);
+        ExecutorService writers = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+
+        for (int t = 0; t < 4; t++) {
+            int thread = t;
+            futures.add(writers.submit(() -> {
+                for (int i = 0; i < 20_000; i++) {
+                    write(ring, "/" + thread + "/" + i, 200 + thread);
+                }
+            }));
+        }
+
+        while (futures.stream().anyMatch(future -> !future.isDone())) {
+            for (TrafficEntry entry : ring.read(-1, 16).entries()) {
+                // Path and status are written by the same writer, so they must agree.
+                assertEquals(entry.status() - 200, Integer.parseInt(entry.path().split("/")[1]));
+            }
+        }
+
+        writers.shutdown();
+        assertTrue(writers.awaitTermination(10, TimeUnit.SECONDS));
+
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+
+    private static boolean write(TrafficRing ring, String path, int status) {
+        return ring.write(System.currentTimeMillis(), "GET", path, status, null, 0, 10, Map.of("total", 1.0),
+                null, 0, null);
+    }
+}
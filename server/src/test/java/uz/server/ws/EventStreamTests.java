@@ -0,0 +1,179 @@
+package uz.server.ws;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.socket.BinaryMessage;
+import uz.server.domain.enums.FrameType;
+import uz.server.domain.model.Frame;
+import uz.server.domain.model.Response;
+import uz.server.service.TunnelMetrics;
+import uz.server.service.TunnelService;
+import uz.server.utils.FrameCodec;
+import uz.server.utils.Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Feeds agent frames of a server-sent event stream through {@link EventManager} and times each event from the
+ * moment its frame arrives until it is flushed to the public connection.
+ */
+class EventStreamTests {
+    private static final String SESSION_ID = "session";
+    private static final int EVENTS = 50;
+
+    private final FrameCodec frameCodec = new FrameCodec();
+    private final RequestHolder requestHolder = new RequestHolder();
+    private final ExecutorService client = Executors.newSingleThreadExecutor();
+    private EventManager eventManager;
+
+    @BeforeEach
+    void setUp() {
+        SessionHolder sessionHolder = new SessionHolder();
+        TunnelHolder tunnelHolder = new TunnelHolder();
+        Sender sender = new Sender(sessionHolder, new SyncTaskExecutor(), frameCodec);
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        TunnelMetrics tunnelMetrics = new TunnelMetrics(meterRegistry, requestHolder, sender, tunnelHolder, 100);
+        TunnelService tunnelService = new TunnelService(null, tunnelHolder, null, null, null, tunnelMetrics, null);
+        eventManager = new EventManager(sessionHolder, null, sender, requestHolder, tunnelService,
+                new ResponseHolder(DataSize.ofMegabytes(1)), new Utils(new ObjectMapper()), frameCodec, meterRegistry,
+                null, tunnelMetrics);
+
+        // Buffered forwarding, so only the content type can make these responses stream.
+        ReflectionTestUtils.setField(eventManager, "streaming", false);
+        ReflectionTestUtils.setField(eventManager, "forwardTimeout", Duration.ofSeconds(60));
+        ReflectionTestUtils.setField(eventManager, "streamIdleTimeout", Duration.ofMillis(200));
+        ReflectionTestUtils.setField(eventManager, "maxStreamBuffer", DataSize.ofMegabytes(1));
+        ReflectionTestUtils.setField(eventManager, "maxResponseSize", DataSize.ofMegabytes(1));
+    }
+
+    @AfterEach
+    void tearDown() {
+        client.shutdownNow();
+    }
+
+    @Test
+    void flushesEveryEventAsSoonAsItArrives() throws Exception {
+        String requestId = UUID.randomUUID().toString();
+        Response response = open(requestId);
+        assertEquals("no", response.getHeaders().get("X-Accel-Buffering"));
+
+        BlockingQueue<Flush> flushes = new LinkedBlockingQueue<>();
+        Future<?> writing = client.submit(() -> {
+            response.getStream().writeTo(new RecordingOutputStream(flushes));
+            return null;
+        });
+
+        long[] latencies = new long[EVENTS];
+
+        for (int i = 0; i < EVENTS; i++) {
+            String event = "id: " + i + "\ndata: tick\n\n";
+            long sentAt = System.nanoTime();
+            receive(data(requestId, event, false));
+
+            Flush flush = flushes.poll(1, TimeUnit.SECONDS);
+            assertNotNull(flush, "event " + i + " was not flushed");
+            assertEquals(event, flush.text);
+            latencies[i] = flush.at - sentAt;
+        }
+
+        receive(data(requestId, "", true));
+        writing.get(1, TimeUnit.SECONDS);
+
+        Arrays.sort(latencies);
+        assertTrue(latencies[EVENTS / 2] < TimeUnit.MILLISECONDS.toNanos(10), "median " + latencies[EVENTS / 2] + " ns");
+        assertTrue(latencies[EVENTS - 1] < TimeUnit.MILLISECONDS.toNanos(200), "max " + latencies[EVENTS - 1] + " ns");
+    }
+
+    @Test
+    void keepAlivesHoldAnIdleStreamOpen() throws Exception {
+        String requestId = UUID.randomUUID().toString();
+        Response response = open(requestId);
+        BlockingQueue<Flush> flushes = new LinkedBlockingQueue<>();
+        Future<?> writing = client.submit(() -> {
+            response.getStream().writeTo(new RecordingOutputStream(flushes));
+            return null;
+        });
+
+        // Twice the idle timeout without a single event.
+        for (int i = 0; i < 8; i++) {
+            Thread.sleep(50);
+            receive(data(requestId, "", false));
+        }
+
+        receive(data(requestId, "data: late\n\n", true));
+        writing.get(1, TimeUnit.SECONDS);
+
+        assertEquals("data: late\n\n", flushes.poll().text);
+    }
+
+    private Response open(String requestId) throws Exception {
+        CompletableFuture<Response> future = new CompletableFuture<>();
+        requestHolder.add(requestId, SESSION_ID, future);
+
+        receive(Frame.builder()
+                .type(FrameType.HEADERS)
+                .requestId(requestId)
+                .status(200)
+                .headers(Map.of("Content-Type", "text/event-stream; charset=utf-8"))
+                .body(new byte[0])
+                .build());
+
+        return future.get(1, TimeUnit.SECONDS);
+    }
+
+    private void receive(Frame frame) {
+        eventManager.onFrameReceived(new BinaryMessage(frameCodec.encode(frame)), SESSION_ID);
+    }
+
+    private static Frame data(String requestId, String text, boolean last) {
+        return Frame.builder()
+                .type(FrameType.DATA)
+                .flags(last ? Frame.END_STREAM : 0)
+                .requestId(requestId)
+                .body(text.getBytes(StandardCharsets.UTF_8))
+                .build();
+    }
+
+    private record Flush(long at, String text) {
+    }
+
+    private static class RecordingOutputStream extends OutputStream {
+        private final BlockingQueue<Flush> flushes;
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+        private RecordingOutputStream(BlockingQueue<Flush> flushes) {
+            this.flushes = flushes;
+        }
+
+        @Override
+        public void write(int b) {
+            pending.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            pending.write(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+            flushes.add(new Flush(System.nanoTime(), pending.toString(StandardCharsets.UTF_8)));
+            pending.reset();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package uz.server.ws;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+import uz.server.domain.enums.ResponseType;
+import uz.server.domain.model.Response;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResponseHolderTests {
+    private static final String SESSION_ID = "session";
+
+    @Test
+    void reassemblesInterleavedResponsesOnOneSession() {
+        ResponseHolder holder = new ResponseHolder(DataSize.ofMegabytes(1));
+        Random random = new Random(42);
+        int requests = 200;
+        int chunks = 20;
+
+        Map<String, ByteArrayOutputStream> expected = new HashMap<>();
+        Map<String, Integer> sent = new HashMap<>();
+        List<String> pending = new ArrayList<>();
+
+        for (int i = 0; i < requests; i++) {
+            String requestId = UUID.randomUUID().toString();
+            expected.put(requestId, new ByteArrayOutputStream());
+            sent.put(requestId, 0);
+            pending.add(requestId);
+        }
+
+        while (!pending.isEmpty()) {
+            String requestId = pending.get(random.nextInt(pending.size()));
+            int index = sent.merge(requestId, 1, Integer::sum);
+            boolean last = index == chunks;
+            byte[] data = (requestId + ":" + index + ";").getBytes(StandardCharsets.UTF_8);
+            expected.get(requestId).writeBytes(data);
+
+            assertTrue(holder.add(SESSION_ID, chunk(requestId, data, last)));
+
+            if (last) {
+                pending.remove(requestId);
+                Response response = holder.complete(requestId);
+                assertArrayEquals(expected.get(requestId).toByteArray(), response.getData());
+                assertEquals(200, response.getStatus());
+            }
+        }
+
+        assertEquals(0, holder.size());
+    }
+
+    @Test
+    void reassemblesConcurrentResponsesOnOneSession() throws Exception {
+        ResponseHolder holder = new ResponseHolder(DataSize.ofMegabytes(16));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Boolean>> results = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < 64; i++) {
+                results.add(executor.submit(() -> {
+                    String requestId = UUID.randomUUID().toString();
+                    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+
+                    for (int chunk = 1; chunk <= 50; chunk++) {
+                        byte[] data = new byte[1024 + chunk];
+                        Arrays.fill(data, (byte) chunk);
+                        expected.writeBytes(data);
+                        holder.add(SESSION_ID, chunk(requestId, data, chunk == 50));
+                    }
+
+                    return Arrays.equals(expected.toByteArray(), holder.complete(requestId).getData());
+                }));
+            }
+
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(0, holder.size());
+    }
+
+    @Test
+    void dropsResponsePastSizeCap() {
+        ResponseHolder holder = new ResponseHolder(DataSize.ofBytes(10));
+        String requestId = UUID.randomUUID().toString();
+
+        assertTrue(holder.add(SESSION_ID, chunk(requestId, new byte[6], false)));
+        assertFalse(holder.add(SESSION_ID, chunk(requestId, new byte[6], false)));
+        assertNull(holder.complete(requestId));
+    }
+
+    @Test
+    void removesResponsesOfClosedSession() {
+        ResponseHolder holder = new ResponseHolder(DataSize.ofMegabytes(1));
+        holder.add(SESSION_ID, chunk(UUID.randomUUID().toString(), new byte[4], false));
+        holder.add("other", chunk(UUID.randomUUID().toString(), new byte[4], false));
+
+        holder.removeSession(SESSION_ID);
+
+        assertEquals(1, holder.size());
+    }
+
+    private static Response chunk(String requestId, byte[] data, boolean last) {
+        return new Response(requestId, 200, null, last, ResponseType.RESPONSE_CHUNK, Map.of(), data, null);
+    }
+}
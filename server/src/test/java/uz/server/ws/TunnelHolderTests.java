@@ -0,0 +1,73 @@
+package uz.server.ws;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TunnelHolderTests {
+    @Test
+    void picksMemberWithFewestOutstandingRequests() {
+        TunnelHolder holder = new TunnelHolder();
+        holder.add("app", "a", 1L, null);
+        assertTrue(holder.join("APP", "b"));
+        assertTrue(holder.join("app", "c"));
+
+        assertNotNull(holder.acquire("app"));
+        assertNotNull(holder.acquire("app"));
+        assertNotNull(holder.acquire("app"));
+        assertEquals(1, holder.outstanding("a"));
+        assertEquals(1, holder.outstanding("b"));
+        assertEquals(1, holder.outstanding("c"));
+
+        holder.release("b");
+        assertEquals("b", holder.acquire("app"));
+    }
+
+    @Test
+    void spreadsEvenlyWhenRequestsCompleteImmediately() {
+        TunnelHolder holder = new TunnelHolder();
+        holder.add("app", "a", 1L, null);
+        holder.join("app", "b");
+        Map<String, Integer> counts = new HashMap<>();
+
+        for (int i = 0; i < 1000; i++) {
+            String sessionId = holder.acquire("app");
+            counts.merge(sessionId, 1, Integer::sum);
+            holder.release(sessionId);
+        }
+
+        assertEquals(500, counts.get("a"));
+        assertEquals(500, counts.get("b"));
+    }
+
+    @Test
+    void keepsTunnelUntilLastMemberLeaves() {
+        TunnelHolder holder = new TunnelHolder();
+        holder.add("app", "a", 1L, null);
+        holder.join("app", "b");
+
+        assertEquals(List.of("b"), holder.remove("app", "a"));
+        assertEquals("b", holder.acquire("app"));
+        assertNull(holder.getSubdomain("a"));
+
+        assertEquals(List.of(), holder.remove("app", "b"));
+        assertNull(holder.acquire("app"));
+        assertFalse(holder.join("app", "c"));
+        assertNull(holder.getSubdomain("c"));
+    }
+
+    @Test
+    void rejectsSubdomainServedInAnotherCase() {
+        TunnelHolder holder = new TunnelHolder();
+        assertTrue(holder.add("app", "a", 1L, null));
+
+        assertFalse(holder.add("App", "b", 2L, null));
+        assertEquals(List.of("a"), holder.getSessionIds("APP"));
+        assertEquals(1L, holder.getUserId("app"));
+        assertNull(holder.getSubdomain("b"));
+    }
+}